@@ -0,0 +1,141 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.io.EncoderFactory;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowDataUtil;
+
+import java.io.IOException;
+
+/**
+ * Writes each record as Avro binary to a Binary field added to the row.
+ *
+ * Records are encoded by a non-buffering encoder straight into a reused message buffer, so the only copy is the
+ * exactly sized byte array put in the row.
+ *
+ * Messages can start with a schema identifier: the schema registry wire format (a zero magic byte and the 4 byte big
+ * endian schema id) or Avro single object encoding (the C3 01 marker and the 8 byte little endian fingerprint of the
+ * schema).  The header is written to the buffer once and kept in front of every message.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroBinaryFieldSink implements AvroSink {
+
+  /** The marker in front of the fingerprint of single object encoded messages */
+  private static final byte[] SINGLE_OBJECT_MARKER = new byte[] { (byte) 0xC3, (byte) 0x01 };
+
+  private final AvroOutput step;
+
+  private final AvroOutputData data;
+
+  /** The length of the schema header at the start of the message buffer */
+  private int headerLength;
+
+  public AvroBinaryFieldSink( AvroOutput step ) {
+    this.step = step;
+    this.data = step.data;
+  }
+
+  public void open() throws KettleException {
+    data.encoderFactory = new EncoderFactory();
+    data.messageBuffer = new AvroMessageBuffer();
+    data.binaryEncoder = data.encoderFactory.directBinaryEncoder( data.messageBuffer, null );
+    if ( data.compiledPlan != null ) {
+      writeHeader();
+    }
+    headerLength = data.messageBuffer.size();
+  }
+
+  private void writeHeader() throws KettleException {
+    AvroMessageBuffer buffer = data.messageBuffer;
+    switch ( step.meta.getMessageFramingId() ) {
+      case AvroOutputMeta.MESSAGE_FRAMING_REGISTRY:
+        int id = getSchemaId();
+        if ( step.isDetailed() ) {
+          step.logDetailed( "Writing schema id " + id + " in front of each message." );
+        }
+        buffer.write( 0 );
+        buffer.write( id >>> 24 );
+        buffer.write( id >>> 16 );
+        buffer.write( id >>> 8 );
+        buffer.write( id );
+        break;
+      case AvroOutputMeta.MESSAGE_FRAMING_SINGLE_OBJECT:
+        long fingerprint = data.compiledPlan.getSchemaFingerprint();
+        buffer.write( SINGLE_OBJECT_MARKER );
+        for ( int i = 0; i < 8; i++ ) {
+          buffer.write( (int) ( fingerprint >>> ( i * 8 ) ) );
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private int getSchemaId() throws KettleException {
+    AvroSchemaRegistry registry;
+    String className = step.environmentSubstitute( step.meta.getSchemaRegistryClass() );
+    if ( Const.isEmpty( className ) ) {
+      registry = new AvroFileSchemaRegistry();
+    } else {
+      try {
+        registry = (AvroSchemaRegistry) Class.forName( className.trim(), true,
+          AvroBinaryFieldSink.class.getClassLoader() ).newInstance();
+      } catch ( Exception e ) {
+        throw new KettleException( "Could not create schema registry client " + className, e );
+      }
+    }
+    registry.init( step.meta.getSchemaRegistryUrl(), step );
+
+    String subject = step.environmentSubstitute( step.meta.getSchemaSubject() );
+    if ( Const.isEmpty( subject ) ) {
+      subject = data.avroSchema.getFullName();
+    }
+    return registry.getSchemaId( subject, data.avroSchema );
+  }
+
+  public Object[] writeRecord( Object[] r ) throws KettleException {
+    try {
+      // Keep the schema header at the start of the buffer.
+      data.messageBuffer.setSize( headerLength );
+      data.datumWriter.write( r, data.binaryEncoder );
+      byte[] message = data.messageBuffer.toByteArray();
+      return RowDataUtil.addValueData( r, data.outputRowMeta.size() - 1, message );
+    } catch ( IOException e ) {
+      throw new KettleException( e );
+    }
+  }
+
+  public void flush() throws KettleException {
+  }
+
+  public void close() throws KettleException {
+    data.binaryEncoder = null;
+    data.messageBuffer = null;
+    data.encoderFactory = null;
+  }
+}
@@ -0,0 +1,93 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.file.DataFileConstants;
+import org.pentaho.di.core.exception.KettleException;
+
+import java.io.IOException;
+
+/**
+ * Writes the records to an Avro container file.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroBinaryFileSink implements AvroSink {
+
+  private final AvroOutput step;
+
+  private final AvroOutputData data;
+
+  public AvroBinaryFileSink( AvroOutput step ) {
+    this.step = step;
+    this.data = step.data;
+  }
+
+  public void open() throws KettleException {
+    AvroBlockCodec codec = step.createCodec();
+    try {
+      data.blockAppender = new AvroBlockAppender( data.writer, true );
+      data.blockAppender.writeHeader( data.avroSchema, codec.getName() );
+    } catch ( IOException e ) {
+      throw new KettleException( "Could not open Avro writer", e );
+    }
+    data.containerWriter = new AvroContainerWriter( data.datumWriter, codec, data.blockAppender,
+      DataFileConstants.DEFAULT_SYNC_INTERVAL, step.getCompressionThreads(), step.getStepname() + " compression" );
+    data.containerWriter.setTargetBlockSize( step.getTargetBlockSize() );
+  }
+
+  public Object[] writeRecord( Object[] r ) throws KettleException {
+    try {
+      if ( data.writeBehind != null ) {
+        data.writeBehind.checkFailure();
+      }
+      if ( data.rollover && step.isFileFull() ) {
+        step.rollFile();
+      }
+      data.containerWriter.append( r );
+      data.fileRecords++;
+    } catch ( IOException e ) {
+      throw new KettleException( e );
+    }
+    return r;
+  }
+
+  public void flush() throws KettleException {
+    if ( data.containerWriter != null ) {
+      try {
+        data.containerWriter.flush();
+        data.blockAppender.flush();
+      } catch ( IOException e ) {
+        throw new KettleException( e );
+      }
+    }
+  }
+
+  public void close() throws KettleException {
+    if ( data.writer != null ) {
+      step.closeFile();
+    }
+  }
+}
@@ -0,0 +1,326 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads the values of fields with binary string storage, the lazy conversion of the CSV and fixed file inputs,
+ * straight from their bytes.
+ *
+ * Kettle converts these values by decoding the bytes to a String and parsing it.  Strings that are valid UTF-8 are
+ * passed on as their bytes, and plain integers and decimals are parsed from the bytes.  This is only done for fields
+ * where Kettle would not change the value: no trimming, null if or if null, an encoding that matches the bytes and a
+ * conversion mask that only has digits and separators.  All other values go through the value metadata.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroBinaryStringReader {
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private static final String NUMBER_CHARS = "-0123456789.,";
+
+  /** The largest number of digits that is converted to a double exactly */
+  private static final int MAX_DOUBLE_DIGITS = 15;
+
+  private static final double[] POWERS_OF_TEN = new double[MAX_DOUBLE_DIGITS + 1];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for ( int i = 1; i < POWERS_OF_TEN.length; i++ ) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  /** The String fields whose UTF-8 bytes can be written as they are, by input index */
+  private final boolean[] strings;
+
+  /** The Integer and Number fields that can be parsed from their bytes, by input index */
+  private final boolean[] numbers;
+
+  /** The decimal symbol of the Number fields, 0 to only parse integers */
+  private final byte[] decimalSymbols;
+
+  /**
+   * @param rowMeta The row metadata for the input rows.
+   */
+  public AvroBinaryStringReader( RowMetaInterface rowMeta ) {
+    int size = rowMeta.size();
+    strings = new boolean[size];
+    numbers = new boolean[size];
+    decimalSymbols = new byte[size];
+    for ( int i = 0; i < size; i++ ) {
+      ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+      if ( valueMeta == null || !valueMeta.isStorageBinaryString() || valueMeta.getStorageMetadata() == null ) {
+        continue;
+      }
+      ValueMetaInterface storageMeta = valueMeta.getStorageMetadata();
+      if ( !isUnchanged( valueMeta ) || !isUnchanged( storageMeta ) ) {
+        continue;
+      }
+      Charset charset = getCharset( storageMeta.getStringEncoding() );
+      switch ( valueMeta.getType() ) {
+        case ValueMetaInterface.TYPE_STRING:
+          strings[i] = UTF8.equals( charset );
+          break;
+        case ValueMetaInterface.TYPE_INTEGER:
+        case ValueMetaInterface.TYPE_NUMBER:
+          numbers[i] = isAsciiNumber( charset ) && isPlainMask( valueMeta.getConversionMask() );
+          String decimalSymbol = valueMeta.getDecimalSymbol();
+          if ( valueMeta.getType() == ValueMetaInterface.TYPE_NUMBER && decimalSymbol != null
+            && decimalSymbol.length() == 1 && ( decimalSymbol.equals( "." ) || decimalSymbol.equals( "," ) )
+            && !decimalSymbol.equals( valueMeta.getGroupingSymbol() ) ) {
+            decimalSymbols[i] = (byte) decimalSymbol.charAt( 0 );
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * @return true if the String values of the input field are passed on as their UTF-8 bytes.
+   */
+  public boolean isString( int inputIndex ) {
+    return strings[inputIndex];
+  }
+
+  /**
+   * Get the UTF-8 bytes of a String value.  Only used for fields where isString is true.
+   *
+   * @param valueMeta The value metadata of the input field.
+   * @param value The input value.
+   * @return The bytes, null if the value is null or the bytes are not valid UTF-8 and must be decoded by Kettle.
+   * @throws KettleValueException if the value can not be checked for null.
+   */
+  public byte[] getUtf8( ValueMetaInterface valueMeta, Object value ) throws KettleValueException {
+    if ( !( value instanceof byte[] ) || valueMeta.isNull( value ) ) {
+      return null;
+    }
+    byte[] bytes = (byte[]) value;
+    return isValidUtf8( bytes ) ? bytes : null;
+  }
+
+  /**
+   * Get an integer, parsed from the bytes when they are a plain integer.
+   *
+   * @param inputIndex The index of the field in the input row.
+   * @param valueMeta The value metadata of the input field.
+   * @param value The input value.
+   * @return The integer or null if the value is null.
+   * @throws KettleValueException if the value can not be converted to an integer.
+   */
+  public Long getInteger( int inputIndex, ValueMetaInterface valueMeta, Object value ) throws KettleValueException {
+    if ( numbers[inputIndex] && value instanceof byte[] && isPlainInteger( (byte[]) value ) ) {
+      return parseLong( (byte[]) value );
+    }
+    return valueMeta.getInteger( value );
+  }
+
+  /**
+   * Get a number, parsed from the bytes when they are a plain integer or decimal.
+   *
+   * @param inputIndex The index of the field in the input row.
+   * @param valueMeta The value metadata of the input field.
+   * @param value The input value.
+   * @return The number or null if the value is null.
+   * @throws KettleValueException if the value can not be converted to a number.
+   */
+  public Double getNumber( int inputIndex, ValueMetaInterface valueMeta, Object value ) throws KettleValueException {
+    if ( numbers[inputIndex] && value instanceof byte[] ) {
+      byte[] bytes = (byte[]) value;
+      byte decimalSymbol = decimalSymbols[inputIndex];
+      if ( decimalSymbol == 0 ) {
+        if ( isPlainInteger( bytes ) ) {
+          return (double) parseLong( bytes );
+        }
+      } else if ( isPlainDecimal( bytes, decimalSymbol ) ) {
+        return parseDouble( bytes, decimalSymbol );
+      }
+    }
+    return valueMeta.getNumber( value );
+  }
+
+  private static boolean isUnchanged( ValueMetaInterface valueMeta ) {
+    return valueMeta.getTrimType() == ValueMetaInterface.TRIM_TYPE_NONE && Const.isEmpty( valueMeta.getNullIf() )
+      && Const.isEmpty( valueMeta.getIfNull() );
+  }
+
+  private static Charset getCharset( String encoding ) {
+    if ( Const.isEmpty( encoding ) ) {
+      return Charset.defaultCharset();
+    }
+    try {
+      return Charset.forName( encoding );
+    } catch ( Exception e ) {
+      return null;
+    }
+  }
+
+  /**
+   * @return true if the charset encodes digits, signs and separators as ASCII.
+   */
+  private static boolean isAsciiNumber( Charset charset ) {
+    return charset != null && charset.canEncode()
+      && Arrays.equals( NUMBER_CHARS.getBytes( charset ), NUMBER_CHARS.getBytes( UTF8 ) );
+  }
+
+  /**
+   * @return true if the conversion mask only has digits and separators, so it parses plain numbers as they are.
+   */
+  static boolean isPlainMask( String mask ) {
+    if ( Const.isEmpty( mask ) ) {
+      return true;
+    }
+    for ( int i = 0; i < mask.length(); i++ ) {
+      if ( "#0,.".indexOf( mask.charAt( i ) ) < 0 ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the bytes are an optional minus sign and 1 to 18 ASCII digits.
+   */
+  static boolean isPlainInteger( byte[] bytes ) {
+    int start = bytes.length > 0 && bytes[0] == '-' ? 1 : 0;
+    int digits = bytes.length - start;
+    if ( digits < 1 || digits > 18 ) {
+      return false;
+    }
+    for ( int i = start; i < bytes.length; i++ ) {
+      if ( bytes[i] < '0' || bytes[i] > '9' ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static long parseLong( byte[] bytes ) {
+    boolean negative = bytes[0] == '-';
+    long value = 0;
+    for ( int i = negative ? 1 : 0; i < bytes.length; i++ ) {
+      value = value * 10 + ( bytes[i] - '0' );
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * @return true if the bytes are an optional minus sign and 1 to 15 ASCII digits with at most one decimal symbol.
+   *   These are converted to the nearest double by one exact division.
+   */
+  static boolean isPlainDecimal( byte[] bytes, byte decimalSymbol ) {
+    int start = bytes.length > 0 && bytes[0] == '-' ? 1 : 0;
+    int digits = 0;
+    boolean decimal = false;
+    for ( int i = start; i < bytes.length; i++ ) {
+      byte b = bytes[i];
+      if ( b >= '0' && b <= '9' ) {
+        digits++;
+      } else if ( b == decimalSymbol && !decimal ) {
+        decimal = true;
+      } else {
+        return false;
+      }
+    }
+    return digits >= 1 && digits <= MAX_DOUBLE_DIGITS;
+  }
+
+  static double parseDouble( byte[] bytes, byte decimalSymbol ) {
+    boolean negative = bytes[0] == '-';
+    long mantissa = 0;
+    int fractionDigits = 0;
+    boolean decimal = false;
+    for ( int i = negative ? 1 : 0; i < bytes.length; i++ ) {
+      byte b = bytes[i];
+      if ( b == decimalSymbol ) {
+        decimal = true;
+      } else {
+        mantissa = mantissa * 10 + ( b - '0' );
+        if ( decimal ) {
+          fractionDigits++;
+        }
+      }
+    }
+    // Both the mantissa and the power of ten are exact doubles, so the division is rounded once like parseDouble.
+    double value = mantissa / POWERS_OF_TEN[fractionDigits];
+    return negative ? -value : value;
+  }
+
+  /**
+   * @return true if the bytes are well formed UTF-8, without overlong forms, surrogates or code points past U+10FFFF.
+   */
+  static boolean isValidUtf8( byte[] bytes ) {
+    int i = 0;
+    int length = bytes.length;
+    while ( i < length ) {
+      int b = bytes[i];
+      if ( b >= 0 ) {
+        i++;
+        continue;
+      }
+      b &= 0xff;
+      int continuation;
+      int min;
+      if ( b >= 0xc2 && b <= 0xdf ) {
+        continuation = 1;
+        min = 0x80;
+      } else if ( b >= 0xe0 && b <= 0xef ) {
+        continuation = 2;
+        min = 0x800;
+      } else if ( b >= 0xf0 && b <= 0xf4 ) {
+        continuation = 3;
+        min = 0x10000;
+      } else {
+        return false;
+      }
+      if ( i + continuation >= length ) {
+        return false;
+      }
+      int codePoint = b & ( 0x3f >> continuation );
+      for ( int j = 1; j <= continuation; j++ ) {
+        int c = bytes[i + j] & 0xff;
+        if ( ( c & 0xc0 ) != 0x80 ) {
+          return false;
+        }
+        codePoint = ( codePoint << 6 ) | ( c & 0x3f );
+      }
+      if ( codePoint < min || codePoint > 0x10ffff || ( codePoint >= 0xd800 && codePoint <= 0xdfff ) ) {
+        return false;
+      }
+      i += continuation + 1;
+    }
+    return true;
+  }
+}
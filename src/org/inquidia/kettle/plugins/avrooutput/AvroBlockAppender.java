@@ -0,0 +1,306 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.io.BinaryData;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the header and the finished data blocks of an Avro container file to a stream.
+ *
+ * One appender can be shared by several container writers.  In ordered mode every block gets a sequence number
+ * when it is started and the blocks are written in that order; blocks that finish early are held until the blocks
+ * before them are written.  At most MAX_PENDING_BLOCKS blocks are held, after that the writers appending blocks wait.
+ * While they wait the writer of the lowest open block is asked to finish it early.  A writer that is waiting for rows
+ * can not finish its block, so if the block is still open after EARLY_FINISH_WAIT milliseconds it gives up its place
+ * and is written after the blocks started since.  In unordered mode blocks are written as soon as they are finished.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroBlockAppender {
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  /** The number of finished blocks held for an earlier block before the writers appending blocks wait */
+  static final int MAX_PENDING_BLOCKS = 16;
+
+  /** The milliseconds to wait for the writer of the lowest open block to finish it */
+  static final long EARLY_FINISH_WAIT = 200;
+
+  private final OutputStream out;
+
+  private final boolean ordered;
+
+  private final AvroBlockListener listener;
+
+  private final byte[] sync = new byte[DataFileConstants.SYNC_SIZE];
+
+  private final byte[] blockHeader = new byte[20];
+
+  private final Map<Long, AvroDataBlock> pending = new HashMap<Long, AvroDataBlock>();
+
+  /** The sequence numbers of the blocks started but not finished */
+  private final Set<Long> open = new HashSet<Long>();
+
+  /** The sequence numbers given up by blocks that were still open, skipped when writing */
+  private final Set<Long> skipped = new HashSet<Long>();
+
+  /** The sequence of the open block the waiting writers ask to be finished early, -1 if none */
+  private volatile long requestedSequence = -1;
+
+  private long requestedAt;
+
+  private long nextSequence;
+
+  private long nextToWrite;
+
+  private boolean headerWritten;
+
+  /** The bytes of the data blocks written, read without locking */
+  private volatile long bytesWritten;
+
+  private IOException failure;
+
+  public AvroBlockAppender( OutputStream out, boolean ordered ) {
+    this.out = out;
+    this.ordered = ordered;
+    this.listener = out instanceof AvroBlockListener ? (AvroBlockListener) out : null;
+    new SecureRandom().nextBytes( sync );
+  }
+
+  /**
+   * Write the file header.  Only the first call writes anything, so every writer sharing the appender can call it.
+   *
+   * @param schema The schema of the file.
+   * @param codecName The name of the codec the blocks are compressed with.
+   * @throws IOException
+   */
+  public synchronized void writeHeader( Schema schema, String codecName ) throws IOException {
+    checkFailure();
+    if ( headerWritten ) {
+      return;
+    }
+    try {
+      BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder( out, null );
+      encoder.writeFixed( DataFileConstants.MAGIC );
+      encoder.writeMapStart();
+      encoder.setItemCount( 2 );
+      encoder.startItem();
+      encoder.writeString( DataFileConstants.SCHEMA );
+      encoder.writeBytes( AvroLogicalTypes.toJson( schema, false ).getBytes( UTF8 ) );
+      encoder.startItem();
+      encoder.writeString( DataFileConstants.CODEC );
+      encoder.writeBytes( codecName.getBytes( UTF8 ) );
+      encoder.writeMapEnd();
+      encoder.writeFixed( sync );
+      encoder.flush();
+      headerWritten = true;
+    } catch ( IOException e ) {
+      failure = e;
+      throw e;
+    }
+  }
+
+  /**
+   * Continue an existing file instead of writing a header.  The blocks are appended with the sync marker of the
+   * existing file.
+   *
+   * @param fileSync The sync marker read from the header of the file.
+   */
+  public synchronized void resume( byte[] fileSync ) {
+    System.arraycopy( fileSync, 0, sync, 0, sync.length );
+    headerWritten = true;
+  }
+
+  /**
+   * Reserve the position of a block that is being started.
+   *
+   * @return The sequence number of the block.
+   */
+  public synchronized long nextSequence() {
+    if ( ordered ) {
+      open.add( nextSequence );
+    }
+    return nextSequence++;
+  }
+
+  /**
+   * @return true if the writers waiting to append blocks ask the block with the sequence number to be finished.
+   */
+  public boolean isRequested( long sequence ) {
+    return requestedSequence == sequence;
+  }
+
+  /**
+   * Finish a block that was started.  Must be called before the block is compressed.
+   *
+   * @param sequence The sequence number the block was started with.
+   * @return The sequence number to append the block with, a new one if the block gave up its place.
+   */
+  public synchronized long finish( long sequence ) {
+    if ( !ordered || open.remove( sequence ) ) {
+      notifyAll();
+      return sequence;
+    }
+    return nextSequence++;
+  }
+
+  /**
+   * Append a finished block.  The block is released once it has been written.
+   *
+   * @param block The block, with its output set.
+   * @throws IOException if writing the block, or an earlier block, failed.
+   */
+  public synchronized void append( AvroDataBlock block ) throws IOException {
+    checkFailure();
+    if ( !ordered ) {
+      write( block );
+      return;
+    }
+    while ( pending.size() >= MAX_PENDING_BLOCKS && block.sequence != nextToWrite ) {
+      if ( open.contains( nextToWrite ) ) {
+        long now = System.currentTimeMillis();
+        if ( requestedSequence != nextToWrite ) {
+          requestedSequence = nextToWrite;
+          requestedAt = now;
+        } else if ( now - requestedAt >= EARLY_FINISH_WAIT ) {
+          // The writer is not getting rows, write its block after the blocks that are waiting.
+          open.remove( nextToWrite );
+          skipped.add( nextToWrite );
+          writePending();
+          continue;
+        }
+      }
+      try {
+        wait( EARLY_FINISH_WAIT );
+      } catch ( InterruptedException e ) {
+        block.release();
+        throw new InterruptedIOException( "Interrupted while waiting for Avro block " + nextToWrite );
+      }
+      checkFailure();
+    }
+    pending.put( block.sequence, block );
+    writePending();
+  }
+
+  /**
+   * Write the held blocks that are next in sequence and wake up the writers waiting for room.
+   */
+  private void writePending() throws IOException {
+    while ( true ) {
+      AvroDataBlock next = pending.remove( nextToWrite );
+      if ( next != null ) {
+        write( next );
+      } else if ( !skipped.remove( nextToWrite ) ) {
+        break;
+      }
+      nextToWrite++;
+    }
+    if ( requestedSequence >= 0 && requestedSequence < nextToWrite ) {
+      requestedSequence = -1;
+    }
+    notifyAll();
+  }
+
+  private void write( AvroDataBlock block ) throws IOException {
+    try {
+      if ( block.recordCount > 0 ) {
+        AvroMessageBuffer output = block.output;
+        int headerLength = BinaryData.encodeLong( block.recordCount, blockHeader, 0 );
+        headerLength += BinaryData.encodeLong( output.size(), blockHeader, headerLength );
+        out.write( blockHeader, 0, headerLength );
+        out.write( output.getBuffer(), 0, output.size() );
+        out.write( sync );
+        bytesWritten += headerLength + output.size() + sync.length;
+        if ( listener != null ) {
+          listener.blockWritten();
+        }
+      }
+    } catch ( IOException e ) {
+      failure = e;
+      throw e;
+    } finally {
+      block.release();
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    if ( failure != null ) {
+      throw new IOException( "Writing to the Avro file failed earlier: " + failure.getMessage(), failure );
+    }
+  }
+
+  /**
+   * @return The number of bytes of the data blocks written so far, not counting the file header.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * @return The number of blocks that are finished but waiting for earlier blocks.
+   */
+  public synchronized int getPendingBlocks() {
+    return pending.size();
+  }
+
+  /**
+   * Flush the stream.
+   */
+  public synchronized void flush() throws IOException {
+    checkFailure();
+    out.flush();
+  }
+
+  /**
+   * Flush and close the stream.
+   *
+   * @throws IOException if blocks are still waiting for an earlier block or the stream can not be closed.
+   */
+  public synchronized void close() throws IOException {
+    try {
+      if ( !pending.isEmpty() ) {
+        throw new IOException( pending.size() + " Avro blocks were never written because block " + nextToWrite
+          + " was not finished." );
+      }
+      out.flush();
+    } finally {
+      out.close();
+    }
+  }
+}
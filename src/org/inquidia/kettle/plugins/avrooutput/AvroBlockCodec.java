@@ -0,0 +1,300 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import io.airlift.compress.zstd.ZstdCompressor;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.pentaho.di.core.exception.KettleException;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.BasicArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the data blocks of an Avro container file.
+ *
+ * Avro's own codecs can not be used outside of DataFileWriter, so the codecs are implemented here the same way Avro
+ * implements them, so the files can be read by any Avro reader that knows the codec.  Avro 1.6.2 itself only reads
+ * null, deflate and snappy; zstandard, xz and bzip2 files need a newer Avro on the reading side.  A codec instance is
+ * not thread safe, each thread compressing blocks needs its own.
+ *
+ * @author Inquidia Consulting
+ */
+public abstract class AvroBlockCodec {
+
+  /** The level to pass to create for the default level of the codec */
+  public static final int DEFAULT_LEVEL = -1;
+
+  public static final String ZSTANDARD_CODEC = "zstandard";
+
+  public static final String XZ_CODEC = "xz";
+
+  public static final String BZIP2_CODEC = "bzip2";
+
+  /**
+   * Create a codec with its default level.
+   *
+   * @param name The codec name as written to the file header.  Empty or none means no compression.
+   * @return The codec
+   * @throws KettleException if the codec is not supported.
+   */
+  public static AvroBlockCodec create( String name ) throws KettleException {
+    return create( name, DEFAULT_LEVEL );
+  }
+
+  /**
+   * Create a codec.
+   *
+   * @param name The codec name as written to the file header.  Empty or none means no compression.
+   * @param level The compression level, DEFAULT_LEVEL for the default level of the codec.  Deflate and xz take
+   *              0-9, bzip2 takes 1-9 as its block size in units of 100 KB.  Snappy and zstandard have no levels
+   *              and only take DEFAULT_LEVEL.
+   * @return The codec
+   * @throws KettleException if the codec is not supported or the level is out of range.
+   */
+  public static AvroBlockCodec create( String name, int level ) throws KettleException {
+    if ( name == null || name.length() == 0 || name.equalsIgnoreCase( "none" )
+      || name.equalsIgnoreCase( DataFileConstants.NULL_CODEC ) ) {
+      return new NullCodec();
+    } else if ( name.equalsIgnoreCase( DataFileConstants.DEFLATE_CODEC ) ) {
+      checkLevel( name, level, 0, 9 );
+      return new DeflateCodec( level == DEFAULT_LEVEL ? Deflater.DEFAULT_COMPRESSION : level );
+    } else if ( name.equalsIgnoreCase( DataFileConstants.SNAPPY_CODEC ) ) {
+      checkNoLevel( name, level );
+      return new SnappyCodec();
+    } else if ( name.equalsIgnoreCase( ZSTANDARD_CODEC ) ) {
+      checkNoLevel( name, level );
+      return new ZstandardCodec();
+    } else if ( name.equalsIgnoreCase( XZ_CODEC ) ) {
+      checkLevel( name, level, 0, 9 );
+      return new XZCodec( level == DEFAULT_LEVEL ? LZMA2Options.PRESET_DEFAULT : level );
+    } else if ( name.equalsIgnoreCase( BZIP2_CODEC ) ) {
+      checkLevel( name, level, 1, 9 );
+      return new BZip2Codec( level == DEFAULT_LEVEL ? BZip2CompressorOutputStream.MAX_BLOCKSIZE : level );
+    }
+    throw new KettleException( "Unsupported Avro compression codec " + name );
+  }
+
+  private static void checkLevel( String name, int level, int min, int max ) throws KettleException {
+    if ( level != DEFAULT_LEVEL && ( level < min || level > max ) ) {
+      throw new KettleException( "Compression level " + level + " is not valid for the " + name
+        + " codec.  The level must be between " + min + " and " + max + "." );
+    }
+  }
+
+  private static void checkNoLevel( String name, int level ) throws KettleException {
+    if ( level != DEFAULT_LEVEL ) {
+      throw new KettleException( "Compression level " + level + " is not valid for the " + name
+        + " codec.  The " + name + " codec does not take a level, leave the level empty." );
+    }
+  }
+
+  /**
+   * @return The name of the codec written to the avro.codec entry of the file header.
+   */
+  public abstract String getName();
+
+  /**
+   * @return A new codec with the same settings, for use by another thread.
+   */
+  public abstract AvroBlockCodec copy();
+
+  /**
+   * Compress a block.
+   *
+   * @param raw The uncompressed block.
+   * @param out A buffer the codec may compress into.
+   * @return The buffer holding the compressed block, either out or raw if the codec does not compress.
+   * @throws IOException
+   */
+  public abstract AvroMessageBuffer compress( AvroMessageBuffer raw, AvroMessageBuffer out ) throws IOException;
+
+  private static class NullCodec extends AvroBlockCodec {
+    public String getName() {
+      return DataFileConstants.NULL_CODEC;
+    }
+
+    public AvroBlockCodec copy() {
+      return this;
+    }
+
+    public AvroMessageBuffer compress( AvroMessageBuffer raw, AvroMessageBuffer out ) {
+      return raw;
+    }
+  }
+
+  private static class DeflateCodec extends AvroBlockCodec {
+    private final int level;
+
+    private final Deflater deflater;
+
+    DeflateCodec( int level ) {
+      this.level = level;
+      // Avro writes raw deflate data without the zlib header and checksum.
+      deflater = new Deflater( level, true );
+    }
+
+    public String getName() {
+      return DataFileConstants.DEFLATE_CODEC;
+    }
+
+    public AvroBlockCodec copy() {
+      return new DeflateCodec( level );
+    }
+
+    public AvroMessageBuffer compress( AvroMessageBuffer raw, AvroMessageBuffer out ) {
+      deflater.reset();
+      deflater.setInput( raw.getBuffer(), 0, raw.size() );
+      deflater.finish();
+      out.reset();
+      int chunk = Math.max( 4096, raw.size() / 2 );
+      while ( !deflater.finished() ) {
+        byte[] buf = out.ensureFree( chunk );
+        int n = deflater.deflate( buf, out.size(), buf.length - out.size() );
+        out.setSize( out.size() + n );
+      }
+      return out;
+    }
+  }
+
+  private static class SnappyCodec extends AvroBlockCodec {
+    private final CRC32 crc32 = new CRC32();
+
+    public String getName() {
+      return DataFileConstants.SNAPPY_CODEC;
+    }
+
+    public AvroBlockCodec copy() {
+      return new SnappyCodec();
+    }
+
+    public AvroMessageBuffer compress( AvroMessageBuffer raw, AvroMessageBuffer out ) throws IOException {
+      out.reset();
+      byte[] buf = out.ensureFree( Snappy.maxCompressedLength( raw.size() ) + 4 );
+      int n = Snappy.compress( raw.getBuffer(), 0, raw.size(), buf, 0 );
+
+      // Avro follows each snappy block with the big endian CRC32 of the uncompressed data.
+      crc32.reset();
+      crc32.update( raw.getBuffer(), 0, raw.size() );
+      int crc = (int) crc32.getValue();
+      buf[n] = (byte) ( crc >>> 24 );
+      buf[n + 1] = (byte) ( crc >>> 16 );
+      buf[n + 2] = (byte) ( crc >>> 8 );
+      buf[n + 3] = (byte) crc;
+      out.setSize( n + 4 );
+      return out;
+    }
+  }
+
+  private static class ZstandardCodec extends AvroBlockCodec {
+    private final ZstdCompressor compressor = new ZstdCompressor();
+
+    public String getName() {
+      return ZSTANDARD_CODEC;
+    }
+
+    public AvroBlockCodec copy() {
+      return new ZstandardCodec();
+    }
+
+    public AvroMessageBuffer compress( AvroMessageBuffer raw, AvroMessageBuffer out ) {
+      out.reset();
+      int maxLength = compressor.maxCompressedLength( raw.size() );
+      byte[] buf = out.ensureFree( maxLength );
+      int n = compressor.compress( raw.getBuffer(), 0, raw.size(), buf, 0, maxLength );
+      out.setSize( n );
+      return out;
+    }
+  }
+
+  private static class XZCodec extends AvroBlockCodec {
+    private final int level;
+
+    private final LZMA2Options options;
+
+    // The LZMA2 encoder allocates its dictionary for every stream, keep the arrays for the next block.
+    private final ArrayCache arrayCache = new BasicArrayCache();
+
+    XZCodec( int level ) throws KettleException {
+      this.level = level;
+      try {
+        options = new LZMA2Options( level );
+      } catch ( IOException e ) {
+        throw new KettleException( "Invalid xz compression level " + level, e );
+      }
+    }
+
+    public String getName() {
+      return XZ_CODEC;
+    }
+
+    public AvroBlockCodec copy() {
+      try {
+        return new XZCodec( level );
+      } catch ( KettleException e ) {
+        // The level was checked when this codec was created.
+        throw new IllegalStateException( e );
+      }
+    }
+
+    public AvroMessageBuffer compress( AvroMessageBuffer raw, AvroMessageBuffer out ) throws IOException {
+      out.reset();
+      XZOutputStream xz = new XZOutputStream( out, options, arrayCache );
+      xz.write( raw.getBuffer(), 0, raw.size() );
+      xz.finish();
+      return out;
+    }
+  }
+
+  private static class BZip2Codec extends AvroBlockCodec {
+    private final int blockSize;
+
+    BZip2Codec( int blockSize ) {
+      this.blockSize = blockSize;
+    }
+
+    public String getName() {
+      return BZIP2_CODEC;
+    }
+
+    public AvroBlockCodec copy() {
+      return new BZip2Codec( blockSize );
+    }
+
+    public AvroMessageBuffer compress( AvroMessageBuffer raw, AvroMessageBuffer out ) throws IOException {
+      out.reset();
+      BZip2CompressorOutputStream bzip2 = new BZip2CompressorOutputStream( out, blockSize );
+      bzip2.write( raw.getBuffer(), 0, raw.size() );
+      bzip2.finish();
+      return out;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import java.io.IOException;
+
+/**
+ * An output stream that wants to know where the data blocks of the Avro file end, for example to sync the file
+ * every few blocks.
+ *
+ * @author Inquidia Consulting
+ */
+public interface AvroBlockListener {
+
+  /**
+   * Called after a complete data block, including its sync marker, has been written to the stream.
+   *
+   * @throws IOException
+   */
+  void blockWritten() throws IOException;
+}
@@ -0,0 +1,116 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The header of an existing Avro container file: the magic bytes, the metadata map and the sync marker.
+ *
+ * It is read so blocks can be appended to a file that was written earlier, using the file's own sync marker.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroContainerHeader {
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private final Map<String, byte[]> metadata;
+
+  private final byte[] sync;
+
+  private AvroContainerHeader( Map<String, byte[]> metadata, byte[] sync ) {
+    this.metadata = metadata;
+    this.sync = sync;
+  }
+
+  /**
+   * Read the header from the start of a container file.
+   *
+   * @param in The stream, positioned at the start of the file.  It is not closed.
+   * @return The header
+   * @throws IOException if the stream does not start with a valid container file header.
+   */
+  public static AvroContainerHeader read( InputStream in ) throws IOException {
+    BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder( in, null );
+
+    byte[] magic = new byte[DataFileConstants.MAGIC.length];
+    decoder.readFixed( magic );
+    if ( !Arrays.equals( magic, DataFileConstants.MAGIC ) ) {
+      throw new IOException( "Not an Avro container file." );
+    }
+
+    Map<String, byte[]> metadata = new HashMap<String, byte[]>();
+    for ( long n = decoder.readMapStart(); n != 0; n = decoder.mapNext() ) {
+      for ( long i = 0; i < n; i++ ) {
+        String key = decoder.readString();
+        ByteBuffer value = decoder.readBytes( null );
+        byte[] bytes = new byte[value.remaining()];
+        value.get( bytes );
+        metadata.put( key, bytes );
+      }
+    }
+
+    byte[] sync = new byte[DataFileConstants.SYNC_SIZE];
+    decoder.readFixed( sync );
+    return new AvroContainerHeader( metadata, sync );
+  }
+
+  /**
+   * @return The schema of the file.
+   * @throws IOException if the file has no schema.
+   */
+  public Schema getSchema() throws IOException {
+    byte[] schema = metadata.get( DataFileConstants.SCHEMA );
+    if ( schema == null ) {
+      throw new IOException( "The Avro file has no schema." );
+    }
+    return AvroLogicalTypes.parse( new String( schema, UTF8 ) );
+  }
+
+  /**
+   * @return The name of the codec the blocks are compressed with.
+   */
+  public String getCodec() {
+    byte[] codec = metadata.get( DataFileConstants.CODEC );
+    return codec == null ? DataFileConstants.NULL_CODEC : new String( codec, UTF8 );
+  }
+
+  public byte[] getSync() {
+    return sync;
+  }
+}
@@ -0,0 +1,307 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Encodes rows into the data blocks of an Avro container file and hands each finished block to an appender.
+ *
+ * The writer does the same work as DataFileWriter, but the appender that writes the blocks can be shared by the
+ * writers of several step copies so they all write to one file.  Blocks can also be compressed by a bounded pool of
+ * worker threads while the step keeps encoding rows.  Each block gets its position in the file when it is started,
+ * so the appender writes them in row order however the workers finish.
+ *
+ * By default a block is finished once it holds the sync interval of uncompressed bytes, like DataFileWriter does.
+ * With a target block size the writer keeps running estimates of the compression ratio and the record size, and
+ * finishes a block when the next record is expected to take it past the uncompressed size that compresses to the
+ * target.  The block buffers are sized from the same estimates before encoding starts, so they do not grow.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroContainerWriter {
+
+  /** The smallest uncompressed block size used with a target block size */
+  private static final int MIN_BLOCK_SIZE = 4096;
+
+  /** The largest uncompressed block size used with a target block size, so a very high ratio stays in memory */
+  private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+  /** The smallest compression ratio estimated, so a block of repeated values does not blow up the next block */
+  private static final double MIN_COMPRESSION_RATIO = 0.01;
+
+  private final DatumWriter<Object[]> datumWriter;
+
+  private final AvroBlockCodec codec;
+
+  private final AvroBlockAppender appender;
+
+  private final int syncInterval;
+
+  /** The compressed size to aim the blocks at, 0 to finish the blocks at the sync interval */
+  private int targetBlockSize;
+
+  /**
+   * The running ratio of compressed to uncompressed block size, updated by the thread compressing the blocks.  0 until
+   * the first block is compressed.
+   */
+  private volatile double compressionRatio;
+
+  /** The running average size of an encoded record */
+  private double recordSize;
+
+  /** The uncompressed size at which the current block is finished */
+  private int blockLimit;
+
+  private final Queue<AvroDataBlock> freeBlocks = new ConcurrentLinkedQueue<AvroDataBlock>();
+
+  /** The compression workers, null when blocks are compressed by the calling thread */
+  private final ExecutorService compressors;
+
+  /** The codecs of the compression workers */
+  private final ThreadLocal<AvroBlockCodec> workerCodecs;
+
+  /** Limits the number of blocks being compressed or waiting for a worker */
+  private final Semaphore inFlight;
+
+  private final int maxInFlight;
+
+  private volatile IOException failure;
+
+  private AvroDataBlock block;
+
+  private BinaryEncoder encoder;
+
+  /**
+   * @param datumWriter The writer that encodes the rows.
+   * @param codec The codec to compress the blocks with.
+   * @param appender The appender to write the blocks to.  The header must be written by the caller.
+   * @param syncInterval The uncompressed size at which a block is finished.
+   */
+  public AvroContainerWriter( DatumWriter<Object[]> datumWriter, AvroBlockCodec codec, AvroBlockAppender appender,
+                              int syncInterval ) {
+    this( datumWriter, codec, appender, syncInterval, 0, null );
+  }
+
+  /**
+   * @param datumWriter The writer that encodes the rows.
+   * @param codec The codec to compress the blocks with.
+   * @param appender The appender to write the blocks to.  The header must be written by the caller.
+   * @param syncInterval The uncompressed size at which a block is finished.
+   * @param compressionThreads The number of worker threads compressing blocks, 0 to compress on the calling thread.
+   * @param threadName The name of the worker threads.
+   */
+  public AvroContainerWriter( DatumWriter<Object[]> datumWriter, final AvroBlockCodec codec,
+                              AvroBlockAppender appender, int syncInterval, int compressionThreads,
+                              final String threadName ) {
+    this.datumWriter = datumWriter;
+    this.codec = codec;
+    this.appender = appender;
+    this.syncInterval = syncInterval;
+    if ( compressionThreads > 0 ) {
+      compressors = Executors.newFixedThreadPool( compressionThreads, new ThreadFactory() {
+        public Thread newThread( Runnable r ) {
+          Thread thread = new Thread( r, threadName );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+      workerCodecs = new ThreadLocal<AvroBlockCodec>() {
+        @Override
+        protected AvroBlockCodec initialValue() {
+          return codec.copy();
+        }
+      };
+      maxInFlight = compressionThreads * 2;
+      inFlight = new Semaphore( maxInFlight );
+    } else {
+      compressors = null;
+      workerCodecs = null;
+      maxInFlight = 0;
+      inFlight = null;
+    }
+  }
+
+  /**
+   * Aim the blocks at a compressed size instead of finishing them at the sync interval.  Must be called before the
+   * first row is appended.
+   *
+   * @param targetBlockSize The compressed block size in bytes, 0 to finish the blocks at the sync interval.
+   */
+  public void setTargetBlockSize( int targetBlockSize ) {
+    this.targetBlockSize = Math.max( 0, targetBlockSize );
+  }
+
+  /**
+   * Encode a row into the current block, finishing the block once it is full.
+   */
+  public void append( Object[] r ) throws IOException {
+    if ( block == null ) {
+      startBlock();
+    }
+    datumWriter.write( r, encoder );
+    block.recordCount++;
+    if ( block.raw.size() + recordSize >= blockLimit || appender.isRequested( block.sequence ) ) {
+      finishBlock();
+    }
+  }
+
+  private void startBlock() {
+    int capacity;
+    double ratio = compressionRatio > 0 ? compressionRatio : 1.0;
+    if ( targetBlockSize > 0 ) {
+      blockLimit = (int) Math.min( MAX_BLOCK_SIZE, Math.max( MIN_BLOCK_SIZE, targetBlockSize / ratio ) );
+      capacity = blockLimit + (int) ( recordSize * 2 );
+    } else {
+      blockLimit = syncInterval;
+      capacity = syncInterval + syncInterval / 4;
+    }
+    block = freeBlocks.poll();
+    if ( block == null ) {
+      block = new AvroDataBlock( capacity, freeBlocks );
+    } else {
+      block.raw.ensureFree( capacity );
+    }
+    if ( targetBlockSize > 0 ) {
+      block.compressed.ensureFree( (int) ( capacity * ratio ) + 1024 );
+    }
+    block.sequence = appender.nextSequence();
+    encoder = EncoderFactory.get().directBinaryEncoder( block.raw, encoder );
+  }
+
+  private void finishBlock() throws IOException {
+    final AvroDataBlock finished = block;
+    block = null;
+    finished.sequence = appender.finish( finished.sequence );
+    if ( targetBlockSize > 0 ) {
+      recordSize = average( recordSize, (double) finished.raw.size() / finished.recordCount );
+    }
+    if ( compressors == null ) {
+      finished.output = codec.compress( finished.raw, finished.compressed );
+      updateCompressionRatio( finished );
+      appender.append( finished );
+      return;
+    }
+
+    checkFailure();
+    try {
+      inFlight.acquire();
+    } catch ( InterruptedException e ) {
+      throw new InterruptedIOException( "Interrupted while waiting for a compression worker" );
+    }
+    compressors.execute( new Runnable() {
+      public void run() {
+        try {
+          finished.output = workerCodecs.get().compress( finished.raw, finished.compressed );
+          updateCompressionRatio( finished );
+          appender.append( finished );
+        } catch ( IOException e ) {
+          fail( e );
+        } catch ( RuntimeException e ) {
+          fail( new IOException( "Error compressing Avro block", e ) );
+        } finally {
+          inFlight.release();
+        }
+      }
+    } );
+  }
+
+  private void updateCompressionRatio( AvroDataBlock finished ) {
+    if ( targetBlockSize > 0 && finished.raw.size() > 0 ) {
+      // Races between workers only lose an update, the estimate stays close.
+      compressionRatio = Math.max( MIN_COMPRESSION_RATIO,
+        average( compressionRatio, (double) finished.output.size() / finished.raw.size() ) );
+    }
+  }
+
+  /**
+   * Move a running estimate towards the latest sample, weighting the older samples more to smooth out odd blocks.
+   * The first sample replaces the estimate.
+   */
+  private static double average( double estimate, double sample ) {
+    return estimate <= 0 ? sample : estimate * 0.75 + sample * 0.25;
+  }
+
+  private void fail( IOException e ) {
+    if ( failure == null ) {
+      failure = e;
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    if ( failure != null ) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Wait until every finished block has been compressed and handed to the appender.
+   */
+  private void awaitBlocks() throws IOException {
+    if ( compressors != null ) {
+      try {
+        inFlight.acquire( maxInFlight );
+      } catch ( InterruptedException e ) {
+        throw new InterruptedIOException( "Interrupted while waiting for the compression workers" );
+      }
+      inFlight.release( maxInFlight );
+      checkFailure();
+    }
+  }
+
+  /**
+   * Finish the current block, even if it is not full, and wait until all blocks are handed to the appender.
+   */
+  public void flush() throws IOException {
+    if ( block != null ) {
+      finishBlock();
+    }
+    awaitBlocks();
+  }
+
+  /**
+   * Finish the current block and stop the compression workers.  The appender is not closed.
+   */
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      if ( compressors != null ) {
+        compressors.shutdown();
+      }
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import java.util.Queue;
+
+/**
+ * A block of records of an Avro container file.
+ *
+ * Blocks are recycled: once the appender has written a block it is released back to the free list of the writer
+ * that filled it, so the buffers are reused for later blocks.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroDataBlock {
+
+  /** The encoded records */
+  public final AvroMessageBuffer raw;
+
+  /** The compression buffer */
+  public final AvroMessageBuffer compressed;
+
+  /** The bytes to write, either raw or compressed */
+  public AvroMessageBuffer output;
+
+  /** The position of the block in the file, assigned by the appender when the block is started */
+  public long sequence;
+
+  /** The number of records in the block */
+  public long recordCount;
+
+  private final Queue<AvroDataBlock> freeList;
+
+  public AvroDataBlock( int capacity, Queue<AvroDataBlock> freeList ) {
+    this.raw = new AvroMessageBuffer( capacity );
+    this.compressed = new AvroMessageBuffer( capacity );
+    this.freeList = freeList;
+  }
+
+  /**
+   * Clear the block and return it to the free list it came from.
+   */
+  public void release() {
+    raw.reset();
+    compressed.reset();
+    output = null;
+    recordCount = 0;
+    sequence = -1;
+    if ( freeList != null ) {
+      freeList.offer( this );
+    }
+  }
+}
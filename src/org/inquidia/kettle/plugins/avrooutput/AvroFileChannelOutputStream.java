@@ -0,0 +1,215 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a local file through a FileChannel, bypassing VFS and its stream buffers.
+ *
+ * In buffered mode the data is collected in one direct buffer and written to the channel when the buffer is full.
+ * In mapped mode the file is mapped in chunks that are filled in place; the next chunk is mapped when one is full
+ * and the file is truncated to the written length when it is closed.  The truncate fails while the file is still
+ * mapped on Windows, so mapped mode is meant for Unix hosts.
+ *
+ * The file is synced to disk according to the sync policy: never, once when the file is closed, or every N data
+ * blocks so that several blocks share one sync.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroFileChannelOutputStream extends OutputStream implements AvroBlockListener {
+
+  /** The size of the regions mapped in mapped mode */
+  public static final int MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  private final RandomAccessFile file;
+
+  private final FileChannel channel;
+
+  private final boolean mapped;
+
+  private final boolean syncOnClose;
+
+  private final int syncBlocks;
+
+  private ByteBuffer buffer;
+
+  /** The file position of the start of the buffer */
+  private long bufferPosition;
+
+  private int blocks;
+
+  private boolean closed;
+
+  /**
+   * Open the file, truncating it.
+   *
+   * @see #AvroFileChannelOutputStream(File, boolean, boolean, int, boolean, int)
+   */
+  public AvroFileChannelOutputStream( File file, boolean mapped, int bufferSize, boolean syncOnClose,
+                                      int syncBlocks ) throws IOException {
+    this( file, false, mapped, bufferSize, syncOnClose, syncBlocks );
+  }
+
+  /**
+   * Open the file.
+   *
+   * @param file The local file.
+   * @param append Whether to write after the existing content of the file instead of truncating it.
+   * @param mapped Whether to write through a memory-mapped region instead of a direct buffer.
+   * @param bufferSize The size of the direct buffer in buffered mode.
+   * @param syncOnClose Whether to sync the file to disk when it is closed.
+   * @param syncBlocks Sync the file to disk every this many data blocks, 0 to not sync while writing.
+   * @throws IOException if the file can not be opened.
+   */
+  public AvroFileChannelOutputStream( File file, boolean append, boolean mapped, int bufferSize,
+                                      boolean syncOnClose, int syncBlocks ) throws IOException {
+    this.file = new RandomAccessFile( file, "rw" );
+    this.channel = this.file.getChannel();
+    this.mapped = mapped;
+    this.syncOnClose = syncOnClose;
+    this.syncBlocks = syncBlocks;
+    try {
+      if ( append ) {
+        bufferPosition = channel.size();
+        channel.position( bufferPosition );
+      } else {
+        channel.truncate( 0 );
+      }
+      if ( mapped ) {
+        buffer = channel.map( FileChannel.MapMode.READ_WRITE, bufferPosition, MAP_CHUNK_SIZE );
+      } else {
+        buffer = ByteBuffer.allocateDirect( bufferSize );
+      }
+    } catch ( IOException e ) {
+      this.file.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void write( int b ) throws IOException {
+    if ( !buffer.hasRemaining() ) {
+      nextBuffer();
+    }
+    buffer.put( (byte) b );
+  }
+
+  @Override
+  public void write( byte[] b, int off, int len ) throws IOException {
+    while ( len > 0 ) {
+      if ( !buffer.hasRemaining() ) {
+        nextBuffer();
+      }
+      int n = Math.min( len, buffer.remaining() );
+      buffer.put( b, off, n );
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Write out the full buffer, or map the next chunk of the file.
+   */
+  private void nextBuffer() throws IOException {
+    if ( closed ) {
+      throw new IOException( "The Avro file is closed." );
+    }
+    if ( mapped ) {
+      if ( syncOnClose || syncBlocks > 0 ) {
+        ( (MappedByteBuffer) buffer ).force();
+      }
+      bufferPosition += buffer.position();
+      buffer = channel.map( FileChannel.MapMode.READ_WRITE, bufferPosition, MAP_CHUNK_SIZE );
+    } else {
+      writeBuffer();
+    }
+  }
+
+  private void writeBuffer() throws IOException {
+    buffer.flip();
+    while ( buffer.hasRemaining() ) {
+      channel.write( buffer );
+    }
+    buffer.clear();
+  }
+
+  public void blockWritten() throws IOException {
+    if ( syncBlocks > 0 && ++blocks >= syncBlocks ) {
+      blocks = 0;
+      sync();
+    }
+  }
+
+  /**
+   * Write out what is buffered and force it to disk.
+   */
+  private void sync() throws IOException {
+    if ( mapped ) {
+      ( (MappedByteBuffer) buffer ).force();
+    } else {
+      writeBuffer();
+      channel.force( false );
+    }
+  }
+
+  /**
+   * Write out the buffer.  Mapped data is left to the operating system until the file is synced.
+   */
+  @Override
+  public void flush() throws IOException {
+    if ( !mapped && !closed ) {
+      writeBuffer();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if ( closed ) {
+      return;
+    }
+    closed = true;
+    try {
+      if ( syncOnClose || syncBlocks > 0 ) {
+        sync();
+      } else if ( !mapped ) {
+        writeBuffer();
+      }
+      if ( mapped ) {
+        channel.truncate( bufferPosition + buffer.position() );
+      }
+    } finally {
+      buffer = null;
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+
+import java.io.IOException;
+
+/**
+ * A schema registry stand-in backed by a folder, for offline use and testing.
+ *
+ * The folder holds one folder per subject with one schema file per id, for example
+ * registry/orders-value/42.avsc.  A schema matches an id when both have the same Parsing Canonical Form fingerprint,
+ * so docs, defaults and properties may differ like they may in a real registry.  The folder can be any VFS URL.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroFileSchemaRegistry implements AvroSchemaRegistry {
+
+  private static final String SCHEMA_EXTENSION = ".avsc";
+
+  private String folder;
+
+  private VariableSpace space;
+
+  public void init( String url, VariableSpace space ) throws KettleException {
+    String resolved = space.environmentSubstitute( url );
+    if ( Const.isEmpty( resolved ) ) {
+      throw new KettleException( "The schema registry folder is not set." );
+    }
+    while ( resolved.length() > 1 && ( resolved.endsWith( "/" ) || resolved.endsWith( "\\" ) ) ) {
+      resolved = resolved.substring( 0, resolved.length() - 1 );
+    }
+    this.folder = resolved;
+    this.space = space;
+  }
+
+  public int getSchemaId( String subject, Schema schema ) throws KettleException {
+    long fingerprint = AvroSchemaFingerprint.parsingFingerprint64( schema );
+    String subjectFolder = folder + "/" + subject;
+    try {
+      FileObject subjectObject = KettleVFS.getFileObject( subjectFolder, space );
+      if ( !subjectObject.exists() ) {
+        throw new KettleException( "Subject " + subject + " does not exist in schema registry " + folder + "." );
+      }
+      for ( FileObject child : subjectObject.getChildren() ) {
+        String name = child.getName().getBaseName();
+        if ( !name.endsWith( SCHEMA_EXTENSION ) ) {
+          continue;
+        }
+        int id;
+        try {
+          id = Integer.parseInt( name.substring( 0, name.length() - SCHEMA_EXTENSION.length() ) );
+        } catch ( NumberFormatException e ) {
+          continue;
+        }
+        Schema registered = AvroSchemaCache.getSchema( child.getName().getURI(), space );
+        if ( AvroSchemaFingerprint.parsingFingerprint64( registered ) == fingerprint ) {
+          return id;
+        }
+      }
+    } catch ( IOException e ) {
+      throw new KettleException( "Could not read schema registry folder " + subjectFolder, e );
+    }
+    throw new KettleException( "Schema " + schema.getFullName() + " is not registered under subject " + subject
+      + " in schema registry " + folder + "." );
+  }
+}
@@ -0,0 +1,150 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.util.Utf8;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Base class of the row writers generated by AvroRowWriterCompiler.
+ *
+ * The generated subclass implements writeRow as straight-line code for one record plan.  The value metadata and
+ * enum schemas it reads are bound per instance, in the order of AvroRecordPlan.getValueNodes().
+ *
+ * @author Inquidia Consulting
+ */
+public abstract class AvroGeneratedRowWriter implements DatumWriter<Object[]> {
+
+  protected ValueMetaInterface[] valueMetas;
+
+  protected Schema[] schemas;
+
+  protected String[] fieldNames;
+
+  protected AvroRecordPlan.ValueNode[] nodes;
+
+  private AvroBinaryStringReader binaryStrings;
+
+  private final byte[] decimalBuffer = new byte[8];
+
+  /**
+   * Bind the writer to the row metadata of the rows it will write.
+   *
+   * @param plan The plan the writer was generated for.
+   * @param rowMeta The row metadata of the input rows.
+   */
+  public void bind( AvroRecordPlan plan, RowMetaInterface rowMeta ) {
+    List<AvroRecordPlan.ValueNode> nodes = plan.getValueNodes();
+    valueMetas = new ValueMetaInterface[nodes.size()];
+    schemas = new Schema[nodes.size()];
+    fieldNames = new String[nodes.size()];
+    this.nodes = nodes.toArray( new AvroRecordPlan.ValueNode[nodes.size()] );
+    binaryStrings = new AvroBinaryStringReader( rowMeta );
+    for ( int i = 0; i < nodes.size(); i++ ) {
+      AvroRecordPlan.ValueNode node = nodes.get( i );
+      valueMetas[i] = rowMeta.getValueMeta( node.inputIndex );
+      schemas[i] = node.schema;
+      fieldNames[i] = node.field.name();
+    }
+  }
+
+  /**
+   * The schema is fixed by the record plan.
+   */
+  public void setSchema( Schema schema ) {
+  }
+
+  public void write( Object[] r, Encoder out ) throws IOException {
+    try {
+      writeRow( r, out );
+    } catch ( KettleValueException e ) {
+      throw new IOException( e.getMessage(), e );
+    }
+  }
+
+  protected abstract void writeRow( Object[] r, Encoder out ) throws IOException, KettleValueException;
+
+  protected Long integerValue( int node, Object value ) throws KettleValueException {
+    return binaryStrings.getInteger( nodes[node].inputIndex, valueMetas[node], value );
+  }
+
+  protected Double numberValue( int node, Object value ) throws KettleValueException {
+    return binaryStrings.getNumber( nodes[node].inputIndex, valueMetas[node], value );
+  }
+
+  /**
+   * @return the UTF-8 bytes of a binary string as a Utf8, or the String value.
+   */
+  protected CharSequence stringValue( int node, Object value ) throws KettleValueException {
+    if ( binaryStrings.isString( nodes[node].inputIndex ) ) {
+      byte[] utf8 = binaryStrings.getUtf8( valueMetas[node], value );
+      if ( utf8 != null ) {
+        return new Utf8( utf8 );
+      }
+    }
+    return valueMetas[node].getString( value );
+  }
+
+  protected void nullValue( int node ) {
+    throw new AvroTypeException( "Field " + fieldNames[node] + " is not nullable but the value is null." );
+  }
+
+  protected int enumOrdinal( int node, String symbol ) {
+    Schema schema = schemas[node];
+    if ( !schema.hasEnumSymbol( symbol ) ) {
+      throw new AvroTypeException( "Value " + symbol + " of field " + fieldNames[node]
+        + " is not a symbol of enum " + schema.getFullName() + "." );
+    }
+    return schema.getEnumOrdinal( symbol );
+  }
+
+  protected void writeDecimal( int node, BigDecimal value, Encoder out ) throws IOException {
+    AvroLogicalTypes.writeDecimal( nodes[node].toDecimal( value ), decimalBuffer, out );
+  }
+
+  protected long timeValue( int node, Date value ) {
+    return nodes[node].toTime( value );
+  }
+
+  protected byte[] fixedValue( int node, byte[] value ) {
+    Schema schema = schemas[node];
+    if ( value.length != schema.getFixedSize() ) {
+      throw new AvroTypeException( "Value of field " + fieldNames[node] + " has " + value.length
+        + " bytes but fixed " + schema.getFullName() + " has a size of " + schema.getFixedSize() + "." );
+    }
+    return value;
+  }
+}
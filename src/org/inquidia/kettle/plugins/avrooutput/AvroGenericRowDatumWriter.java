@@ -0,0 +1,103 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.IOException;
+
+/**
+ * Writes Kettle rows by building a generic Avro record for each row and writing it with Avro's GenericDatumWriter.
+ *
+ * When a reuse record is given the same record tree is overwritten for every row instead of allocating new records.
+ * When a row group is given the records are built from the group, with one array element per row.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroGenericRowDatumWriter implements DatumWriter<Object[]> {
+
+  private final AvroRecordPlan plan;
+
+  private final RowMetaInterface rowMeta;
+
+  private final GenericData.Record reuseRecord;
+
+  private final AvroRowGroup group;
+
+  private final GenericDatumWriter<GenericRecord> recordWriter;
+
+  public AvroGenericRowDatumWriter( Schema schema, AvroRecordPlan plan, RowMetaInterface rowMeta ) {
+    this( schema, plan, rowMeta, null );
+  }
+
+  /**
+   * @param reuseRecord A record tree from AvroRecordPlan.newRecordTree to overwrite for every row, or null to
+   *                    build a new record for every row.
+   */
+  public AvroGenericRowDatumWriter( Schema schema, AvroRecordPlan plan, RowMetaInterface rowMeta,
+                                    GenericData.Record reuseRecord ) {
+    this( schema, plan, rowMeta, reuseRecord, null );
+  }
+
+  /**
+   * @param group The group of rows the arrays are built from, null to build the arrays from the row alone.
+   */
+  public AvroGenericRowDatumWriter( Schema schema, AvroRecordPlan plan, RowMetaInterface rowMeta,
+                                    GenericData.Record reuseRecord, AvroRowGroup group ) {
+    this.plan = plan;
+    this.group = group;
+    this.rowMeta = rowMeta;
+    this.reuseRecord = reuseRecord;
+    this.recordWriter = new GenericDatumWriter<GenericRecord>( schema );
+  }
+
+  public void setSchema( Schema schema ) {
+    recordWriter.setSchema( schema );
+  }
+
+  public void write( Object[] r, Encoder out ) throws IOException {
+    GenericRecord record;
+    try {
+      if ( group != null ) {
+        record = reuseRecord != null
+          ? plan.fillRecord( reuseRecord, rowMeta, group ) : plan.buildRecord( rowMeta, group );
+      } else if ( reuseRecord != null ) {
+        record = plan.fillRecord( reuseRecord, rowMeta, r );
+      } else {
+        record = plan.buildRecord( rowMeta, r );
+      }
+    } catch ( KettleException e ) {
+      throw new IOException( e.getMessage(), e );
+    }
+    recordWriter.write( record, out );
+  }
+}
@@ -0,0 +1,122 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.io.EncoderFactory;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowDataUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Writes each record as Avro JSON to a String field, or a Binary field of UTF-8 bytes, added to the row.
+ *
+ * Rows are written by AvroJsonRowWriter straight into a reused UTF-8 buffer.  When the Generic records serializer
+ * is selected the records are written with Avro's JsonEncoder instead.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroJsonFieldSink implements AvroSink {
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private final AvroOutputMeta meta;
+
+  private final AvroOutputData data;
+
+  private boolean binaryOutput;
+
+  public AvroJsonFieldSink( AvroOutput step ) {
+    this.meta = step.meta;
+    this.data = step.data;
+  }
+
+  public void open() throws KettleException {
+    binaryOutput = meta.isJsonBinaryOutput();
+    if ( meta.getSerializerTypeId() == AvroOutputMeta.SERIALIZER_TYPE_GENERIC ) {
+      try {
+        data.encoderFactory = new EncoderFactory();
+        data.byteArrayOutputStream = new ByteArrayOutputStream();
+        data.jsonEncoder = data.encoderFactory.jsonEncoder( data.avroSchema, data.byteArrayOutputStream );
+      } catch ( IOException e ) {
+        throw new KettleException( "Could not open Avro writer", e );
+      }
+    } else {
+      data.messageBuffer = new AvroMessageBuffer();
+      if ( data.recordPlan != null ) {
+        data.jsonRowWriter = new AvroJsonRowWriter( data.recordPlan, data.outputRowMeta, data.rowGroup );
+      }
+    }
+  }
+
+  public Object[] writeRecord( Object[] r ) throws KettleException {
+    Object message;
+    if ( data.jsonRowWriter != null ) {
+      try {
+        data.messageBuffer.reset();
+        data.jsonRowWriter.write( r, data.messageBuffer );
+      } catch ( KettleValueException e ) {
+        throw new KettleException( e );
+      }
+      if ( binaryOutput ) {
+        message = data.messageBuffer.toByteArray();
+      } else {
+        message = new String( data.messageBuffer.getBuffer(), 0, data.messageBuffer.size(), UTF8 );
+      }
+    } else {
+      try {
+        data.datumWriter.write( r, data.jsonEncoder );
+        data.jsonEncoder.flush();
+      } catch ( IOException e ) {
+        throw new KettleException( e );
+      }
+      byte[] bytes = data.byteArrayOutputStream.toByteArray();
+      data.byteArrayOutputStream.reset();
+      message = binaryOutput ? bytes : new String( bytes, UTF8 );
+    }
+    return RowDataUtil.addValueData( r, data.outputRowMeta.size() - 1, message );
+  }
+
+  public void flush() throws KettleException {
+  }
+
+  public void close() throws KettleException {
+    try {
+      data.jsonEncoder = null;
+      data.jsonRowWriter = null;
+      data.messageBuffer = null;
+      if ( data.byteArrayOutputStream != null ) {
+        data.byteArrayOutputStream.close();
+        data.byteArrayOutputStream = null;
+      }
+      data.encoderFactory = null;
+    } catch ( IOException e ) {
+      throw new KettleException( "Error cleaning up step", e );
+    }
+  }
+}
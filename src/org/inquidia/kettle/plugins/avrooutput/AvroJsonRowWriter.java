@@ -0,0 +1,585 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.AvroTypeException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes Kettle rows as Avro JSON, encoded as UTF-8, by walking the compiled record plan.
+ *
+ * The output is the same as Avro's JsonEncoder: records are objects, non-null union values are wrapped in an object
+ * keyed by the branch name and enums are written as their symbol.  The field name and union wrapper bytes are
+ * computed once per record level, so writing a row only encodes the values themselves.  Arrays are written from the
+ * row group, with one element per row of the group.  Maps are objects keyed by the map keys.  Strings with binary
+ * string storage are escaped straight from their UTF-8 bytes.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroJsonRowWriter {
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private static final byte[] NULL = "null".getBytes( UTF8 );
+  private static final byte[] TRUE = "true".getBytes( UTF8 );
+  private static final byte[] FALSE = "false".getBytes( UTF8 );
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes( UTF8 );
+
+  private final RowMetaInterface rowMeta;
+
+  private final RecordWriter root;
+
+  private final AvroRowGroup group;
+
+  private final AvroBinaryStringReader binaryStrings;
+
+  private final char[] digits = new char[20];
+
+  private final byte[] decimalBuffer = new byte[8];
+
+  public AvroJsonRowWriter( AvroRecordPlan plan, RowMetaInterface rowMeta ) {
+    this( plan, rowMeta, null );
+  }
+
+  /**
+   * @param group The group of rows the arrays are written from, null to write the arrays from the row alone.
+   */
+  public AvroJsonRowWriter( AvroRecordPlan plan, RowMetaInterface rowMeta, AvroRowGroup group ) {
+    this.rowMeta = rowMeta;
+    this.root = new RecordWriter( plan.getRoot() );
+    this.group = group;
+    this.binaryStrings = new AvroBinaryStringReader( rowMeta );
+  }
+
+  /**
+   * Write a row as one JSON object.
+   *
+   * @param r The input row.
+   * @param out The buffer to write the UTF-8 bytes to.
+   * @throws KettleValueException if a value can not be converted.
+   */
+  public void write( Object[] r, AvroMessageBuffer out ) throws KettleValueException {
+    writeRecord( root, r, out );
+  }
+
+  private void writeRecord( RecordWriter record, Object[] r, AvroMessageBuffer out ) throws KettleValueException {
+    AvroRecordPlan.Node[] slots = record.node.slots;
+    if ( slots.length == 0 ) {
+      out.write( '{' );
+    }
+    for ( int i = 0; i < slots.length; i++ ) {
+      out.write( record.fieldPrefixes[i] );
+      AvroRecordPlan.Node slot = slots[i];
+      if ( slot == null ) {
+        out.write( NULL );
+      } else if ( slot instanceof AvroRecordPlan.ValueNode ) {
+        writeValue( (AvroRecordPlan.ValueNode) slot, record.unionPrefixes[i], r, out );
+      } else if ( slot instanceof AvroRecordPlan.ArrayNode ) {
+        openUnion( record.unionPrefixes[i], out );
+        writeArray( record.arrays[i], r, out );
+        closeUnion( record.unionPrefixes[i], out );
+      } else if ( slot instanceof AvroRecordPlan.MapNode ) {
+        openUnion( record.unionPrefixes[i], out );
+        writeMap( record.maps[i], r, out );
+        closeUnion( record.unionPrefixes[i], out );
+      } else {
+        if ( record.unionPrefixes[i] != null ) {
+          out.write( record.unionPrefixes[i] );
+          writeRecord( record.records[i], r, out );
+          out.write( '}' );
+        } else {
+          writeRecord( record.records[i], r, out );
+        }
+      }
+    }
+    out.write( '}' );
+  }
+
+  private void writeArray( ArrayWriter array, Object[] r, AvroMessageBuffer out ) throws KettleValueException {
+    List<Object[]> rows = group != null ? group.getRows() : Collections.singletonList( r );
+    boolean first = true;
+    out.write( '[' );
+    for ( Object[] row : rows ) {
+      if ( array.node.hasElement( rowMeta, row ) ) {
+        if ( !first ) {
+          out.write( ',' );
+        }
+        first = false;
+        if ( array.record != null ) {
+          openUnion( array.elementUnionPrefix, out );
+          writeRecord( array.record, row, out );
+          closeUnion( array.elementUnionPrefix, out );
+        } else {
+          writeValue( (AvroRecordPlan.ValueNode) array.node.element, array.elementUnionPrefix, row, out );
+        }
+      }
+    }
+    out.write( ']' );
+  }
+
+  private void writeMap( MapWriter map, Object[] r, AvroMessageBuffer out ) throws KettleValueException {
+    AvroRecordPlan.MapNode node = map.node;
+    boolean first = true;
+    out.write( '{' );
+    if ( node.value == null ) {
+      for ( int k = 0; k < node.keys.length; k++ ) {
+        if ( node.hasValue( rowMeta, r, k ) ) {
+          if ( !first ) {
+            out.write( ',' );
+          }
+          first = false;
+          out.write( map.keyPrefixes[k] );
+          writeValue( node.values[k], map.valueUnionPrefixes[k], r, out );
+        }
+      }
+    } else {
+      List<Object[]> rows = group != null ? group.getRows() : Collections.singletonList( r );
+      for ( Map.Entry<String, Object[]> entry : node.getEntries( rowMeta, rows ).entrySet() ) {
+        if ( !first ) {
+          out.write( ',' );
+        }
+        first = false;
+        writeString( entry.getKey(), out );
+        out.write( ':' );
+        writeValue( node.value, map.valueUnionPrefix, entry.getValue(), out );
+      }
+    }
+    out.write( '}' );
+  }
+
+  private void writeValue( AvroRecordPlan.ValueNode node, byte[] unionPrefix, Object[] r, AvroMessageBuffer out )
+    throws KettleValueException {
+    ValueMetaInterface valueMeta = rowMeta.getValueMeta( node.inputIndex );
+    Object value = r[node.inputIndex];
+
+    switch ( node.avroType ) {
+      case AvroOutputField.AVRO_TYPE_INT:
+      case AvroOutputField.AVRO_TYPE_LONG:
+        Long longValue = binaryStrings.getInteger( node.inputIndex, valueMeta, value );
+        if ( longValue == null ) {
+          writeNull( node, out );
+        } else {
+          openUnion( unionPrefix, out );
+          writeLong( node.avroType == AvroOutputField.AVRO_TYPE_INT ? longValue.intValue() : longValue.longValue(),
+            out );
+          closeUnion( unionPrefix, out );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_FLOAT:
+      case AvroOutputField.AVRO_TYPE_DOUBLE:
+        Double doubleValue = binaryStrings.getNumber( node.inputIndex, valueMeta, value );
+        if ( doubleValue == null ) {
+          writeNull( node, out );
+        } else {
+          openUnion( unionPrefix, out );
+          writeDouble( node.avroType == AvroOutputField.AVRO_TYPE_FLOAT
+            ? doubleValue.floatValue() : doubleValue.doubleValue(), node.avroType == AvroOutputField.AVRO_TYPE_FLOAT,
+            out );
+          closeUnion( unionPrefix, out );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_BOOLEAN:
+        Boolean booleanValue = valueMeta.getBoolean( value );
+        if ( booleanValue == null ) {
+          writeNull( node, out );
+        } else {
+          openUnion( unionPrefix, out );
+          out.write( booleanValue.booleanValue() ? TRUE : FALSE );
+          closeUnion( unionPrefix, out );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_STRING:
+        if ( binaryStrings.isString( node.inputIndex ) ) {
+          byte[] utf8 = binaryStrings.getUtf8( valueMeta, value );
+          if ( utf8 != null ) {
+            openUnion( unionPrefix, out );
+            writeUtf8( utf8, out );
+            closeUnion( unionPrefix, out );
+            break;
+          }
+        }
+        String stringValue = valueMeta.getString( value );
+        if ( stringValue == null ) {
+          writeNull( node, out );
+        } else {
+          openUnion( unionPrefix, out );
+          writeString( stringValue, out );
+          closeUnion( unionPrefix, out );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_ENUM:
+        String symbol = valueMeta.getString( value );
+        if ( symbol == null ) {
+          writeNull( node, out );
+        } else {
+          if ( !node.schema.hasEnumSymbol( symbol ) ) {
+            throw new AvroTypeException( "Value " + symbol + " of field " + node.outputField.getName()
+              + " is not a symbol of enum " + node.schema.getFullName() + "." );
+          }
+          openUnion( unionPrefix, out );
+          writeString( symbol, out );
+          closeUnion( unionPrefix, out );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_BYTES:
+      case AvroOutputField.AVRO_TYPE_FIXED:
+        byte[] bytes = node.getBytes( valueMeta, value );
+        if ( bytes == null ) {
+          writeNull( node, out );
+        } else {
+          openUnion( unionPrefix, out );
+          writeBytes( bytes, 0, bytes.length, out );
+          closeUnion( unionPrefix, out );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_DECIMAL:
+        BigDecimal decimal = node.getDecimal( valueMeta, value );
+        if ( decimal == null ) {
+          writeNull( node, out );
+        } else {
+          openUnion( unionPrefix, out );
+          int length = AvroLogicalTypes.toUnscaledBytes( decimal, decimalBuffer );
+          if ( length >= 0 ) {
+            writeBytes( decimalBuffer, 0, length, out );
+          } else {
+            byte[] unscaled = decimal.unscaledValue().toByteArray();
+            writeBytes( unscaled, 0, unscaled.length, out );
+          }
+          closeUnion( unionPrefix, out );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_DATE:
+      case AvroOutputField.AVRO_TYPE_TIMESTAMP_MILLIS:
+      case AvroOutputField.AVRO_TYPE_TIMESTAMP_MICROS:
+        Date date = node.getDate( valueMeta, value );
+        if ( date == null ) {
+          writeNull( node, out );
+        } else {
+          openUnion( unionPrefix, out );
+          writeLong( node.toTime( date ), out );
+          closeUnion( unionPrefix, out );
+        }
+        break;
+      default:
+        throw new AvroTypeException( "Avro type " + node.outputField.getAvroTypeDesc()
+          + " is not supported for field " + node.outputField.getAvroName() + "." );
+    }
+  }
+
+  private static void openUnion( byte[] unionPrefix, AvroMessageBuffer out ) {
+    if ( unionPrefix != null ) {
+      out.write( unionPrefix );
+    }
+  }
+
+  private static void closeUnion( byte[] unionPrefix, AvroMessageBuffer out ) {
+    if ( unionPrefix != null ) {
+      out.write( '}' );
+    }
+  }
+
+  private static void writeNull( AvroRecordPlan.Node node, AvroMessageBuffer out ) {
+    if ( node.nullIndex < 0 ) {
+      throw new AvroTypeException( "Field " + ( node.field != null ? node.field.name() : "array element" )
+        + " is not nullable but the value is null." );
+    }
+    out.write( NULL );
+  }
+
+  private void writeLong( long value, AvroMessageBuffer out ) {
+    if ( value == Long.MIN_VALUE ) {
+      writeAscii( Long.toString( value ), out );
+      return;
+    }
+    if ( value < 0 ) {
+      out.write( '-' );
+      value = -value;
+    }
+    int pos = digits.length;
+    do {
+      digits[--pos] = (char) ( '0' + ( value % 10 ) );
+      value /= 10;
+    } while ( value != 0 );
+    while ( pos < digits.length ) {
+      out.write( digits[pos++] );
+    }
+  }
+
+  private static void writeAscii( String s, AvroMessageBuffer out ) {
+    for ( int i = 0; i < s.length(); i++ ) {
+      out.write( s.charAt( i ) );
+    }
+  }
+
+  /**
+   * Write a floating point number.  NaN and the infinities are not JSON numbers, they are quoted the way the Jackson
+   * encoder of Avro writes them.
+   */
+  static void writeDouble( double value, boolean isFloat, AvroMessageBuffer out ) {
+    String s = isFloat ? Float.toString( (float) value ) : Double.toString( value );
+    if ( Double.isNaN( value ) || Double.isInfinite( value ) ) {
+      out.write( '"' );
+      writeAscii( s, out );
+      out.write( '"' );
+    } else {
+      writeAscii( s, out );
+    }
+  }
+
+  /**
+   * Write a quoted, escaped JSON string encoded as UTF-8.
+   */
+  static void writeString( String s, AvroMessageBuffer out ) {
+    out.write( '"' );
+    int length = s.length();
+    for ( int i = 0; i < length; i++ ) {
+      char c = s.charAt( i );
+      if ( c < 0x80 ) {
+        if ( c == '"' || c == '\\' ) {
+          out.write( '\\' );
+          out.write( c );
+        } else if ( c < 0x20 ) {
+          writeControl( c, out );
+        } else {
+          out.write( c );
+        }
+      } else if ( c < 0x800 ) {
+        out.write( 0xc0 | ( c >> 6 ) );
+        out.write( 0x80 | ( c & 0x3f ) );
+      } else if ( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+        int codePoint = Character.toCodePoint( c, s.charAt( ++i ) );
+        out.write( 0xf0 | ( codePoint >> 18 ) );
+        out.write( 0x80 | ( ( codePoint >> 12 ) & 0x3f ) );
+        out.write( 0x80 | ( ( codePoint >> 6 ) & 0x3f ) );
+        out.write( 0x80 | ( codePoint & 0x3f ) );
+      } else if ( Character.isSurrogate( c ) ) {
+        // Unpaired surrogates can not be encoded, replace them like the JDK encoder does.
+        out.write( '?' );
+      } else {
+        out.write( 0xe0 | ( c >> 12 ) );
+        out.write( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+        out.write( 0x80 | ( c & 0x3f ) );
+      }
+    }
+    out.write( '"' );
+  }
+
+  /**
+   * Write well formed UTF-8 bytes as a quoted, escaped JSON string.  Only ASCII quotes, backslashes and control
+   * characters are escaped, all other bytes are copied.
+   */
+  static void writeUtf8( byte[] bytes, AvroMessageBuffer out ) {
+    out.write( '"' );
+    for ( int i = 0; i < bytes.length; i++ ) {
+      byte b = bytes[i];
+      if ( b == '"' || b == '\\' ) {
+        out.write( '\\' );
+        out.write( b );
+      } else if ( b >= 0 && b < 0x20 ) {
+        writeControl( (char) b, out );
+      } else {
+        out.write( b );
+      }
+    }
+    out.write( '"' );
+  }
+
+  /**
+   * Write bytes as a quoted JSON string with one character per byte, the ISO-8859-1 mapping Avro uses for bytes and
+   * fixed values, encoded as UTF-8.
+   */
+  static void writeBytes( byte[] bytes, int offset, int length, AvroMessageBuffer out ) {
+    out.write( '"' );
+    for ( int i = offset; i < offset + length; i++ ) {
+      int c = bytes[i] & 0xff;
+      if ( c < 0x80 ) {
+        if ( c == '"' || c == '\\' ) {
+          out.write( '\\' );
+          out.write( c );
+        } else if ( c < 0x20 ) {
+          writeControl( (char) c, out );
+        } else {
+          out.write( c );
+        }
+      } else {
+        out.write( 0xc0 | ( c >> 6 ) );
+        out.write( 0x80 | ( c & 0x3f ) );
+      }
+    }
+    out.write( '"' );
+  }
+
+  private static void writeControl( char c, AvroMessageBuffer out ) {
+    out.write( '\\' );
+    switch ( c ) {
+      case '\n':
+        out.write( 'n' );
+        break;
+      case '\r':
+        out.write( 'r' );
+        break;
+      case '\t':
+        out.write( 't' );
+        break;
+      case '\b':
+        out.write( 'b' );
+        break;
+      case '\f':
+        out.write( 'f' );
+        break;
+      default:
+        out.write( 'u' );
+        out.write( '0' );
+        out.write( '0' );
+        out.write( HEX[c >> 4] );
+        out.write( HEX[c & 0xf] );
+    }
+  }
+
+  /**
+   * The precomputed JSON bytes of a record level.
+   */
+  private static class RecordWriter {
+    final AvroRecordPlan.RecordNode node;
+
+    /** The opening brace or comma, the quoted field name and the colon for each field */
+    final byte[][] fieldPrefixes;
+
+    /** The opening of the union wrapper object for each field written as a union branch, null otherwise */
+    final byte[][] unionPrefixes;
+
+    /** The writers of the nested records by position */
+    final RecordWriter[] records;
+
+    /** The writers of the arrays by position */
+    final ArrayWriter[] arrays;
+
+    /** The writers of the maps by position */
+    final MapWriter[] maps;
+
+    RecordWriter( AvroRecordPlan.RecordNode node ) {
+      this.node = node;
+      int size = node.slots.length;
+      fieldPrefixes = new byte[size][];
+      unionPrefixes = new byte[size][];
+      records = new RecordWriter[size];
+      arrays = new ArrayWriter[size];
+      maps = new MapWriter[size];
+      for ( int i = 0; i < size; i++ ) {
+        AvroMessageBuffer prefix = new AvroMessageBuffer( 32 );
+        prefix.write( i == 0 ? '{' : ',' );
+        writeString( node.schema.getFields().get( i ).name(), prefix );
+        prefix.write( ':' );
+        fieldPrefixes[i] = prefix.toByteArray();
+
+        AvroRecordPlan.Node slot = node.slots[i];
+        if ( slot != null ) {
+          unionPrefixes[i] = getUnionPrefix( slot );
+        }
+        if ( slot instanceof AvroRecordPlan.RecordNode ) {
+          records[i] = new RecordWriter( (AvroRecordPlan.RecordNode) slot );
+        } else if ( slot instanceof AvroRecordPlan.ArrayNode ) {
+          arrays[i] = new ArrayWriter( (AvroRecordPlan.ArrayNode) slot );
+        } else if ( slot instanceof AvroRecordPlan.MapNode ) {
+          maps[i] = new MapWriter( (AvroRecordPlan.MapNode) slot );
+        }
+      }
+    }
+  }
+
+  /**
+   * The precomputed JSON bytes of an array element.
+   */
+  private static class ArrayWriter {
+    final AvroRecordPlan.ArrayNode node;
+
+    /** The opening of the union wrapper object if the element is written as a union branch, null otherwise */
+    final byte[] elementUnionPrefix;
+
+    /** The writer of the element record, null if the element is a value */
+    final RecordWriter record;
+
+    ArrayWriter( AvroRecordPlan.ArrayNode node ) {
+      this.node = node;
+      this.elementUnionPrefix = getUnionPrefix( node.element );
+      this.record = node.element instanceof AvroRecordPlan.RecordNode
+        ? new RecordWriter( (AvroRecordPlan.RecordNode) node.element ) : null;
+    }
+  }
+
+  /**
+   * The precomputed JSON bytes of a map.
+   */
+  private static class MapWriter {
+    final AvroRecordPlan.MapNode node;
+
+    /** The quoted key and the colon for each fixed key */
+    final byte[][] keyPrefixes;
+
+    /** The opening of the union wrapper object for each fixed key written as a union branch, null otherwise */
+    final byte[][] valueUnionPrefixes;
+
+    /** The opening of the union wrapper object if the value field is written as a union branch, null otherwise */
+    final byte[] valueUnionPrefix;
+
+    MapWriter( AvroRecordPlan.MapNode node ) {
+      this.node = node;
+      keyPrefixes = new byte[node.keys.length][];
+      valueUnionPrefixes = new byte[node.keys.length][];
+      for ( int k = 0; k < keyPrefixes.length; k++ ) {
+        AvroMessageBuffer prefix = new AvroMessageBuffer( 32 );
+        writeString( node.keys[k], prefix );
+        prefix.write( ':' );
+        keyPrefixes[k] = prefix.toByteArray();
+        valueUnionPrefixes[k] = getUnionPrefix( node.values[k] );
+      }
+      valueUnionPrefix = getUnionPrefix( node.value );
+    }
+  }
+
+  /**
+   * @return The opening of the union wrapper object if the node is written as a union branch, null otherwise.
+   */
+  private static byte[] getUnionPrefix( AvroRecordPlan.Node node ) {
+    if ( node == null || node.unionIndex < 0 ) {
+      return null;
+    }
+    AvroMessageBuffer union = new AvroMessageBuffer( 32 );
+    union.write( '{' );
+    writeString( node.schema.getFullName(), union );
+    union.write( ':' );
+    return union.toByteArray();
+  }
+}
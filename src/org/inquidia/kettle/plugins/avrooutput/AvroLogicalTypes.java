@@ -0,0 +1,251 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.Encoder;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+/**
+ * Logical type annotations and encodings.
+ *
+ * Avro 1.6.2 has no logical types, so the annotations are written as schema properties and the values are encoded
+ * here the way the Avro specification defines them.  The 1.6.2 parser only keeps textual properties, so numeric
+ * properties such as the precision of a decimal are quoted by parse before the schema is parsed, written as strings
+ * by Schema.toString and unquoted by toJson before a schema is written out.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroLogicalTypes {
+
+  public static final String LOGICAL_TYPE = "logicalType";
+
+  public static final String DECIMAL = "decimal";
+
+  public static final String PRECISION = "precision";
+
+  public static final String SCALE = "scale";
+
+  public static final String DATE = "date";
+
+  public static final String TIMESTAMP_MILLIS = "timestamp-millis";
+
+  public static final String TIMESTAMP_MICROS = "timestamp-micros";
+
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+  private static final Pattern NUMERIC_PROPS =
+    Pattern.compile( "\"(" + PRECISION + "|" + SCALE + ")\"(\\s*):(\\s*)\"(\\d+)\"" );
+
+  /**
+   * Create a bytes schema with the decimal annotation.
+   *
+   * @param precision The number of digits of the unscaled value.
+   * @param scale The number of digits after the decimal point.
+   * @return The schema
+   */
+  public static Schema createDecimal( int precision, int scale ) {
+    Schema schema = Schema.create( Schema.Type.BYTES );
+    schema.addProp( LOGICAL_TYPE, DECIMAL );
+    schema.addProp( PRECISION, Integer.toString( precision ) );
+    schema.addProp( SCALE, Integer.toString( scale ) );
+    return schema;
+  }
+
+  /**
+   * Create a schema with a logical type annotation.
+   *
+   * @param type The underlying type.
+   * @param logicalType The logical type.
+   * @return The schema
+   */
+  public static Schema create( Schema.Type type, String logicalType ) {
+    Schema schema = Schema.create( type );
+    schema.addProp( LOGICAL_TYPE, logicalType );
+    return schema;
+  }
+
+  /**
+   * @return true if the schema has the logical type.
+   */
+  public static boolean is( Schema schema, String logicalType ) {
+    return logicalType.equals( schema.getProp( LOGICAL_TYPE ) );
+  }
+
+  /**
+   * @return The value of a numeric schema property or the default value if it is not set.
+   */
+  public static int getIntProp( Schema schema, String name, int defaultValue ) {
+    String value = schema.getProp( name );
+    if ( value == null ) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt( value.trim() );
+    } catch ( NumberFormatException e ) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Parse a schema, keeping the precision and scale of decimals.  Avro 1.6.2 drops numeric schema properties, so the
+   * numeric precision and scale of the decimal schemas are turned into strings before the schema is parsed.
+   *
+   * @param json The JSON of the schema.
+   * @return The schema
+   * @throws IOException if the JSON can not be read.
+   */
+  public static Schema parse( String json ) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    JsonNode root = mapper.readTree( json );
+    if ( root != null && quoteDecimalProps( root ) ) {
+      json = mapper.writeValueAsString( root );
+    }
+    return new Schema.Parser().parse( json );
+  }
+
+  /**
+   * Turn the numeric precision and scale of the decimal schemas below a JSON node into strings.
+   *
+   * @return true if a property was changed.
+   */
+  private static boolean quoteDecimalProps( JsonNode node ) {
+    boolean changed = false;
+    if ( node.isObject() ) {
+      JsonNode logicalType = node.get( LOGICAL_TYPE );
+      if ( logicalType != null && DECIMAL.equals( logicalType.getTextValue() ) ) {
+        for ( String name : new String[] { PRECISION, SCALE } ) {
+          JsonNode value = node.get( name );
+          if ( value != null && value.isIntegralNumber() ) {
+            ( (ObjectNode) node ).put( name, Integer.toString( value.getIntValue() ) );
+            changed = true;
+          }
+        }
+      }
+    }
+    for ( Iterator<JsonNode> children = node.getElements(); children.hasNext(); ) {
+      changed |= quoteDecimalProps( children.next() );
+    }
+    return changed;
+  }
+
+  /**
+   * The JSON of a schema with the numeric logical type properties written as numbers.
+   *
+   * @param schema The schema.
+   * @param pretty Whether to indent the JSON.
+   * @return The JSON
+   */
+  public static String toJson( Schema schema, boolean pretty ) {
+    return NUMERIC_PROPS.matcher( schema.toString( pretty ) ).replaceAll( "\"$1\"$2:$3$4" );
+  }
+
+  /**
+   * Floor division, rounding towards negative infinity so dates before 1970 are not rounded up.
+   */
+  public static long floorDiv( long x, long y ) {
+    long q = x / y;
+    if ( ( x % y != 0 ) && ( ( x ^ y ) < 0 ) ) {
+      q--;
+    }
+    return q;
+  }
+
+  /**
+   * The date logical type: the number of days from 1970-01-01 to the calendar date of the value in the time zone.
+   *
+   * @param date The date.
+   * @param timeZone The time zone the date is in, the default time zone of Kettle.
+   * @return The number of days
+   */
+  public static int toDays( Date date, TimeZone timeZone ) {
+    long millis = date.getTime();
+    return (int) floorDiv( millis + timeZone.getOffset( millis ), MILLIS_PER_DAY );
+  }
+
+  /**
+   * The timestamp-micros logical type: the number of microseconds from the epoch.  The nanoseconds of a Kettle
+   * Timestamp are kept down to the microsecond.
+   *
+   * @param date The date or timestamp.
+   * @return The number of microseconds
+   */
+  public static long toMicros( Date date ) {
+    if ( date instanceof Timestamp ) {
+      return floorDiv( date.getTime(), 1000 ) * 1000000L + ( (Timestamp) date ).getNanos() / 1000;
+    }
+    return date.getTime() * 1000L;
+  }
+
+  /**
+   * Write the big endian two's complement bytes of the unscaled value of a decimal into a buffer, if the unscaled
+   * value fits in a long.  This saves the BigInteger and the byte array of BigDecimal.unscaledValue().toByteArray().
+   *
+   * @param decimal The decimal, already at the scale of the schema.
+   * @param buffer A buffer of at least 8 bytes.
+   * @return The number of bytes written, or -1 if the unscaled value does not fit in a long.
+   */
+  public static int toUnscaledBytes( BigDecimal decimal, byte[] buffer ) {
+    if ( decimal.precision() > 18 ) {
+      return -1;
+    }
+    long unscaled = decimal.scale() == 0 ? decimal.longValue() : decimal.movePointRight( decimal.scale() ).longValue();
+    int length = ( 64 - Long.numberOfLeadingZeros( unscaled ^ ( unscaled >> 63 ) ) ) / 8 + 1;
+    for ( int i = length - 1; i >= 0; i-- ) {
+      buffer[i] = (byte) unscaled;
+      unscaled >>= 8;
+    }
+    return length;
+  }
+
+  /**
+   * Write a decimal as Avro bytes.
+   *
+   * @param decimal The decimal, already at the scale of the schema.
+   * @param buffer A buffer of at least 8 bytes for unscaled values that fit in a long.
+   * @param out The encoder.
+   * @throws IOException
+   */
+  public static void writeDecimal( BigDecimal decimal, byte[] buffer, Encoder out ) throws IOException {
+    int length = toUnscaledBytes( decimal, buffer );
+    if ( length >= 0 ) {
+      out.writeBytes( buffer, 0, length );
+    } else {
+      byte[] bytes = decimal.unscaledValue().toByteArray();
+      out.writeBytes( bytes, 0, bytes.length );
+    }
+  }
+}
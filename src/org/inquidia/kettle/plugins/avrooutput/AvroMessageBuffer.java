@@ -0,0 +1,121 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that messages are encoded into.
+ *
+ * Unlike ByteArrayOutputStream the buffer is not synchronized, reset is the only cleanup needed between messages
+ * and the encoded bytes can be read without copying.  The buffer keeps the largest size it has grown to so
+ * steady-state encoding does not allocate.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroMessageBuffer extends OutputStream {
+
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  private byte[] buf;
+
+  private int count;
+
+  public AvroMessageBuffer() {
+    this( DEFAULT_CAPACITY );
+  }
+
+  public AvroMessageBuffer( int capacity ) {
+    buf = new byte[Math.max( capacity, 16 )];
+  }
+
+  private void ensureCapacity( int capacity ) {
+    if ( capacity > buf.length ) {
+      buf = Arrays.copyOf( buf, Math.max( buf.length << 1, capacity ) );
+    }
+  }
+
+  @Override
+  public void write( int b ) {
+    ensureCapacity( count + 1 );
+    buf[count++] = (byte) b;
+  }
+
+  @Override
+  public void write( byte[] b ) {
+    write( b, 0, b.length );
+  }
+
+  @Override
+  public void write( byte[] b, int off, int len ) {
+    ensureCapacity( count + len );
+    System.arraycopy( b, off, buf, count, len );
+    count += len;
+  }
+
+  /**
+   * Make room for writing directly into the internal array.
+   *
+   * @param length The number of bytes that will be written after the current end of the buffer.
+   * @return The internal array, with at least length bytes free after size().
+   */
+  public byte[] ensureFree( int length ) {
+    ensureCapacity( count + length );
+    return buf;
+  }
+
+  /**
+   * Set the size after writing directly into the array returned by ensureFree.
+   */
+  public void setSize( int size ) {
+    count = size;
+  }
+
+  /**
+   * Discard the current message.  The capacity is kept.
+   */
+  public void reset() {
+    count = 0;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @return The internal array.  Only the first size() bytes are part of the message.
+   */
+  public byte[] getBuffer() {
+    return buf;
+  }
+
+  /**
+   * @return A copy of the message of exactly size() bytes.
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf( buf, count );
+  }
+}
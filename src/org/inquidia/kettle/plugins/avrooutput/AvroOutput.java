@@ -25,22 +25,13 @@
 package org.inquidia.kettle.plugins.avrooutput;
 
 import org.apache.avro.Schema;
-import org.apache.avro.Schema.Field;
-import org.apache.avro.Schema.Type;
-import org.apache.avro.file.CodecFactory;
-import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericDatumWriter;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.GenericData.EnumSymbol;
-import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.io.DatumWriter;
 import org.apache.commons.vfs2.FileObject;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.ResultFile;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleFileException;
-import org.pentaho.di.core.exception.KettleStepException;
-import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.vfs.KettleVFS;
 import org.pentaho.di.i18n.BaseMessages;
@@ -53,12 +44,10 @@ import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -69,78 +58,20 @@ import java.util.List;
 public class AvroOutput extends BaseStep implements StepInterface {
   private static Class<?> PKG = AvroOutputMeta.class; // for i18n purposes, needed by Translator2!!
 
+  /** The minimum size of the direct buffer used to write local files through a file channel */
+  static final int LOCAL_BUFFER_SIZE = 1024 * 1024;
+
   public AvroOutputMeta meta;
 
   public AvroOutputData data;
 
   private AvroOutputField[] avroOutputFields;
-  private int outputFieldIndex;
 
   public AvroOutput( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
                      Trans trans ) {
     super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
   }
 
-  private GenericRecord getRecord( Object[] r, String parentPath, Schema inputSchema ) throws KettleException {
-    String parentName = "";
-    if ( parentPath != null ) {
-      parentName = new String( parentPath );
-    }
-
-    Schema recordSchema = inputSchema;
-
-    List<Schema> unionSchemas = null;
-    if ( inputSchema.getType() == Schema.Type.UNION ) {
-      unionSchemas = inputSchema.getTypes();
-      if ( unionSchemas != null ) {
-        for ( int i = 0; i < unionSchemas.size(); i++ ) {
-          if ( unionSchemas.get( i ).getType() == Schema.Type.RECORD ) {
-            recordSchema = unionSchemas.get( i );
-            break;
-          }
-        }
-      }
-    }
-
-    GenericRecord result = new GenericData.Record( recordSchema );
-    while ( outputFieldIndex < avroOutputFields.length ) {
-
-      AvroOutputField aof = avroOutputFields[outputFieldIndex];
-      String avroName = aof.getAvroName();
-
-      if ( avroName.startsWith( "$." ) ) {
-        avroName = avroName.substring( 2 );
-      }
-      if ( parentName == null || parentName.length() == 0 || avroName.startsWith( parentName + "." ) ) {
-        if ( parentName != null && parentName.length() > 0 ) {
-          avroName = avroName.substring( parentName.length() + 1 );
-        }
-        if ( avroName.contains( "." ) ) {
-          String currentAvroPath = avroName.substring( 0, avroName.indexOf( "." ) );
-          Schema childSchema = recordSchema.getField( currentAvroPath ).schema();
-          String childPath = parentName + "." + currentAvroPath;
-          if ( parentName == null || parentName.length() == 0 ) {
-            childPath = currentAvroPath;
-          }
-
-          GenericRecord fieldRecord = getRecord( r, childPath, childSchema );
-          result.put( currentAvroPath, fieldRecord );
-        } else {
-          Field avroField =  recordSchema.getField(avroName);
-          Object value = getValue( r, meta.getOutputFields()[outputFieldIndex], data.fieldnrs[outputFieldIndex] , avroField);
-          if ( value != null ) {
-            result.put( avroName, value );
-          }
-          outputFieldIndex++;
-        }
-      } else {
-        break;
-      }
-    }
-    return result;
-  }
-
-
   public Schema createAvroSchema( List<AvroOutputField> avroFields, String parentPath ) throws KettleException {
     //Get standard schema stuff
     String doc = meta.getDoc();
@@ -159,7 +90,7 @@ public class AvroOutput extends BaseStep implements StepInterface {
     // If the parent path is not empty the doc and recordname should not be the default
     if ( !parentPath.isEmpty() ) {
       doc = "Auto generated for path " + parentPath;
-      recordName = parentPath.replaceAll( "[^A-Za-z0-9\\_]", "_" );
+      recordName = parentPath.replace( "[]", "" ).replaceAll( "[^A-Za-z0-9\\_]", "_" );
     }
 
     //Create the result schema
@@ -219,7 +150,13 @@ public class AvroOutput extends BaseStep implements StepInterface {
           }
           subPath = subPath.substring( 0, subPath.length() - 1 );
 
+          // A path segment ending in [] is an array of the sub records.
+          String subName = finalName.substring( 0, finalName.indexOf( "." ) );
           Schema subSchema = createAvroSchema( subFields, subPath );
+          if ( subName.endsWith( "[]" ) ) {
+            subName = subName.substring( 0, subName.length() - 2 );
+            subSchema = Schema.createArray( subSchema );
+          }
           Schema outSchema = subSchema;
           if ( nullable ) {
             Schema nullSchema = Schema.create( Schema.Type.NULL );
@@ -229,11 +166,46 @@ public class AvroOutput extends BaseStep implements StepInterface {
             Schema unionSchema = Schema.createUnion( unionList );
             outSchema = unionSchema;
           }
-          Schema.Field schemaField = new Schema.Field( finalName.substring( 0, finalName.indexOf( "." ) )
-            , outSchema, null, null );
+          Schema.Field schemaField = new Schema.Field( subName, outSchema, null, null );
           resultFields.add( schemaField );
         } else { //Is not a sub field create the field.
-          Schema fieldSchema = Schema.create( field.getAvroSchemaType() );
+          Schema fieldSchema;
+          if ( finalName.indexOf( "{" ) > 0 && finalName.endsWith( "}" ) ) {
+            // All paths of a map make up one map field, with the values typed by the fields that are not the key.
+            String mapPath = avroName.substring( 0, avroName.indexOf( "{" ) + 1 );
+            finalName = finalName.substring( 0, finalName.indexOf( "{" ) );
+            AvroOutputField valueField = avroName.endsWith( "{" + AvroRecordPlan.MAP_KEY + "}" ) ? null : field;
+            for ( int e = i + 1; e < avroFields.size(); e++ ) {
+              AvroOutputField candidate = avroFields.get( e );
+              String candidateName = candidate != null ? candidate.getAvroName() : "";
+              if ( candidateName.startsWith( "$." ) ) {
+                candidateName = candidateName.substring( 2 );
+              }
+              if ( candidateName.startsWith( mapPath ) ) {
+                if ( !candidateName.endsWith( "{" + AvroRecordPlan.MAP_KEY + "}" ) ) {
+                  if ( valueField == null ) {
+                    valueField = candidate;
+                  } else if ( valueField.getAvroType() != candidate.getAvroType() ) {
+                    throw new KettleException( "All values of map " + avroName.substring( 0, mapPath.length() - 1 )
+                      + " must have the same Avro type." );
+                  }
+                }
+                avroFields.remove( e );
+                e--;
+              }
+            }
+            if ( valueField == null ) {
+              throw new KettleException( "Map " + avroName.substring( 0, mapPath.length() - 1 )
+                + " has no value field." );
+            }
+            fieldSchema = Schema.createMap( createValueSchema( valueField, namespace ) );
+          } else {
+            fieldSchema = createValueSchema( field, namespace );
+          }
+          if ( finalName.endsWith( "[]" ) ) {
+            finalName = finalName.substring( 0, finalName.length() - 2 );
+            fieldSchema = Schema.createArray( fieldSchema );
+          }
           Schema outSchema;
           if ( field.getNullable() ) {
             Schema nullSchema = Schema.create( Schema.Type.NULL );
@@ -255,6 +227,54 @@ public class AvroOutput extends BaseStep implements StepInterface {
     return result;
   }
 
+  /**
+   * Create the schema of the values of a field.  Fixed fields take their size from the length of the stream field
+   * and are named after the Avro path.  Decimal fields take their precision and scale from the field, or from the
+   * length and precision of the stream field.  Date and timestamp fields are annotated with their logical type.
+   *
+   * @param field The output field.
+   * @param namespace The namespace of the named schemas.
+   * @return The value schema
+   * @throws KettleException if the type is not supported or the size of a fixed or decimal field is not known.
+   */
+  private Schema createValueSchema( AvroOutputField field, String namespace ) throws KettleException {
+    if ( field.getAvroType() == AvroOutputField.AVRO_TYPE_DECIMAL ) {
+      ValueMetaInterface valueMeta =
+        getInputRowMeta() != null ? getInputRowMeta().searchValueMeta( field.getName() ) : null;
+      int precision = field.getPrecision() > 0 ? field.getPrecision() : valueMeta != null ? valueMeta.getLength() : -1;
+      if ( precision <= 0 ) {
+        throw new KettleException( "Can not create the schema of Decimal field " + field.getName()
+          + ", set the precision of the field or the length of the stream field." );
+      }
+      int scale = field.getScale() >= 0 ? field.getScale()
+        : valueMeta != null && valueMeta.getPrecision() > 0 ? valueMeta.getPrecision() : 0;
+      return AvroLogicalTypes.createDecimal( precision, scale );
+    }
+    if ( field.getAvroType() == AvroOutputField.AVRO_TYPE_FIXED ) {
+      ValueMetaInterface valueMeta =
+        getInputRowMeta() != null ? getInputRowMeta().searchValueMeta( field.getName() ) : null;
+      if ( valueMeta == null || valueMeta.getLength() <= 0 ) {
+        throw new KettleException( "Can not create the schema of Fixed field " + field.getName()
+          + ", the stream field has no length." );
+      }
+      String name = field.getAvroName();
+      if ( name.startsWith( "$." ) ) {
+        name = name.substring( 2 );
+      }
+      name = name.replaceAll( "\\{.*\\}$", "" ).replace( "[]", "" ).replaceAll( "[^A-Za-z0-9\\_]", "_" );
+      return Schema.createFixed( name, null, namespace, valueMeta.getLength() );
+    }
+    switch ( field.getAvroType() ) {
+      case AvroOutputField.AVRO_TYPE_DATE:
+        return AvroLogicalTypes.create( Schema.Type.INT, AvroLogicalTypes.DATE );
+      case AvroOutputField.AVRO_TYPE_TIMESTAMP_MILLIS:
+        return AvroLogicalTypes.create( Schema.Type.LONG, AvroLogicalTypes.TIMESTAMP_MILLIS );
+      case AvroOutputField.AVRO_TYPE_TIMESTAMP_MICROS:
+        return AvroLogicalTypes.create( Schema.Type.LONG, AvroLogicalTypes.TIMESTAMP_MICROS );
+      default:
+        return Schema.create( field.getAvroSchemaType() );
+    }
+  }
 
   public void writeSchemaFile() throws KettleException {
     List<AvroOutputField> fields = new ArrayList<AvroOutputField>();
@@ -272,7 +292,8 @@ public class AvroOutput extends BaseStep implements StepInterface {
         logDetailed( "Writing schema file." );
       }
       try {
-        String schemaFileName = buildFilename( environmentSubstitute( meta.getSchemaFileName() ), true );
+        String schemaFileName =
+          buildFilenameWithoutRollover( environmentSubstitute( meta.getSchemaFileName() ), true );
         if ( meta.getCreateParentFolder() ) {
           logDetailed( "Creating parent folder for schema file" );
           createParentFolder( schemaFileName );
@@ -288,7 +309,7 @@ public class AvroOutput extends BaseStep implements StepInterface {
           logDetailed( "Opened new file with name [" + schemaFileName + "]" );
         }
 
-        schemaWriter.write( data.avroSchema.toString( true ).getBytes() );
+        schemaWriter.write( AvroLogicalTypes.toJson( data.avroSchema, true ).getBytes() );
         schemaWriter.close();
         schemaWriter = null;
         if ( log.isDetailed() ) {
@@ -301,6 +322,132 @@ public class AvroOutput extends BaseStep implements StepInterface {
     }
   }
 
+  /**
+   * Create the writer that serializes rows using the serializer selected in the step.
+   *
+   * @return The datum writer
+   */
+  private DatumWriter<Object[]> createDatumWriter() {
+    if ( data.recordPlan == null ) {
+      // There are no rows, the writer is only needed to write the header of an empty container file.
+      return new AvroRowDatumWriter( null, data.outputRowMeta );
+    }
+    if ( meta.getSerializerTypeId() == AvroOutputMeta.SERIALIZER_TYPE_GENERIC ) {
+      if ( meta.isReuseRecords() ) {
+        logDetailed( "Serializing rows through a reused generic Avro record." );
+        data.reuseRecord = data.recordPlan.newRecordTree();
+      } else {
+        logDetailed( "Serializing rows through generic Avro records." );
+      }
+      return new AvroGenericRowDatumWriter( data.avroSchema, data.recordPlan, data.outputRowMeta, data.reuseRecord,
+        data.rowGroup );
+    }
+    if ( meta.getSerializerTypeId() == AvroOutputMeta.SERIALIZER_TYPE_GENERATED
+      && data.recordPlan.hasCollections() ) {
+      logBasic( "The generated writer does not support arrays and maps, using the direct serializer." );
+    } else if ( meta.getSerializerTypeId() == AvroOutputMeta.SERIALIZER_TYPE_GENERATED ) {
+      try {
+        Class<?> writerClass = data.compiledPlan.getWriterClass();
+        logDetailed( "Serializing rows with a generated writer." );
+        return AvroRowWriterCompiler.newWriter( writerClass, data.recordPlan, data.outputRowMeta );
+      } catch ( KettleException e ) {
+        logError( "Unable to generate the Avro row writer, falling back to the direct serializer.", e );
+      }
+    }
+    logDetailed( "Serializing rows directly to the Avro encoder." );
+    return new AvroRowDatumWriter( data.recordPlan, data.outputRowMeta, data.rowGroup );
+  }
+
+  /**
+   * Create the group the arrays and grouped maps of the plan are written from.
+   *
+   * @return The row group
+   * @throws KettleException if a group key field is not in the input.
+   */
+  private AvroRowGroup createRowGroup() throws KettleException {
+    String[] keyFields = meta.getGroupFieldNames( this );
+    int[] keyIndexes = new int[keyFields.length];
+    for ( int i = 0; i < keyFields.length; i++ ) {
+      keyIndexes[i] = data.outputRowMeta.indexOfValue( keyFields[i] );
+      if ( keyIndexes[i] < 0 ) {
+        throw new KettleException( "Group key field " + keyFields[i] + " is not in the input stream." );
+      }
+    }
+    if ( log.isDetailed() ) {
+      logDetailed( "Writing one Avro record per group of " + ( keyFields.length == 0 ? "one row."
+        : "rows with the same " + Const.NVL( meta.getGroupFields(), "" ) + "." ) );
+    }
+    return new AvroRowGroup( data.outputRowMeta, keyIndexes );
+  }
+
+  /**
+   * Write the current row group as one record and pass its rows on.  File outputs pass every row of the group on,
+   * message outputs pass the first row with the message of the group.
+   *
+   * @throws KettleException
+   */
+  private void writeRowGroup() throws KettleException {
+    Object[] outputRow = data.sink.writeRecord( data.rowGroup.getFirst() );
+    if ( meta.getOutputTypeId() == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE ) {
+      for ( Object[] row : data.rowGroup.getRows() ) {
+        putRow( data.outputRowMeta, row );
+      }
+    } else {
+      putRow( data.outputRowMeta, outputRow );
+    }
+    data.rowGroup.clear();
+  }
+
+  /**
+   * @return The number of threads compressing container file blocks, 0 to compress on the step thread.
+   */
+  int getCompressionThreads() {
+    return Math.max( 0, Const.toInt( environmentSubstitute( meta.getCompressionThreads() ), 0 ) );
+  }
+
+  /**
+   * @return The compressed size to aim the container file blocks at, 0 to finish the blocks at the sync interval.
+   */
+  int getTargetBlockSize() {
+    return Math.max( 0, Const.toInt( environmentSubstitute( meta.getTargetBlockSize() ), 0 ) );
+  }
+
+  /**
+   * @return A codec for the compression type and level selected in the step.
+   * @throws KettleException if the codec is not supported or the level is out of range.
+   */
+  AvroBlockCodec createCodec() throws KettleException {
+    return meta.createCodec( this );
+  }
+
+  /**
+   * Create the sink for the output type selected in the step.
+   *
+   * @return The sink or null if the output type is not valid.
+   */
+  private AvroSink createSink() {
+    switch ( meta.getOutputTypeId() ) {
+      case AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE:
+        if ( meta.isPartitioned() ) {
+          return new AvroPartitionedFileSink( this );
+        }
+        if ( meta.getStripes( this ) > 1 ) {
+          return new AvroStripedFileSink( this );
+        }
+        if ( meta.getSharedFileModeId() == AvroOutputMeta.SHARED_FILE_MODE_ORDERED
+          || meta.getSharedFileModeId() == AvroOutputMeta.SHARED_FILE_MODE_UNORDERED ) {
+          return new AvroSharedFileSink( this );
+        }
+        return new AvroBinaryFileSink( this );
+      case AvroOutputMeta.OUTPUT_TYPE_FIELD:
+        return new AvroBinaryFieldSink( this );
+      case AvroOutputMeta.OUTPUT_TYPE_JSON_FIELD:
+        return new AvroJsonFieldSink( this );
+      default:
+        return null;
+    }
+  }
+
   public synchronized boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
     meta = (AvroOutputMeta) smi;
     data = (AvroOutputData) sdi;
@@ -319,106 +466,67 @@ public class AvroOutput extends BaseStep implements StepInterface {
           writeSchemaFile();
         } else {
           logDetailed( "Reading Avro schema from file." );
-          data.avroSchema = new Schema.Parser().parse( new File( meta.getSchemaFileName() ) );
-        }
-        data.datumWriter = new GenericDatumWriter<GenericRecord>( data.avroSchema );
-
-        if( meta.getOutputType().equals( AvroOutputMeta.OUTPUT_TYPES[AvroOutputMeta.OUTPUT_TYPE_FIELD] ) ) {
-          data.encoderFactory = new EncoderFactory();
-          data.byteArrayOutputStream = new ByteArrayOutputStream();
-          data.binaryEncoder = data.encoderFactory.binaryEncoder( data.byteArrayOutputStream, null );
-        } else if ( meta.getOutputType().equals( AvroOutputMeta.OUTPUT_TYPES[AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE] ) ) {
-          data.dataFileWriter = new DataFileWriter<GenericRecord>( data.datumWriter );
-          if ( !Const.isEmpty( meta.getCompressionType() ) && !meta.getCompressionType().equalsIgnoreCase( "none" ) ) {
-            data.dataFileWriter.setCodec( CodecFactory.fromString( meta.getCompressionType() ) );
+          data.avroSchema = AvroSchemaCache.getSchema( meta.getSchemaFileName(), this );
+          if ( isDebug() ) {
+            logDebug( "Avro schema cache hits " + AvroSchemaCache.getHits() + ", misses "
+              + AvroSchemaCache.getMisses() );
           }
-          data.dataFileWriter.create( data.avroSchema, data.writer );
-        } else if ( meta.getOutputType().equals( AvroOutputMeta.OUTPUT_TYPES[AvroOutputMeta.OUTPUT_TYPE_JSON_FIELD] ) ) {
-          data.encoderFactory = new EncoderFactory();
-          data.byteArrayOutputStream = new ByteArrayOutputStream();
-          data.jsonEncoder = data.encoderFactory.jsonEncoder( data.avroSchema, data.byteArrayOutputStream );
-        } else {
-          throw new KettleException( "Invalid output type " + meta.getOutputType() );
         }
-      } catch ( IOException ex ) {
-        logError( "Could not open Avro writer", ex );
+      } catch ( KettleException ex ) {
+        logError( "Could not read Avro schema", ex );
         setErrors( 1L );
         stopAll();
         return false;
       }
-      if ( r != null ) {
-        Arrays.sort( avroOutputFields );
 
+      if ( r != null ) {
         data.outputRowMeta = getInputRowMeta().clone();
         meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
 
-        data.fieldnrs = new int[avroOutputFields.length];
-        for ( int i = 0; i < avroOutputFields.length; i++ ) {
-          if ( avroOutputFields[i].validate() ) {
-            data.fieldnrs[i] = data.outputRowMeta.indexOfValue( avroOutputFields[i].getName() );
-            if ( data.fieldnrs[i] < 0 ) {
-              throw new KettleStepException( "Field ["
-                + avroOutputFields[i].getName() + "] couldn't be found in the input stream!" );
-            }
-          }
+        data.compiledPlan = AvroPlanCache.get( data.avroSchema, data.outputRowMeta, avroOutputFields );
+        if ( isDebug() ) {
+          logDebug( "Avro plan cache hits " + AvroPlanCache.getHits() + ", misses " + AvroPlanCache.getMisses() );
+        }
+        avroOutputFields = data.compiledPlan.outputFields;
+        data.fieldnrs = data.compiledPlan.fieldnrs;
+        data.recordPlan = data.compiledPlan.recordPlan;
+        if ( data.recordPlan.isGrouped() ) {
+          data.rowGroup = createRowGroup();
         }
-
       }
+      data.datumWriter = createDatumWriter();
+      data.sink.open();
     }
 
     if ( r == null ) {
       // no more input to be expected...
-      if ( meta.getOutputType().equals( AvroOutputMeta.OUTPUT_TYPES[AvroOutputMeta.OUTPUT_TYPE_FIELD] ) ) {
-        try {
-          data.binaryEncoder = null;
-          data.jsonEncoder = null;
-          if( data.byteArrayOutputStream != null ) {
-            data.byteArrayOutputStream.close();
-          }
-          data.encoderFactory = null;
-        } catch ( Exception ex ) {
-          throw new KettleException( "Error cleaning up step", ex );
-        }
-      } else if ( meta.getOutputType().equals( AvroOutputMeta.OUTPUT_TYPES[AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE] ) ) {
-        closeFile();
+      if ( data.rowGroup != null && !data.rowGroup.isEmpty() ) {
+        writeRowGroup();
       }
+      data.sink.flush();
+      data.sink.close();
       setOutputDone();
       data.datumWriter = null;
       data.avroSchema = null;
+      data.recordPlan = null;
+      data.reuseRecord = null;
+      data.rowGroup = null;
       return false;
     }
 
-    outputFieldIndex = 0;
-    GenericRecord row = getRecord( r, null, data.avroSchema );
-
+    if ( data.rowGroup != null ) {
+      if ( !data.rowGroup.belongs( r ) ) {
+        writeRowGroup();
+      }
+      data.rowGroup.add( r );
+    } else {
+      r = data.sink.writeRecord( r );
 
-    try {
-      if( meta.getOutputType().equals( AvroOutputMeta.OUTPUT_TYPES[AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE] ) ) {
-        data.dataFileWriter.append( row );
-      } else if ( meta.getOutputType().equals( AvroOutputMeta.OUTPUT_TYPES[AvroOutputMeta.OUTPUT_TYPE_FIELD] ) ) {
-        data.datumWriter.write( row, data.binaryEncoder );
-        data.binaryEncoder.flush();
-        data.byteArrayOutputStream.flush();
-        RowDataUtil.addValueData( r, data.outputRowMeta.size() - 1, data.byteArrayOutputStream.toByteArray() );
-        data.byteArrayOutputStream.close();
-        data.byteArrayOutputStream.reset();
-      } else if ( meta.getOutputType().equals( AvroOutputMeta.OUTPUT_TYPES[AvroOutputMeta.OUTPUT_TYPE_JSON_FIELD] ) ) {
-        data.datumWriter.write( row, data.jsonEncoder );
-        data.jsonEncoder.flush();
-        data.byteArrayOutputStream.flush();
-        RowDataUtil.addValueData( r, data.outputRowMeta.size() - 1, data.byteArrayOutputStream.toString() );
-        data.byteArrayOutputStream.close();
-        data.byteArrayOutputStream.reset();
-      }
-    } catch ( IOException i ) {
-      throw new KettleException( i );
-    }
-
-
-    // First handle the file name in field
-    // Write a header line as well if needed
-    //
-    putRow( data.outputRowMeta, r ); // in case we want it to go further...
+      // First handle the file name in field
+      // Write a header line as well if needed
+      //
+      putRow( data.outputRowMeta, r ); // in case we want it to go further...
+    }
 
     if ( checkFeedback( getLinesOutput() ) ) {
       logBasic( "linenr " + getLinesOutput() );
@@ -427,60 +535,17 @@ public class AvroOutput extends BaseStep implements StepInterface {
     return result;
   }
 
-  public Object getValue( Object[] r, AvroOutputField outputField, int inputFieldIndex , Field fieldSchema) throws KettleException {
-    Object value;
-
-    switch ( outputField.getAvroType() ) {
-      case AvroOutputField.AVRO_TYPE_INT:
-        value = data.outputRowMeta.getInteger( r, inputFieldIndex ).intValue();
-        break;
-      case AvroOutputField.AVRO_TYPE_STRING:
-        value = data.outputRowMeta.getString( r, inputFieldIndex );
-        break;
-      case AvroOutputField.AVRO_TYPE_LONG:
-        value = data.outputRowMeta.getInteger( r, inputFieldIndex );
-        break;
-      case AvroOutputField.AVRO_TYPE_FLOAT:
-        value = data.outputRowMeta.getNumber( r, inputFieldIndex ).floatValue();
-        break;
-      case AvroOutputField.AVRO_TYPE_DOUBLE:
-        value = data.outputRowMeta.getNumber( r, inputFieldIndex );
-        break;
-      case AvroOutputField.AVRO_TYPE_BOOLEAN:
-        value = data.outputRowMeta.getBoolean( r, inputFieldIndex );
-        break;
-      case AvroOutputField.AVRO_TYPE_ENUM:
-          Schema schema = getFirstEnumSchema(fieldSchema);
-          String fieldValue =  data.outputRowMeta.getString( r, inputFieldIndex );
-          value = new GenericData.EnumSymbol(schema , fieldValue);
-          break;
-      default:
-        throw new KettleException( "Avro type " + outputField.getAvroTypeDesc() + " is not supported for field " + outputField.getAvroName() + "." );
-    }
-
-    return value;
-  }
-
-  private Schema getFirstEnumSchema(Field field) {
-      Schema fieldSchema = field.schema();
-      Type fieldType = fieldSchema.getType();
-      if (fieldType == Type.ENUM) {
-          return fieldSchema;
-      }
-      if (fieldType == Type.UNION) {
-          List<Schema> subSchemas = fieldSchema.getTypes();
-          for (Schema subSchema : subSchemas) {
-            if (subSchema.getType() == Type.ENUM) {
-                return subSchema;
-            }
-        }
-      }
-      return field.schema();
+  public String buildFilename( String filename, boolean ziparchive ) {
+    return meta.buildFilename(
+      filename, this, getCopy(), getPartitionID(), data.splitnr, ziparchive, meta );
   }
 
-public String buildFilename( String filename, boolean ziparchive ) {
+  /**
+   * Build the name of a file that is not rolled over, without the roll-over number.
+   */
+  public String buildFilenameWithoutRollover( String filename, boolean ziparchive ) {
     return meta.buildFilename(
-      filename, this, getCopy(), getPartitionID(), data.splitnr, ziparchive, meta );
+      filename, this, getCopy(), getPartitionID(), data.splitnr, ziparchive, meta, false );
   }
 
   public void openNewFile( String baseFilename ) throws KettleException {
@@ -492,61 +557,225 @@ public String buildFilename( String filename, boolean ziparchive ) {
 
     String filename = buildFilename( environmentSubstitute( baseFilename ), true );
 
+    int sharedFileMode = meta.getSharedFileModeId();
+    if ( sharedFileMode == AvroOutputMeta.SHARED_FILE_MODE_ORDERED
+      || sharedFileMode == AvroOutputMeta.SHARED_FILE_MODE_UNORDERED ) {
+      data.sharedFile =
+        AvroSharedFile.acquire( this, filename, sharedFileMode == AvroOutputMeta.SHARED_FILE_MODE_ORDERED );
+      if ( log.isDetailed() ) {
+        logDetailed( "Writing to shared file with name [" + filename + "]" );
+      }
+    } else {
+      data.writer = openOutputStream( filename );
+      if ( data.writer instanceof AvroWriteBehindOutputStream ) {
+        data.writeBehind = (AvroWriteBehindOutputStream) data.writer;
+      }
+    }
+
+    data.splitnr++;
+    data.fileRecords = 0;
+    data.fileOpened = System.currentTimeMillis();
+
+    addFileToResult( filename );
+  }
+
+  /**
+   * Add a file to the result files if the step is configured to.
+   *
+   * @param filename The full filename.
+   * @throws KettleException
+   */
+  void addFileToResult( String filename ) throws KettleException {
+    if ( meta.getAddToResultFiles() ) {
+      // Add this to the result file names...
+      ResultFile resultFile =
+        new ResultFile( ResultFile.FILE_TYPE_GENERAL, getFileObject( filename, getTransMeta() ), getTransMeta()
+          .getName(), getStepname() );
+      resultFile.setComment( BaseMessages.getString( PKG, "AvroOutput.AddResultFile" ) );
+      addResultFile( resultFile );
+    }
+  }
+
+  /**
+   * Open a buffered stream to a file, creating the parent folder if needed.
+   *
+   * @param filename The full filename.
+   * @return The stream
+   * @throws KettleException
+   */
+  OutputStream openOutputStream( String filename ) throws KettleException {
+    return openOutputStream( filename, false );
+  }
+
+  /**
+   * Open a buffered stream to a file, creating the parent folder if needed.
+   *
+   * @param filename The full filename.
+   * @param append Whether to write after the existing content of the file.
+   * @return The stream
+   * @throws KettleException
+   */
+  OutputStream openOutputStream( String filename, boolean append ) throws KettleException {
+    return openOutputStream( filename, append, meta.getCreateParentFolder() );
+  }
+
+  /**
+   * Open a buffered stream to a file.
+   *
+   * @param filename The full filename.
+   * @param append Whether to write after the existing content of the file.
+   * @param createParentFolder Whether to create the parent folder if it does not exist.  Partition folders are
+   *                           always created, whatever the Create parent folder option says.
+   * @return The stream
+   * @throws KettleException
+   */
+  OutputStream openOutputStream( String filename, boolean append, boolean createParentFolder )
+    throws KettleException {
     try {
       // Check for parent folder creation only if the user asks for it
       //
-      if ( meta.getCreateParentFolder() ) {
-        createParentFolder( filename );
+      if ( createParentFolder ) {
+        createParentFolder( filename, true );
       }
 
-      OutputStream outputStream = getOutputStream( filename, getTransMeta(), false );
+      int bufferSize = Const.toInt( environmentSubstitute( meta.getWriteBufferSize() ), 5000 );
+      if ( bufferSize <= 0 ) {
+        bufferSize = 5000;
+      }
+      int queueDepth = Const.toInt( environmentSubstitute( meta.getWriteBehindQueue() ), 0 );
 
-      if ( log.isDetailed() ) {
-        logDetailed( "Opening output stream in default encoding" );
+      OutputStream outputStream = openLocalFileChannel( filename, append, bufferSize );
+      boolean localChannel = outputStream != null;
+      if ( outputStream == null ) {
+        if ( log.isDetailed() ) {
+          logDetailed( "Opening output stream in default encoding" );
+        }
+        outputStream = getOutputStream( filename, getTransMeta(), append );
+      }
+
+      OutputStream writer;
+      if ( queueDepth > 0 ) {
+        writer = new AvroWriteBehindOutputStream( outputStream, bufferSize, queueDepth,
+          getStepname() + " write-behind", log );
+      } else if ( localChannel ) {
+        writer = outputStream;
+      } else {
+        writer = new BufferedOutputStream( outputStream, bufferSize );
       }
-      data.writer = new BufferedOutputStream( outputStream, 5000 );
 
       if ( log.isDetailed() ) {
         logDetailed( "Opened new file with name [" + filename + "]" );
       }
+      return writer;
     } catch ( Exception e ) {
       throw new KettleException( "Error opening new file : " + e.toString() );
     }
+  }
 
-    data.splitnr++;
+  /**
+   * Open a file on the local file system through a file channel when the step is configured to.
+   *
+   * @param filename The full filename.
+   * @param append Whether to write after the existing content of the file.
+   * @param bufferSize The configured buffer size.  Channel buffers are at least LOCAL_BUFFER_SIZE.
+   * @return The stream, or null if the file must be written through VFS.
+   */
+  private OutputStream openLocalFileChannel( String filename, boolean append, int bufferSize )
+    throws KettleException, IOException {
+    int localFileMode = meta.getLocalFileModeId();
+    if ( localFileMode != AvroOutputMeta.LOCAL_FILE_MODE_CHANNEL
+      && localFileMode != AvroOutputMeta.LOCAL_FILE_MODE_MAPPED ) {
+      return null;
+    }
+    FileObject fileObject = getFileObject( filename, getTransMeta() );
+    if ( !"file".equalsIgnoreCase( fileObject.getName().getScheme() ) ) {
+      return null;
+    }
 
-    if ( meta.getAddToResultFiles() ) {
-      // Add this to the result file names...
-      ResultFile resultFile =
-        new ResultFile( ResultFile.FILE_TYPE_GENERAL, getFileObject( filename, getTransMeta() ), getTransMeta()
-          .getName(), getStepname() );
-      resultFile.setComment( BaseMessages.getString( PKG, "AvroOutput.AddResultFile" ) );
-      addResultFile( resultFile );
+    int syncPolicy = meta.getSyncPolicyId();
+    int syncBlocks = 0;
+    if ( syncPolicy == AvroOutputMeta.SYNC_POLICY_BLOCKS ) {
+      syncBlocks = Math.max( 1, Const.toInt( environmentSubstitute( meta.getSyncBlocks() ), 1 ) );
+    }
+    if ( log.isDetailed() ) {
+      logDetailed( "Opening local file channel in " + meta.getLocalFileMode() + " mode" );
     }
+    return new AvroFileChannelOutputStream( new File( KettleVFS.getFilename( fileObject ) ), append,
+      localFileMode == AvroOutputMeta.LOCAL_FILE_MODE_MAPPED, Math.max( bufferSize, LOCAL_BUFFER_SIZE ),
+      syncPolicy == AvroOutputMeta.SYNC_POLICY_CLOSE, syncBlocks );
   }
 
-  private boolean closeFile() {
-    boolean retval = false;
+  /**
+   * @return true if the current file has reached one of the rollover limits.
+   */
+  boolean isFileFull() {
+    if ( data.fileRecords == 0 ) {
+      return false;
+    }
+    return ( data.maxFileRecords > 0 && data.fileRecords >= data.maxFileRecords )
+      || ( data.maxFileSize > 0 && data.blockAppender.getBytesWritten() >= data.maxFileSize )
+      || ( data.maxFileDuration > 0 && System.currentTimeMillis() - data.fileOpened >= data.maxFileDuration );
+  }
 
+  /**
+   * Finish the current file and continue writing to the next numbered file with the same schema.
+   *
+   * @throws KettleException if the current file can not be closed or the next one can not be opened.
+   */
+  void rollFile() throws KettleException {
+    if ( log.isDetailed() ) {
+      logDetailed( "Rolling over to a new file after " + data.fileRecords + " records." );
+    }
     try {
-      if ( data.writer != null ) {
-        data.writer.flush();
+      closeStream();
+    } catch ( Exception e ) {
+      throw new KettleException( "Error trying to close file", e );
+    }
+    openNewFile( meta.getFileName() );
+    data.sink.open();
+  }
 
-        if ( log.isDebug() ) {
-          logDebug( "Closing output stream" );
+  /**
+   * Finish the container file and close the output stream.
+   */
+  private void closeStream() throws Exception {
+    if ( data.writer != null ) {
+      if ( log.isDebug() ) {
+        logDebug( "Closing output stream" );
+      }
+      try {
+        if ( data.containerWriter != null ) {
+          data.containerWriter.close();
         }
-        if ( data.dataFileWriter != null ) {
-          data.dataFileWriter.close();
+      } finally {
+        if ( data.blockAppender != null ) {
+          data.blockAppender.close();
+        } else if ( data.writer instanceof AvroFileChannelOutputStream
+          || data.writer instanceof AvroWriteBehindOutputStream ) {
+          // The container was never started.  Close the channel so a mapped file is truncated and released,
+          // and stop the write-behind thread.
+          data.writer.close();
+        } else {
+          // Causes exception trying to close file in Java 8.  I believe the flush closes the file also.
+          // data.writer.close();
+          data.writer.flush();
         }
-
-        // Causes exception trying to close file in Java 8.  I believe the flush closes the file also.
-        // data.writer.close();
         data.writer = null;
-        data.dataFileWriter = null;
-        if ( log.isDebug() ) {
-          logDebug( "Closed output stream" );
-        }
+        data.writeBehind = null;
+        data.containerWriter = null;
+        data.blockAppender = null;
       }
+      if ( log.isDebug() ) {
+        logDebug( "Closed output stream" );
+      }
+    }
+  }
+
+  boolean closeFile() {
+    boolean retval = false;
+
+    try {
+      closeStream();
       data.datumWriter = null;
       data.avroSchema = null;
 
@@ -567,13 +796,40 @@ public String buildFilename( String filename, boolean ziparchive ) {
     data = (AvroOutputData) sdi;
 
     if ( super.init( smi, sdi ) ) {
+      String fileConflict = meta.getFileConflict( this );
+      if ( fileConflict != null ) {
+        logError( fileConflict );
+        return false;
+      }
+      if ( meta.getOutputTypeId() == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE ) {
+        try {
+          createCodec();
+        } catch ( KettleException e ) {
+          logError( e.getSuperMessage() );
+          return false;
+        }
+      }
       data.splitnr = 0;
-      try {
-        openNewFile( meta.getFileName() );
-      } catch ( Exception e ) {
-        logError( "Couldn't open file " + meta.getFileName(), e );
-        setErrors( 1L );
-        stopAll();
+      data.rollover = meta.isRollover( this );
+      if ( data.rollover ) {
+        data.maxFileRecords = Const.toLong( environmentSubstitute( meta.getMaxFileRecords() ), 0 );
+        data.maxFileSize = Const.toLong( environmentSubstitute( meta.getMaxFileSize() ), 0 );
+        data.maxFileDuration = Const.toLong( environmentSubstitute( meta.getMaxFileDuration() ), 0 ) * 1000L;
+      }
+      data.sink = createSink();
+      if ( data.sink == null ) {
+        logError( "Invalid output type " + meta.getOutputType() );
+        return false;
+      }
+      if ( meta.getOutputTypeId() == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE && !meta.isPartitioned()
+        && meta.getStripes( this ) == 1 ) {
+        try {
+          openNewFile( meta.getFileName() );
+        } catch ( Exception e ) {
+          logError( "Couldn't open file " + meta.getFileName(), e );
+          setErrors( 1L );
+          stopAll();
+        }
       }
 
       return true;
@@ -587,8 +843,14 @@ public String buildFilename( String filename, boolean ziparchive ) {
     meta = (AvroOutputMeta) smi;
     data = (AvroOutputData) sdi;
 
-    if ( data.writer != null ) {
-      closeFile();
+    if ( data.sink != null ) {
+      try {
+        data.sink.close();
+      } catch ( KettleException e ) {
+        logError( "Exception trying to close the Avro output", e );
+        setErrors( 1 );
+      }
+      data.sink = null;
     }
     data.datumWriter = null;
     data.avroSchema = null;
@@ -598,6 +860,10 @@ public String buildFilename( String filename, boolean ziparchive ) {
 
 
   private void createParentFolder( String filename ) throws Exception {
+    createParentFolder( filename, meta.getCreateParentFolder() );
+  }
+
+  private void createParentFolder( String filename, boolean create ) throws Exception {
     // Check for parent folder
 
     FileObject parentfolder = null;
@@ -614,7 +880,7 @@ public String buildFilename( String filename, boolean ziparchive ) {
           logDetailed( BaseMessages.getString( PKG, "AvroOutput.Log.ParentFolderNotExist", parentfolder
             .getName() ) );
         }
-        if ( meta.getCreateParentFolder() ) {
+        if ( create ) {
           parentfolder.createFolder();
           if ( isDetailed() ) {
             logDetailed( BaseMessages.getString( PKG, "AvroOutput.Log.ParentFolderCreated", parentfolder
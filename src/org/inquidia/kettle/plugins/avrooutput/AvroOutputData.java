@@ -25,8 +25,7 @@
 package org.inquidia.kettle.plugins.avrooutput;
 
 import org.apache.avro.Schema;
-import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericData;
 import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DatumWriter;
 import org.apache.avro.io.EncoderFactory;
@@ -46,6 +45,22 @@ import java.text.SimpleDateFormat;
 public class AvroOutputData extends BaseStepData implements StepDataInterface {
   public int splitnr;
 
+  /** Whether the output rolls over to a new file when one of the limits below is reached */
+  public boolean rollover;
+
+  public long maxFileRecords;
+
+  public long maxFileSize;
+
+  /** The maximum time a file is open in milliseconds */
+  public long maxFileDuration;
+
+  /** The number of records written to the current file */
+  public long fileRecords;
+
+  /** The time the current file was opened */
+  public long fileOpened;
+
   public int[] fieldnrs;
 
   public SimpleDateFormat daf;
@@ -62,9 +77,29 @@ public class AvroOutputData extends BaseStepData implements StepDataInterface {
 
   public Schema avroSchema;
 
-  public DatumWriter<GenericRecord> datumWriter;
+  public AvroRecordPlan recordPlan;
+
+  /** The cached plan the record plan and field positions come from */
+  public AvroPlanCache.CompiledPlan compiledPlan;
+
+  /** The rows written as one record when the plan maps arrays, null otherwise */
+  public AvroRowGroup rowGroup;
 
-  public DataFileWriter<GenericRecord> dataFileWriter;
+  /** The record tree overwritten for every row when records are reused */
+  public GenericData.Record reuseRecord;
+
+  public DatumWriter<Object[]> datumWriter;
+
+  public AvroSink sink;
+
+  public AvroBlockAppender blockAppender;
+
+  public AvroWriteBehindOutputStream writeBehind;
+
+  public AvroContainerWriter containerWriter;
+
+  /** The file shared with the other copies of the step, null when each copy writes its own file */
+  public AvroSharedFile sharedFile;
 
   public EncoderFactory encoderFactory;
 
@@ -74,6 +109,10 @@ public class AvroOutputData extends BaseStepData implements StepDataInterface {
 
   public ByteArrayOutputStream byteArrayOutputStream;
 
+  public AvroMessageBuffer messageBuffer;
+
+  public AvroJsonRowWriter jsonRowWriter;
+
   public AvroOutputData() {
     super();
 
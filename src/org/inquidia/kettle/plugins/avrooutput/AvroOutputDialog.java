@@ -73,7 +73,6 @@ import org.pentaho.di.ui.core.widget.TextVar;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
 import org.pentaho.di.ui.trans.step.TableItemInsertListener;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -95,12 +94,130 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
     BaseMessages.getString( PKG, "AvroOutputDialog.OutputType.BinaryField" ),
     BaseMessages.getString( PKG, "AvroOutputDialog.OutputType.JsonField" ) };
 
+  private static final String[] SERIALIZER_TYPE_DESC = new String[] {
+    BaseMessages.getString( PKG, "AvroOutputDialog.Serializer.Generic" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.Serializer.Direct" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.Serializer.Generated" ) };
+
+  private static final String[] SHARED_FILE_MODE_DESC = new String[] {
+    BaseMessages.getString( PKG, "AvroOutputDialog.SharedFileMode.None" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.SharedFileMode.Ordered" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.SharedFileMode.Unordered" ) };
+  private static final String[] LOCAL_FILE_MODE_DESC = new String[] {
+    BaseMessages.getString( PKG, "AvroOutputDialog.LocalFileMode.Stream" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.LocalFileMode.Channel" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.LocalFileMode.Mapped" ) };
+  private static final String[] SYNC_POLICY_DESC = new String[] {
+    BaseMessages.getString( PKG, "AvroOutputDialog.SyncPolicy.None" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.SyncPolicy.Close" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.SyncPolicy.Blocks" ) };
+  private static final String[] MESSAGE_FRAMING_DESC = new String[] {
+    BaseMessages.getString( PKG, "AvroOutputDialog.MessageFraming.None" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.MessageFraming.Registry" ),
+    BaseMessages.getString( PKG, "AvroOutputDialog.MessageFraming.SingleObject" ) };
+
   private CTabFolder wTabFolder;
   private FormData fdTabFolder;
 
-  private CTabItem wFileTab, wFieldsTab;
+  private CTabItem wFileTab, wFieldsTab, wAdvancedTab;
+
+  private FormData fdFileComp, fdFieldsComp, fdAdvancedComp;
+
+  private Label wlSerializer;
+  private CCombo wSerializer;
+  private FormData fdlSerializer, fdSerializer;
+
+  private Label wlReuseRecords;
+  private Button wReuseRecords;
+  private FormData fdlReuseRecords, fdReuseRecords;
+
+  private Label wlJsonBinaryOutput;
+  private Button wJsonBinaryOutput;
+  private FormData fdlJsonBinaryOutput, fdJsonBinaryOutput;
+
+  private Label wlSharedFileMode;
+  private CCombo wSharedFileMode;
+  private FormData fdlSharedFileMode, fdSharedFileMode;
+
+  private Label wlCompressionThreads;
+  private TextVar wCompressionThreads;
+  private FormData fdlCompressionThreads, fdCompressionThreads;
+
+  private Label wlWriteBufferSize;
+  private TextVar wWriteBufferSize;
+  private FormData fdlWriteBufferSize, fdWriteBufferSize;
+
+  private Label wlWriteBehindQueue;
+  private TextVar wWriteBehindQueue;
+  private FormData fdlWriteBehindQueue, fdWriteBehindQueue;
+
+  private Label wlLocalFileMode;
+  private CCombo wLocalFileMode;
+  private FormData fdlLocalFileMode, fdLocalFileMode;
+
+  private Label wlSyncPolicy;
+  private CCombo wSyncPolicy;
+  private FormData fdlSyncPolicy, fdSyncPolicy;
+
+  private Label wlSyncBlocks;
+  private TextVar wSyncBlocks;
+  private FormData fdlSyncBlocks, fdSyncBlocks;
+
+  private Label wlMaxFileRecords;
+  private TextVar wMaxFileRecords;
+  private FormData fdlMaxFileRecords, fdMaxFileRecords;
+
+  private Label wlMaxFileSize;
+  private TextVar wMaxFileSize;
+  private FormData fdlMaxFileSize, fdMaxFileSize;
+
+  private Label wlMaxFileDuration;
+  private TextVar wMaxFileDuration;
+  private FormData fdlMaxFileDuration, fdMaxFileDuration;
+
+  private Label wlPartitionFields;
+  private TextVar wPartitionFields;
+  private FormData fdlPartitionFields, fdPartitionFields;
+
+  private Label wlMaxOpenFiles;
+  private TextVar wMaxOpenFiles;
+  private FormData fdlMaxOpenFiles, fdMaxOpenFiles;
+
+  private Label wlStripeCount;
+  private TextVar wStripeCount;
+  private FormData fdlStripeCount, fdStripeCount;
+
+  private Label wlStripeField;
+  private TextVar wStripeField;
+  private FormData fdlStripeField, fdStripeField;
+
+  private Label wlStripeFolders;
+  private TextVar wStripeFolders;
+  private FormData fdlStripeFolders, fdStripeFolders;
+
+  private Label wlTargetBlockSize;
+  private TextVar wTargetBlockSize;
+  private FormData fdlTargetBlockSize, fdTargetBlockSize;
+
+  private Label wlMessageFraming;
+  private CCombo wMessageFraming;
+  private FormData fdlMessageFraming, fdMessageFraming;
+
+  private Label wlSchemaRegistryUrl;
+  private TextVar wSchemaRegistryUrl;
+  private FormData fdlSchemaRegistryUrl, fdSchemaRegistryUrl;
+
+  private Label wlSchemaSubject;
+  private TextVar wSchemaSubject;
+  private FormData fdlSchemaSubject, fdSchemaSubject;
+
+  private Label wlSchemaRegistryClass;
+  private TextVar wSchemaRegistryClass;
+  private FormData fdlSchemaRegistryClass, fdSchemaRegistryClass;
 
-  private FormData fdFileComp, fdFieldsComp;
+  private Label wlGroupFields;
+  private TextVar wGroupFields;
+  private FormData fdlGroupFields, fdGroupFields;
 
   private Label wlOutputType;
   private CCombo wOutputType;
@@ -148,6 +265,10 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
   private CCombo wCompression;
   private FormData fdlCompression, fdCompression;
 
+  private Label wlCompressionLevel;
+  private TextVar wCompressionLevel;
+  private FormData fdlCompressionLevel, fdCompressionLevel;
+
   private Label wlSpecifyFormat;
   private Button wSpecifyFormat;
   private FormData fdlSpecifyFormat, fdSpecifyFormat;
@@ -547,20 +668,39 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
       wCompression.add( compression );
     }
 
+    // Compression level
+    wlCompressionLevel = new Label( wFileComp, SWT.RIGHT );
+    wlCompressionLevel.setText( BaseMessages.getString( PKG, "AvroOutputDialog.CompressionLevel.Label" ) );
+    wlCompressionLevel.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.CompressionLevel.Tooltip" ) );
+    props.setLook( wlCompressionLevel );
+    fdlCompressionLevel = new FormData();
+    fdlCompressionLevel.left = new FormAttachment( 0, 0 );
+    fdlCompressionLevel.top = new FormAttachment( wCompression, margin );
+    fdlCompressionLevel.right = new FormAttachment( middle, -margin );
+    wlCompressionLevel.setLayoutData( fdlCompressionLevel );
+    wCompressionLevel = new TextVar( transMeta, wFileComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wCompressionLevel );
+    wCompressionLevel.addModifyListener( lsMod );
+    fdCompressionLevel = new FormData();
+    fdCompressionLevel.left = new FormAttachment( middle, 0 );
+    fdCompressionLevel.top = new FormAttachment( wCompression, margin );
+    fdCompressionLevel.right = new FormAttachment( 75, 0 );
+    wCompressionLevel.setLayoutData( fdCompressionLevel );
+
     // Create multi-part file?
     wlAddStepnr = new Label( wFileComp, SWT.RIGHT );
     wlAddStepnr.setText( BaseMessages.getString( PKG, "AvroOutputDialog.AddStepnr.Label" ) );
     props.setLook( wlAddStepnr );
     fdlAddStepnr = new FormData();
     fdlAddStepnr.left = new FormAttachment( 0, 0 );
-    fdlAddStepnr.top = new FormAttachment( wCompression, margin );
+    fdlAddStepnr.top = new FormAttachment( wCompressionLevel, margin );
     fdlAddStepnr.right = new FormAttachment( middle, -margin );
     wlAddStepnr.setLayoutData( fdlAddStepnr );
     wAddStepnr = new Button( wFileComp, SWT.CHECK );
     props.setLook( wAddStepnr );
     fdAddStepnr = new FormData();
     fdAddStepnr.left = new FormAttachment( middle, 0 );
-    fdAddStepnr.top = new FormAttachment( wCompression, margin );
+    fdAddStepnr.top = new FormAttachment( wCompressionLevel, margin );
     fdAddStepnr.right = new FormAttachment( 100, 0 );
     wAddStepnr.setLayoutData( fdAddStepnr );
     wAddStepnr.addSelectionListener( new SelectionAdapter() {
@@ -749,7 +889,7 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
     fdUpdateTypes.bottom = new FormAttachment( 100, 0 );
     wUpdateTypes.setLayoutData( fdUpdateTypes );
 
-    final int FieldsCols = 4;
+    final int FieldsCols = 6;
     final int FieldsRows = input.getOutputFields().length;
 
     colinf = new ColumnInfo[FieldsCols];
@@ -769,6 +909,16 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
       new ColumnInfo(
         BaseMessages.getString( PKG, "AvroOutputDialog.Nullable.Column" ),
         ColumnInfo.COLUMN_TYPE_CCOMBO, YES_NO_COMBO, false );
+    colinf[4] =
+      new ColumnInfo(
+        BaseMessages.getString( PKG, "AvroOutputDialog.Precision.Column" ),
+        ColumnInfo.COLUMN_TYPE_TEXT, false );
+    colinf[4].setToolTip( BaseMessages.getString( PKG, "AvroOutputDialog.Precision.Tooltip" ) );
+    colinf[5] =
+      new ColumnInfo(
+        BaseMessages.getString( PKG, "AvroOutputDialog.Scale.Column" ),
+        ColumnInfo.COLUMN_TYPE_TEXT, false );
+    colinf[5].setToolTip( BaseMessages.getString( PKG, "AvroOutputDialog.Scale.Tooltip" ) );
 
     colinf[2].setComboValuesSelectionListener( new ComboValuesSelectionListener( ) {
       @Override public String[] getComboValues( TableItem tableItem, int rowNr, int colNr ) {
@@ -838,6 +988,502 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
     wFieldsComp.layout();
     wFieldsTab.setControl( wFieldsComp );
 
+    // ////////////////////////
+    // START OF ADVANCED TAB///
+    // /
+    wAdvancedTab = new CTabItem( wTabFolder, SWT.NONE );
+    wAdvancedTab.setText( BaseMessages.getString( PKG, "AvroOutputDialog.AdvancedTab.TabTitle" ) );
+
+    Composite wAdvancedComp = new Composite( wTabFolder, SWT.NONE );
+    props.setLook( wAdvancedComp );
+
+    FormLayout advancedLayout = new FormLayout();
+    advancedLayout.marginWidth = 3;
+    advancedLayout.marginHeight = 3;
+    wAdvancedComp.setLayout( advancedLayout );
+
+    // Serializer
+    wlSerializer = new Label( wAdvancedComp, SWT.RIGHT );
+    wlSerializer.setText( BaseMessages.getString( PKG, "AvroOutputDialog.Serializer.Label" ) );
+    wlSerializer.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.Serializer.Tooltip" ) );
+    props.setLook( wlSerializer );
+    fdlSerializer = new FormData();
+    fdlSerializer.left = new FormAttachment( 0, 0 );
+    fdlSerializer.top = new FormAttachment( 0, margin );
+    fdlSerializer.right = new FormAttachment( middle, -margin );
+    wlSerializer.setLayoutData( fdlSerializer );
+    wSerializer = new CCombo( wAdvancedComp, SWT.BORDER | SWT.READ_ONLY );
+    wSerializer.setEditable( false );
+    props.setLook( wSerializer );
+    wSerializer.addModifyListener( lsMod );
+    wSerializer.addSelectionListener( lsFlags );
+    fdSerializer = new FormData();
+    fdSerializer.left = new FormAttachment( middle, 0 );
+    fdSerializer.top = new FormAttachment( 0, margin );
+    fdSerializer.right = new FormAttachment( 75, 0 );
+    wSerializer.setLayoutData( fdSerializer );
+    for ( String serializerDesc : SERIALIZER_TYPE_DESC ) {
+      wSerializer.add( serializerDesc );
+    }
+
+    // Reuse Records
+    wlReuseRecords = new Label( wAdvancedComp, SWT.RIGHT );
+    wlReuseRecords.setText( BaseMessages.getString( PKG, "AvroOutputDialog.ReuseRecords.Label" ) );
+    props.setLook( wlReuseRecords );
+    fdlReuseRecords = new FormData();
+    fdlReuseRecords.left = new FormAttachment( 0, 0 );
+    fdlReuseRecords.top = new FormAttachment( wSerializer, margin );
+    fdlReuseRecords.right = new FormAttachment( middle, -margin );
+    wlReuseRecords.setLayoutData( fdlReuseRecords );
+    wReuseRecords = new Button( wAdvancedComp, SWT.CHECK );
+    wReuseRecords.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.ReuseRecords.Tooltip" ) );
+    props.setLook( wReuseRecords );
+    fdReuseRecords = new FormData();
+    fdReuseRecords.left = new FormAttachment( middle, 0 );
+    fdReuseRecords.top = new FormAttachment( wSerializer, margin );
+    fdReuseRecords.right = new FormAttachment( 100, 0 );
+    wReuseRecords.setLayoutData( fdReuseRecords );
+    wReuseRecords.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent e ) {
+        input.setChanged();
+      }
+    } );
+
+    // JSON as Binary
+    wlJsonBinaryOutput = new Label( wAdvancedComp, SWT.RIGHT );
+    wlJsonBinaryOutput.setText( BaseMessages.getString( PKG, "AvroOutputDialog.JsonBinaryOutput.Label" ) );
+    props.setLook( wlJsonBinaryOutput );
+    fdlJsonBinaryOutput = new FormData();
+    fdlJsonBinaryOutput.left = new FormAttachment( 0, 0 );
+    fdlJsonBinaryOutput.top = new FormAttachment( wReuseRecords, margin );
+    fdlJsonBinaryOutput.right = new FormAttachment( middle, -margin );
+    wlJsonBinaryOutput.setLayoutData( fdlJsonBinaryOutput );
+    wJsonBinaryOutput = new Button( wAdvancedComp, SWT.CHECK );
+    wJsonBinaryOutput.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.JsonBinaryOutput.Tooltip" ) );
+    props.setLook( wJsonBinaryOutput );
+    fdJsonBinaryOutput = new FormData();
+    fdJsonBinaryOutput.left = new FormAttachment( middle, 0 );
+    fdJsonBinaryOutput.top = new FormAttachment( wReuseRecords, margin );
+    fdJsonBinaryOutput.right = new FormAttachment( 100, 0 );
+    wJsonBinaryOutput.setLayoutData( fdJsonBinaryOutput );
+    wJsonBinaryOutput.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent e ) {
+        input.setChanged();
+      }
+    } );
+
+    // Shared File Mode
+    wlSharedFileMode = new Label( wAdvancedComp, SWT.RIGHT );
+    wlSharedFileMode.setText( BaseMessages.getString( PKG, "AvroOutputDialog.SharedFileMode.Label" ) );
+    wlSharedFileMode.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.SharedFileMode.Tooltip" ) );
+    props.setLook( wlSharedFileMode );
+    fdlSharedFileMode = new FormData();
+    fdlSharedFileMode.left = new FormAttachment( 0, 0 );
+    fdlSharedFileMode.top = new FormAttachment( wJsonBinaryOutput, margin );
+    fdlSharedFileMode.right = new FormAttachment( middle, -margin );
+    wlSharedFileMode.setLayoutData( fdlSharedFileMode );
+    wSharedFileMode = new CCombo( wAdvancedComp, SWT.BORDER | SWT.READ_ONLY );
+    wSharedFileMode.setEditable( false );
+    props.setLook( wSharedFileMode );
+    wSharedFileMode.addModifyListener( lsMod );
+    fdSharedFileMode = new FormData();
+    fdSharedFileMode.left = new FormAttachment( middle, 0 );
+    fdSharedFileMode.top = new FormAttachment( wJsonBinaryOutput, margin );
+    fdSharedFileMode.right = new FormAttachment( 75, 0 );
+    wSharedFileMode.setLayoutData( fdSharedFileMode );
+    for ( String sharedFileModeDesc : SHARED_FILE_MODE_DESC ) {
+      wSharedFileMode.add( sharedFileModeDesc );
+    }
+
+    wlCompressionThreads = new Label( wAdvancedComp, SWT.RIGHT );
+    wlCompressionThreads.setText( BaseMessages.getString( PKG, "AvroOutputDialog.CompressionThreads.Label" ) );
+    wlCompressionThreads.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.CompressionThreads.Tooltip" ) );
+    props.setLook( wlCompressionThreads );
+    fdlCompressionThreads = new FormData();
+    fdlCompressionThreads.left = new FormAttachment( 0, 0 );
+    fdlCompressionThreads.top = new FormAttachment( wSharedFileMode, margin );
+    fdlCompressionThreads.right = new FormAttachment( middle, -margin );
+    wlCompressionThreads.setLayoutData( fdlCompressionThreads );
+    wCompressionThreads = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wCompressionThreads );
+    wCompressionThreads.addModifyListener( lsMod );
+    fdCompressionThreads = new FormData();
+    fdCompressionThreads.left = new FormAttachment( middle, 0 );
+    fdCompressionThreads.top = new FormAttachment( wSharedFileMode, margin );
+    fdCompressionThreads.right = new FormAttachment( 75, 0 );
+    wCompressionThreads.setLayoutData( fdCompressionThreads );
+
+    wlWriteBufferSize = new Label( wAdvancedComp, SWT.RIGHT );
+    wlWriteBufferSize.setText( BaseMessages.getString( PKG, "AvroOutputDialog.WriteBufferSize.Label" ) );
+    wlWriteBufferSize.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.WriteBufferSize.Tooltip" ) );
+    props.setLook( wlWriteBufferSize );
+    fdlWriteBufferSize = new FormData();
+    fdlWriteBufferSize.left = new FormAttachment( 0, 0 );
+    fdlWriteBufferSize.top = new FormAttachment( wCompressionThreads, margin );
+    fdlWriteBufferSize.right = new FormAttachment( middle, -margin );
+    wlWriteBufferSize.setLayoutData( fdlWriteBufferSize );
+    wWriteBufferSize = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wWriteBufferSize );
+    wWriteBufferSize.addModifyListener( lsMod );
+    fdWriteBufferSize = new FormData();
+    fdWriteBufferSize.left = new FormAttachment( middle, 0 );
+    fdWriteBufferSize.top = new FormAttachment( wCompressionThreads, margin );
+    fdWriteBufferSize.right = new FormAttachment( 75, 0 );
+    wWriteBufferSize.setLayoutData( fdWriteBufferSize );
+
+    wlWriteBehindQueue = new Label( wAdvancedComp, SWT.RIGHT );
+    wlWriteBehindQueue.setText( BaseMessages.getString( PKG, "AvroOutputDialog.WriteBehindQueue.Label" ) );
+    wlWriteBehindQueue.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.WriteBehindQueue.Tooltip" ) );
+    props.setLook( wlWriteBehindQueue );
+    fdlWriteBehindQueue = new FormData();
+    fdlWriteBehindQueue.left = new FormAttachment( 0, 0 );
+    fdlWriteBehindQueue.top = new FormAttachment( wWriteBufferSize, margin );
+    fdlWriteBehindQueue.right = new FormAttachment( middle, -margin );
+    wlWriteBehindQueue.setLayoutData( fdlWriteBehindQueue );
+    wWriteBehindQueue = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wWriteBehindQueue );
+    wWriteBehindQueue.addModifyListener( lsMod );
+    fdWriteBehindQueue = new FormData();
+    fdWriteBehindQueue.left = new FormAttachment( middle, 0 );
+    fdWriteBehindQueue.top = new FormAttachment( wWriteBufferSize, margin );
+    fdWriteBehindQueue.right = new FormAttachment( 75, 0 );
+    wWriteBehindQueue.setLayoutData( fdWriteBehindQueue );
+
+    wlLocalFileMode = new Label( wAdvancedComp, SWT.RIGHT );
+    wlLocalFileMode.setText( BaseMessages.getString( PKG, "AvroOutputDialog.LocalFileMode.Label" ) );
+    wlLocalFileMode.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.LocalFileMode.Tooltip" ) );
+    props.setLook( wlLocalFileMode );
+    fdlLocalFileMode = new FormData();
+    fdlLocalFileMode.left = new FormAttachment( 0, 0 );
+    fdlLocalFileMode.top = new FormAttachment( wWriteBehindQueue, margin );
+    fdlLocalFileMode.right = new FormAttachment( middle, -margin );
+    wlLocalFileMode.setLayoutData( fdlLocalFileMode );
+    wLocalFileMode = new CCombo( wAdvancedComp, SWT.BORDER | SWT.READ_ONLY );
+    wLocalFileMode.setEditable( false );
+    props.setLook( wLocalFileMode );
+    wLocalFileMode.addModifyListener( lsMod );
+    wLocalFileMode.addSelectionListener( lsFlags );
+    fdLocalFileMode = new FormData();
+    fdLocalFileMode.left = new FormAttachment( middle, 0 );
+    fdLocalFileMode.top = new FormAttachment( wWriteBehindQueue, margin );
+    fdLocalFileMode.right = new FormAttachment( 75, 0 );
+    wLocalFileMode.setLayoutData( fdLocalFileMode );
+    for ( String localFileModeDesc : LOCAL_FILE_MODE_DESC ) {
+      wLocalFileMode.add( localFileModeDesc );
+    }
+
+    wlSyncPolicy = new Label( wAdvancedComp, SWT.RIGHT );
+    wlSyncPolicy.setText( BaseMessages.getString( PKG, "AvroOutputDialog.SyncPolicy.Label" ) );
+    wlSyncPolicy.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.SyncPolicy.Tooltip" ) );
+    props.setLook( wlSyncPolicy );
+    fdlSyncPolicy = new FormData();
+    fdlSyncPolicy.left = new FormAttachment( 0, 0 );
+    fdlSyncPolicy.top = new FormAttachment( wLocalFileMode, margin );
+    fdlSyncPolicy.right = new FormAttachment( middle, -margin );
+    wlSyncPolicy.setLayoutData( fdlSyncPolicy );
+    wSyncPolicy = new CCombo( wAdvancedComp, SWT.BORDER | SWT.READ_ONLY );
+    wSyncPolicy.setEditable( false );
+    props.setLook( wSyncPolicy );
+    wSyncPolicy.addModifyListener( lsMod );
+    wSyncPolicy.addSelectionListener( lsFlags );
+    fdSyncPolicy = new FormData();
+    fdSyncPolicy.left = new FormAttachment( middle, 0 );
+    fdSyncPolicy.top = new FormAttachment( wLocalFileMode, margin );
+    fdSyncPolicy.right = new FormAttachment( 75, 0 );
+    wSyncPolicy.setLayoutData( fdSyncPolicy );
+    for ( String syncPolicyDesc : SYNC_POLICY_DESC ) {
+      wSyncPolicy.add( syncPolicyDesc );
+    }
+
+    wlSyncBlocks = new Label( wAdvancedComp, SWT.RIGHT );
+    wlSyncBlocks.setText( BaseMessages.getString( PKG, "AvroOutputDialog.SyncBlocks.Label" ) );
+    wlSyncBlocks.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.SyncBlocks.Tooltip" ) );
+    props.setLook( wlSyncBlocks );
+    fdlSyncBlocks = new FormData();
+    fdlSyncBlocks.left = new FormAttachment( 0, 0 );
+    fdlSyncBlocks.top = new FormAttachment( wSyncPolicy, margin );
+    fdlSyncBlocks.right = new FormAttachment( middle, -margin );
+    wlSyncBlocks.setLayoutData( fdlSyncBlocks );
+    wSyncBlocks = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wSyncBlocks );
+    wSyncBlocks.addModifyListener( lsMod );
+    fdSyncBlocks = new FormData();
+    fdSyncBlocks.left = new FormAttachment( middle, 0 );
+    fdSyncBlocks.top = new FormAttachment( wSyncPolicy, margin );
+    fdSyncBlocks.right = new FormAttachment( 75, 0 );
+    wSyncBlocks.setLayoutData( fdSyncBlocks );
+
+    wlMaxFileRecords = new Label( wAdvancedComp, SWT.RIGHT );
+    wlMaxFileRecords.setText( BaseMessages.getString( PKG, "AvroOutputDialog.MaxFileRecords.Label" ) );
+    wlMaxFileRecords.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.MaxFileRecords.Tooltip" ) );
+    props.setLook( wlMaxFileRecords );
+    fdlMaxFileRecords = new FormData();
+    fdlMaxFileRecords.left = new FormAttachment( 0, 0 );
+    fdlMaxFileRecords.top = new FormAttachment( wSyncBlocks, margin );
+    fdlMaxFileRecords.right = new FormAttachment( middle, -margin );
+    wlMaxFileRecords.setLayoutData( fdlMaxFileRecords );
+    wMaxFileRecords = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wMaxFileRecords );
+    wMaxFileRecords.addModifyListener( lsMod );
+    fdMaxFileRecords = new FormData();
+    fdMaxFileRecords.left = new FormAttachment( middle, 0 );
+    fdMaxFileRecords.top = new FormAttachment( wSyncBlocks, margin );
+    fdMaxFileRecords.right = new FormAttachment( 75, 0 );
+    wMaxFileRecords.setLayoutData( fdMaxFileRecords );
+
+    wlMaxFileSize = new Label( wAdvancedComp, SWT.RIGHT );
+    wlMaxFileSize.setText( BaseMessages.getString( PKG, "AvroOutputDialog.MaxFileSize.Label" ) );
+    wlMaxFileSize.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.MaxFileSize.Tooltip" ) );
+    props.setLook( wlMaxFileSize );
+    fdlMaxFileSize = new FormData();
+    fdlMaxFileSize.left = new FormAttachment( 0, 0 );
+    fdlMaxFileSize.top = new FormAttachment( wMaxFileRecords, margin );
+    fdlMaxFileSize.right = new FormAttachment( middle, -margin );
+    wlMaxFileSize.setLayoutData( fdlMaxFileSize );
+    wMaxFileSize = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wMaxFileSize );
+    wMaxFileSize.addModifyListener( lsMod );
+    fdMaxFileSize = new FormData();
+    fdMaxFileSize.left = new FormAttachment( middle, 0 );
+    fdMaxFileSize.top = new FormAttachment( wMaxFileRecords, margin );
+    fdMaxFileSize.right = new FormAttachment( 75, 0 );
+    wMaxFileSize.setLayoutData( fdMaxFileSize );
+
+    wlMaxFileDuration = new Label( wAdvancedComp, SWT.RIGHT );
+    wlMaxFileDuration.setText( BaseMessages.getString( PKG, "AvroOutputDialog.MaxFileDuration.Label" ) );
+    wlMaxFileDuration.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.MaxFileDuration.Tooltip" ) );
+    props.setLook( wlMaxFileDuration );
+    fdlMaxFileDuration = new FormData();
+    fdlMaxFileDuration.left = new FormAttachment( 0, 0 );
+    fdlMaxFileDuration.top = new FormAttachment( wMaxFileSize, margin );
+    fdlMaxFileDuration.right = new FormAttachment( middle, -margin );
+    wlMaxFileDuration.setLayoutData( fdlMaxFileDuration );
+    wMaxFileDuration = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wMaxFileDuration );
+    wMaxFileDuration.addModifyListener( lsMod );
+    fdMaxFileDuration = new FormData();
+    fdMaxFileDuration.left = new FormAttachment( middle, 0 );
+    fdMaxFileDuration.top = new FormAttachment( wMaxFileSize, margin );
+    fdMaxFileDuration.right = new FormAttachment( 75, 0 );
+    wMaxFileDuration.setLayoutData( fdMaxFileDuration );
+
+    wlPartitionFields = new Label( wAdvancedComp, SWT.RIGHT );
+    wlPartitionFields.setText( BaseMessages.getString( PKG, "AvroOutputDialog.PartitionFields.Label" ) );
+    wlPartitionFields.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.PartitionFields.Tooltip" ) );
+    props.setLook( wlPartitionFields );
+    fdlPartitionFields = new FormData();
+    fdlPartitionFields.left = new FormAttachment( 0, 0 );
+    fdlPartitionFields.top = new FormAttachment( wMaxFileDuration, margin );
+    fdlPartitionFields.right = new FormAttachment( middle, -margin );
+    wlPartitionFields.setLayoutData( fdlPartitionFields );
+    wPartitionFields = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wPartitionFields );
+    wPartitionFields.addModifyListener( lsMod );
+    fdPartitionFields = new FormData();
+    fdPartitionFields.left = new FormAttachment( middle, 0 );
+    fdPartitionFields.top = new FormAttachment( wMaxFileDuration, margin );
+    fdPartitionFields.right = new FormAttachment( 75, 0 );
+    wPartitionFields.setLayoutData( fdPartitionFields );
+
+    wlMaxOpenFiles = new Label( wAdvancedComp, SWT.RIGHT );
+    wlMaxOpenFiles.setText( BaseMessages.getString( PKG, "AvroOutputDialog.MaxOpenFiles.Label" ) );
+    wlMaxOpenFiles.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.MaxOpenFiles.Tooltip" ) );
+    props.setLook( wlMaxOpenFiles );
+    fdlMaxOpenFiles = new FormData();
+    fdlMaxOpenFiles.left = new FormAttachment( 0, 0 );
+    fdlMaxOpenFiles.top = new FormAttachment( wPartitionFields, margin );
+    fdlMaxOpenFiles.right = new FormAttachment( middle, -margin );
+    wlMaxOpenFiles.setLayoutData( fdlMaxOpenFiles );
+    wMaxOpenFiles = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wMaxOpenFiles );
+    wMaxOpenFiles.addModifyListener( lsMod );
+    fdMaxOpenFiles = new FormData();
+    fdMaxOpenFiles.left = new FormAttachment( middle, 0 );
+    fdMaxOpenFiles.top = new FormAttachment( wPartitionFields, margin );
+    fdMaxOpenFiles.right = new FormAttachment( 75, 0 );
+    wMaxOpenFiles.setLayoutData( fdMaxOpenFiles );
+
+    wlStripeCount = new Label( wAdvancedComp, SWT.RIGHT );
+    wlStripeCount.setText( BaseMessages.getString( PKG, "AvroOutputDialog.StripeCount.Label" ) );
+    wlStripeCount.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.StripeCount.Tooltip" ) );
+    props.setLook( wlStripeCount );
+    fdlStripeCount = new FormData();
+    fdlStripeCount.left = new FormAttachment( 0, 0 );
+    fdlStripeCount.top = new FormAttachment( wMaxOpenFiles, margin );
+    fdlStripeCount.right = new FormAttachment( middle, -margin );
+    wlStripeCount.setLayoutData( fdlStripeCount );
+    wStripeCount = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wStripeCount );
+    wStripeCount.addModifyListener( lsMod );
+    fdStripeCount = new FormData();
+    fdStripeCount.left = new FormAttachment( middle, 0 );
+    fdStripeCount.top = new FormAttachment( wMaxOpenFiles, margin );
+    fdStripeCount.right = new FormAttachment( 75, 0 );
+    wStripeCount.setLayoutData( fdStripeCount );
+
+    wlStripeField = new Label( wAdvancedComp, SWT.RIGHT );
+    wlStripeField.setText( BaseMessages.getString( PKG, "AvroOutputDialog.StripeField.Label" ) );
+    wlStripeField.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.StripeField.Tooltip" ) );
+    props.setLook( wlStripeField );
+    fdlStripeField = new FormData();
+    fdlStripeField.left = new FormAttachment( 0, 0 );
+    fdlStripeField.top = new FormAttachment( wStripeCount, margin );
+    fdlStripeField.right = new FormAttachment( middle, -margin );
+    wlStripeField.setLayoutData( fdlStripeField );
+    wStripeField = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wStripeField );
+    wStripeField.addModifyListener( lsMod );
+    fdStripeField = new FormData();
+    fdStripeField.left = new FormAttachment( middle, 0 );
+    fdStripeField.top = new FormAttachment( wStripeCount, margin );
+    fdStripeField.right = new FormAttachment( 75, 0 );
+    wStripeField.setLayoutData( fdStripeField );
+
+    wlStripeFolders = new Label( wAdvancedComp, SWT.RIGHT );
+    wlStripeFolders.setText( BaseMessages.getString( PKG, "AvroOutputDialog.StripeFolders.Label" ) );
+    wlStripeFolders.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.StripeFolders.Tooltip" ) );
+    props.setLook( wlStripeFolders );
+    fdlStripeFolders = new FormData();
+    fdlStripeFolders.left = new FormAttachment( 0, 0 );
+    fdlStripeFolders.top = new FormAttachment( wStripeField, margin );
+    fdlStripeFolders.right = new FormAttachment( middle, -margin );
+    wlStripeFolders.setLayoutData( fdlStripeFolders );
+    wStripeFolders = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wStripeFolders );
+    wStripeFolders.addModifyListener( lsMod );
+    fdStripeFolders = new FormData();
+    fdStripeFolders.left = new FormAttachment( middle, 0 );
+    fdStripeFolders.top = new FormAttachment( wStripeField, margin );
+    fdStripeFolders.right = new FormAttachment( 75, 0 );
+    wStripeFolders.setLayoutData( fdStripeFolders );
+
+    wlTargetBlockSize = new Label( wAdvancedComp, SWT.RIGHT );
+    wlTargetBlockSize.setText( BaseMessages.getString( PKG, "AvroOutputDialog.TargetBlockSize.Label" ) );
+    wlTargetBlockSize.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.TargetBlockSize.Tooltip" ) );
+    props.setLook( wlTargetBlockSize );
+    fdlTargetBlockSize = new FormData();
+    fdlTargetBlockSize.left = new FormAttachment( 0, 0 );
+    fdlTargetBlockSize.top = new FormAttachment( wStripeFolders, margin );
+    fdlTargetBlockSize.right = new FormAttachment( middle, -margin );
+    wlTargetBlockSize.setLayoutData( fdlTargetBlockSize );
+    wTargetBlockSize = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wTargetBlockSize );
+    wTargetBlockSize.addModifyListener( lsMod );
+    fdTargetBlockSize = new FormData();
+    fdTargetBlockSize.left = new FormAttachment( middle, 0 );
+    fdTargetBlockSize.top = new FormAttachment( wStripeFolders, margin );
+    fdTargetBlockSize.right = new FormAttachment( 75, 0 );
+    wTargetBlockSize.setLayoutData( fdTargetBlockSize );
+
+    wlMessageFraming = new Label( wAdvancedComp, SWT.RIGHT );
+    wlMessageFraming.setText( BaseMessages.getString( PKG, "AvroOutputDialog.MessageFraming.Label" ) );
+    wlMessageFraming.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.MessageFraming.Tooltip" ) );
+    props.setLook( wlMessageFraming );
+    fdlMessageFraming = new FormData();
+    fdlMessageFraming.left = new FormAttachment( 0, 0 );
+    fdlMessageFraming.top = new FormAttachment( wTargetBlockSize, margin );
+    fdlMessageFraming.right = new FormAttachment( middle, -margin );
+    wlMessageFraming.setLayoutData( fdlMessageFraming );
+    wMessageFraming = new CCombo( wAdvancedComp, SWT.BORDER | SWT.READ_ONLY );
+    wMessageFraming.setEditable( false );
+    props.setLook( wMessageFraming );
+    wMessageFraming.addModifyListener( lsMod );
+    wMessageFraming.addSelectionListener( lsFlags );
+    fdMessageFraming = new FormData();
+    fdMessageFraming.left = new FormAttachment( middle, 0 );
+    fdMessageFraming.top = new FormAttachment( wTargetBlockSize, margin );
+    fdMessageFraming.right = new FormAttachment( 75, 0 );
+    wMessageFraming.setLayoutData( fdMessageFraming );
+    for ( String messageFramingDesc : MESSAGE_FRAMING_DESC ) {
+      wMessageFraming.add( messageFramingDesc );
+    }
+
+    wlSchemaRegistryUrl = new Label( wAdvancedComp, SWT.RIGHT );
+    wlSchemaRegistryUrl.setText( BaseMessages.getString( PKG, "AvroOutputDialog.SchemaRegistryUrl.Label" ) );
+    wlSchemaRegistryUrl.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.SchemaRegistryUrl.Tooltip" ) );
+    props.setLook( wlSchemaRegistryUrl );
+    fdlSchemaRegistryUrl = new FormData();
+    fdlSchemaRegistryUrl.left = new FormAttachment( 0, 0 );
+    fdlSchemaRegistryUrl.top = new FormAttachment( wMessageFraming, margin );
+    fdlSchemaRegistryUrl.right = new FormAttachment( middle, -margin );
+    wlSchemaRegistryUrl.setLayoutData( fdlSchemaRegistryUrl );
+    wSchemaRegistryUrl = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wSchemaRegistryUrl );
+    wSchemaRegistryUrl.addModifyListener( lsMod );
+    fdSchemaRegistryUrl = new FormData();
+    fdSchemaRegistryUrl.left = new FormAttachment( middle, 0 );
+    fdSchemaRegistryUrl.top = new FormAttachment( wMessageFraming, margin );
+    fdSchemaRegistryUrl.right = new FormAttachment( 75, 0 );
+    wSchemaRegistryUrl.setLayoutData( fdSchemaRegistryUrl );
+
+    wlSchemaSubject = new Label( wAdvancedComp, SWT.RIGHT );
+    wlSchemaSubject.setText( BaseMessages.getString( PKG, "AvroOutputDialog.SchemaSubject.Label" ) );
+    wlSchemaSubject.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.SchemaSubject.Tooltip" ) );
+    props.setLook( wlSchemaSubject );
+    fdlSchemaSubject = new FormData();
+    fdlSchemaSubject.left = new FormAttachment( 0, 0 );
+    fdlSchemaSubject.top = new FormAttachment( wSchemaRegistryUrl, margin );
+    fdlSchemaSubject.right = new FormAttachment( middle, -margin );
+    wlSchemaSubject.setLayoutData( fdlSchemaSubject );
+    wSchemaSubject = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wSchemaSubject );
+    wSchemaSubject.addModifyListener( lsMod );
+    fdSchemaSubject = new FormData();
+    fdSchemaSubject.left = new FormAttachment( middle, 0 );
+    fdSchemaSubject.top = new FormAttachment( wSchemaRegistryUrl, margin );
+    fdSchemaSubject.right = new FormAttachment( 75, 0 );
+    wSchemaSubject.setLayoutData( fdSchemaSubject );
+
+    wlSchemaRegistryClass = new Label( wAdvancedComp, SWT.RIGHT );
+    wlSchemaRegistryClass.setText( BaseMessages.getString( PKG, "AvroOutputDialog.SchemaRegistryClass.Label" ) );
+    wlSchemaRegistryClass.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.SchemaRegistryClass.Tooltip" ) );
+    props.setLook( wlSchemaRegistryClass );
+    fdlSchemaRegistryClass = new FormData();
+    fdlSchemaRegistryClass.left = new FormAttachment( 0, 0 );
+    fdlSchemaRegistryClass.top = new FormAttachment( wSchemaSubject, margin );
+    fdlSchemaRegistryClass.right = new FormAttachment( middle, -margin );
+    wlSchemaRegistryClass.setLayoutData( fdlSchemaRegistryClass );
+    wSchemaRegistryClass = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wSchemaRegistryClass );
+    wSchemaRegistryClass.addModifyListener( lsMod );
+    fdSchemaRegistryClass = new FormData();
+    fdSchemaRegistryClass.left = new FormAttachment( middle, 0 );
+    fdSchemaRegistryClass.top = new FormAttachment( wSchemaSubject, margin );
+    fdSchemaRegistryClass.right = new FormAttachment( 75, 0 );
+    wSchemaRegistryClass.setLayoutData( fdSchemaRegistryClass );
+
+    wlGroupFields = new Label( wAdvancedComp, SWT.RIGHT );
+    wlGroupFields.setText( BaseMessages.getString( PKG, "AvroOutputDialog.GroupFields.Label" ) );
+    wlGroupFields.setToolTipText( BaseMessages.getString( PKG, "AvroOutputDialog.GroupFields.Tooltip" ) );
+    props.setLook( wlGroupFields );
+    fdlGroupFields = new FormData();
+    fdlGroupFields.left = new FormAttachment( 0, 0 );
+    fdlGroupFields.top = new FormAttachment( wSchemaRegistryClass, margin );
+    fdlGroupFields.right = new FormAttachment( middle, -margin );
+    wlGroupFields.setLayoutData( fdlGroupFields );
+    wGroupFields = new TextVar( transMeta, wAdvancedComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wGroupFields );
+    wGroupFields.addModifyListener( lsMod );
+    fdGroupFields = new FormData();
+    fdGroupFields.left = new FormAttachment( middle, 0 );
+    fdGroupFields.top = new FormAttachment( wSchemaRegistryClass, margin );
+    fdGroupFields.right = new FormAttachment( 75, 0 );
+    wGroupFields.setLayoutData( fdGroupFields );
+
+    fdAdvancedComp = new FormData();
+    fdAdvancedComp.left = new FormAttachment( 0, 0 );
+    fdAdvancedComp.top = new FormAttachment( 0, 0 );
+    fdAdvancedComp.right = new FormAttachment( 100, 0 );
+    fdAdvancedComp.bottom = new FormAttachment( 100, 0 );
+    wAdvancedComp.setLayoutData( fdAdvancedComp );
+
+    wAdvancedComp.layout();
+    wAdvancedTab.setControl( wAdvancedComp );
+
+    // ///////////////////////////////////////////////////////////
+    // / END OF ADVANCED TAB
+    // ///////////////////////////////////////////////////////////
+
     fdTabFolder = new FormData();
     fdTabFolder.left = new FormAttachment( 0, 0 );
     fdTabFolder.top = new FormAttachment( wStepname, margin );
@@ -1001,13 +1647,26 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
       while ( avroName.contains( "." ) ) {
         String parentRecord = avroName.substring( 0, avroName.indexOf( "." ) );
         avroName = avroName.substring( avroName.indexOf( "." ) + 1 );
+        boolean array = parentRecord.endsWith( "[]" );
+        if ( array ) {
+          parentRecord = parentRecord.substring( 0, parentRecord.length() - 2 );
+        }
         Schema.Field field = recordSchema.getField( parentRecord );
         if ( field == null ) {
           return null;
         } else {
-          recordSchema = field.schema();
+          recordSchema = array ? getElementSchema( field.schema() ) : field.schema();
         }
       }
+      boolean array = avroName.endsWith( "[]" );
+      if ( array ) {
+        avroName = avroName.substring( 0, avroName.length() - 2 );
+      }
+      String mapKey = null;
+      if ( avroName.indexOf( "{" ) > 0 && avroName.endsWith( "}" ) ) {
+        mapKey = avroName.substring( avroName.indexOf( "{" ) + 1, avroName.length() - 1 );
+        avroName = avroName.substring( 0, avroName.indexOf( "{" ) );
+      }
       System.out.println( "Avro name is " + avroName );
       System.out.println( "Record Schema is " + recordSchema.toString( true ) );
       Schema.Field f = recordSchema.getField( avroName );
@@ -1015,18 +1674,51 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
       if ( f == null ) {
         return null;
       }
-      return f.schema();
+      if ( mapKey != null ) {
+        return mapKey.equals( "@key" ) ? Schema.create( Schema.Type.STRING ) : getMapValueSchema( f.schema() );
+      }
+      return array ? getElementSchema( f.schema() ) : f.schema();
     }
     return null;
   }
 
+  /**
+   * Get the value schema of a map, or of the map branch of a union.
+   */
+  private Schema getMapValueSchema( Schema schema )
+  {
+    if ( schema.getType() == Schema.Type.UNION ) {
+      for ( Schema type : schema.getTypes() ) {
+        if ( type.getType() == Schema.Type.MAP ) {
+          return type.getValueType();
+        }
+      }
+    }
+    return schema.getType() == Schema.Type.MAP ? schema.getValueType() : schema;
+  }
+
+  /**
+   * Get the element schema of an array, or of the array branch of a union.
+   */
+  private Schema getElementSchema( Schema schema )
+  {
+    if ( schema.getType() == Schema.Type.UNION ) {
+      for ( Schema type : schema.getTypes() ) {
+        if ( type.getType() == Schema.Type.ARRAY ) {
+          return type.getElementType();
+        }
+      }
+    }
+    return schema.getType() == Schema.Type.ARRAY ? schema.getElementType() : schema;
+  }
+
 
   private void updateSchema()
   {
 
     try {
       avroSchema = null;
-      avroSchema = new Schema.Parser().parse( new File( transMeta.environmentSubstitute( wSchema.getText() ) ) );
+      avroSchema = AvroSchemaCache.getSchema( wSchema.getText(), transMeta );
 
       validSchema = true;
 
@@ -1080,6 +1772,28 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
           }
           ArrayList<String> children = getFieldsList( type, child );
           result.addAll( children );
+        } else if ( type.getType() == Schema.Type.ARRAY )
+        {
+          String child = "$."+f.name()+"[]";
+          if( parent!= null && parent.length()>0 && !parent.equals( "$." ) )
+          {
+            child = parent+"."+f.name()+"[]";
+          }
+          if( type.getElementType().getType() == Schema.Type.RECORD )
+          {
+            result.addAll( getFieldsList( type.getElementType(), child ) );
+          } else {
+            result.add( child );
+          }
+        } else if ( type.getType() == Schema.Type.MAP )
+        {
+          String child = "$."+f.name();
+          if( parent!= null && parent.length()>0 && !parent.equals( "$." ) )
+          {
+            child = parent+"."+f.name();
+          }
+          result.add( child+"{@key}" );
+          result.add( child+"{@value}" );
         } else if ( !added )
         {
           added = true;
@@ -1146,6 +1860,7 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
     if( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE ) {
       wFilename.setEnabled( true );
       wCompression.setEnabled( true );
+      wCompressionLevel.setEnabled( true );
       wAddStepnr.setEnabled( true );
       wAddPartnr.setEnabled( true );
       wAddDate.setEnabled( true );
@@ -1157,6 +1872,7 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
         || outputTypeId == AvroOutputMeta.OUTPUT_TYPE_JSON_FIELD ) {
       wFilename.setEnabled( false );
       wCompression.setEnabled( false );
+      wCompressionLevel.setEnabled( false );
       wAddStepnr.setEnabled( false );
       wAddPartnr.setEnabled( false );
       wAddDate.setEnabled( false );
@@ -1165,6 +1881,32 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
       wDateTimeFormat.setEnabled( false );
       wOutputField.setEnabled( true );
     }
+    wReuseRecords.setEnabled( wSerializer.getSelectionIndex() == AvroOutputMeta.SERIALIZER_TYPE_GENERIC );
+    wJsonBinaryOutput.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_JSON_FIELD );
+    wSharedFileMode.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wCompressionThreads.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wWriteBufferSize.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wWriteBehindQueue.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wLocalFileMode.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    boolean localChannel = outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE
+      && wLocalFileMode.getSelectionIndex() > AvroOutputMeta.LOCAL_FILE_MODE_STREAM;
+    wSyncPolicy.setEnabled( localChannel );
+    wSyncBlocks.setEnabled( localChannel && wSyncPolicy.getSelectionIndex() == AvroOutputMeta.SYNC_POLICY_BLOCKS );
+    wMaxFileRecords.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wMaxFileSize.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wMaxFileDuration.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wPartitionFields.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wMaxOpenFiles.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wStripeCount.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wStripeField.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wStripeFolders.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wTargetBlockSize.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_BINARY_FILE );
+    wMessageFraming.setEnabled( outputTypeId == AvroOutputMeta.OUTPUT_TYPE_FIELD );
+    boolean registry = outputTypeId == AvroOutputMeta.OUTPUT_TYPE_FIELD
+      && wMessageFraming.getSelectionIndex() == AvroOutputMeta.MESSAGE_FRAMING_REGISTRY;
+    wSchemaRegistryUrl.setEnabled( registry );
+    wSchemaSubject.setEnabled( registry );
+    wSchemaRegistryClass.setEnabled( registry );
   }
 
   private void setCreateSchemaFile() {
@@ -1207,6 +1949,40 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
       wFilename.setText( input.getFileName() );
     }
     wOutputField.setText( Const.NVL( input.getOutputFieldName(), "" ) );
+    if ( input.getSerializerTypeId() >= 0 && input.getSerializerTypeId() < SERIALIZER_TYPE_DESC.length ) {
+      wSerializer.setText( SERIALIZER_TYPE_DESC[input.getSerializerTypeId()] );
+    }
+    wReuseRecords.setSelection( input.isReuseRecords() );
+    wJsonBinaryOutput.setSelection( input.isJsonBinaryOutput() );
+    if ( input.getSharedFileModeId() >= 0 && input.getSharedFileModeId() < SHARED_FILE_MODE_DESC.length ) {
+      wSharedFileMode.setText( SHARED_FILE_MODE_DESC[input.getSharedFileModeId()] );
+    }
+    wCompressionThreads.setText( Const.NVL( input.getCompressionThreads(), "" ) );
+    wWriteBufferSize.setText( Const.NVL( input.getWriteBufferSize(), "" ) );
+    wWriteBehindQueue.setText( Const.NVL( input.getWriteBehindQueue(), "" ) );
+    if ( input.getLocalFileModeId() >= 0 && input.getLocalFileModeId() < LOCAL_FILE_MODE_DESC.length ) {
+      wLocalFileMode.setText( LOCAL_FILE_MODE_DESC[input.getLocalFileModeId()] );
+    }
+    if ( input.getSyncPolicyId() >= 0 && input.getSyncPolicyId() < SYNC_POLICY_DESC.length ) {
+      wSyncPolicy.setText( SYNC_POLICY_DESC[input.getSyncPolicyId()] );
+    }
+    wSyncBlocks.setText( Const.NVL( input.getSyncBlocks(), "" ) );
+    wMaxFileRecords.setText( Const.NVL( input.getMaxFileRecords(), "" ) );
+    wMaxFileSize.setText( Const.NVL( input.getMaxFileSize(), "" ) );
+    wMaxFileDuration.setText( Const.NVL( input.getMaxFileDuration(), "" ) );
+    wPartitionFields.setText( Const.NVL( input.getPartitionFields(), "" ) );
+    wMaxOpenFiles.setText( Const.NVL( input.getMaxOpenFiles(), "" ) );
+    wStripeCount.setText( Const.NVL( input.getStripeCount(), "" ) );
+    wStripeField.setText( Const.NVL( input.getStripeField(), "" ) );
+    wStripeFolders.setText( Const.NVL( input.getStripeFolders(), "" ) );
+    wTargetBlockSize.setText( Const.NVL( input.getTargetBlockSize(), "" ) );
+    if ( input.getMessageFramingId() >= 0 && input.getMessageFramingId() < MESSAGE_FRAMING_DESC.length ) {
+      wMessageFraming.setText( MESSAGE_FRAMING_DESC[input.getMessageFramingId()] );
+    }
+    wSchemaRegistryUrl.setText( Const.NVL( input.getSchemaRegistryUrl(), "" ) );
+    wSchemaSubject.setText( Const.NVL( input.getSchemaSubject(), "" ) );
+    wSchemaRegistryClass.setText( Const.NVL( input.getSchemaRegistryClass(), "" ) );
+    wGroupFields.setText( Const.NVL( input.getGroupFields(), "" ) );
     if( input.getSchemaFileName() != null ) {
     	wSchema.setText( input.getSchemaFileName() );
       updateSchema();
@@ -1229,6 +2005,7 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
     wCreateSchemaFile.setSelection( input.getCreateSchemaFile() );
     wWriteSchemaFile.setSelection( input.getWriteSchemaFile() );
     wCompression.setText( Const.NVL( input.getCompressionType(), "" ) );
+    wCompressionLevel.setText( Const.NVL( input.getCompressionLevel(), "" ) );
 
     wAddDate.setSelection( input.getDateInFilename() );
     wAddTime.setSelection( input.getTimeInFilename() );
@@ -1259,6 +2036,14 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
       } else {
         item.setText( 4, "N" );
       }
+      if( field.getPrecision() > 0 )
+      {
+        item.setText( 5, Integer.toString( field.getPrecision() ) );
+      }
+      if( field.getScale() >= 0 )
+      {
+        item.setText( 6, Integer.toString( field.getScale() ) );
+      }
     }
 
     wFields.optWidth( true );
@@ -1280,6 +2065,30 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
     tfoi.setOutputTypeById( wOutputType.getSelectionIndex() );
     tfoi.setFileName( wFilename.getText() );
     tfoi.setOutputFieldName( wOutputField.getText() );
+    tfoi.setSerializerTypeById( wSerializer.getSelectionIndex() );
+    tfoi.setReuseRecords( wReuseRecords.getSelection() );
+    tfoi.setJsonBinaryOutput( wJsonBinaryOutput.getSelection() );
+    tfoi.setSharedFileModeById( wSharedFileMode.getSelectionIndex() );
+    tfoi.setCompressionThreads( wCompressionThreads.getText() );
+    tfoi.setWriteBufferSize( wWriteBufferSize.getText() );
+    tfoi.setWriteBehindQueue( wWriteBehindQueue.getText() );
+    tfoi.setLocalFileModeById( wLocalFileMode.getSelectionIndex() );
+    tfoi.setSyncPolicyById( wSyncPolicy.getSelectionIndex() );
+    tfoi.setSyncBlocks( wSyncBlocks.getText() );
+    tfoi.setMaxFileRecords( wMaxFileRecords.getText() );
+    tfoi.setMaxFileSize( wMaxFileSize.getText() );
+    tfoi.setMaxFileDuration( wMaxFileDuration.getText() );
+    tfoi.setPartitionFields( wPartitionFields.getText() );
+    tfoi.setMaxOpenFiles( wMaxOpenFiles.getText() );
+    tfoi.setStripeCount( wStripeCount.getText() );
+    tfoi.setStripeField( wStripeField.getText() );
+    tfoi.setStripeFolders( wStripeFolders.getText() );
+    tfoi.setTargetBlockSize( wTargetBlockSize.getText() );
+    tfoi.setMessageFramingById( wMessageFraming.getSelectionIndex() );
+    tfoi.setSchemaRegistryUrl( wSchemaRegistryUrl.getText() );
+    tfoi.setSchemaSubject( wSchemaSubject.getText() );
+    tfoi.setSchemaRegistryClass( wSchemaRegistryClass.getText() );
+    tfoi.setGroupFields( wGroupFields.getText() );
     tfoi.setSchemaFileName( wSchema.getText() );
     tfoi.setCreateSchemaFile( wCreateSchemaFile.getSelection() );
     tfoi.setWriteSchemaFile( wWriteSchemaFile.getSelection() );
@@ -1287,6 +2096,7 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
     tfoi.setRecordName( wRecordName.getText() );
     tfoi.setDoc( wDoc.getText() );
     tfoi.setCompressionType( wCompression.getText() );
+    tfoi.setCompressionLevel( wCompressionLevel.getText() );
     tfoi.setCreateParentFolder( wCreateParentFolder.getSelection() );
     tfoi.setStepNrInFilename( wAddStepnr.getSelection() );
     tfoi.setPartNrInFilename( wAddPartnr.getSelection() );
@@ -1315,6 +2125,8 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
         nullable = true;
       }
       field.setNullable( nullable );
+      field.setPrecision( Const.toInt( item.getText( 5 ), -1 ) );
+      field.setScale( Const.toInt( item.getText( 6 ), -1 ) );
 
       //CHECKSTYLE:Indentation:OFF
       tfoi.getOutputFields()[i] = field;
@@ -1358,7 +2170,10 @@ public class AvroOutputDialog extends BaseStepDialog implements StepDialogInterf
       if ( r != null ) {
         TableItemInsertListener listener = new TableItemInsertListener() {
           public boolean tableItemInserted( TableItem tableItem, ValueMetaInterface v ) {
-
+            if ( v.getType() == ValueMetaInterface.TYPE_BIGNUMBER && v.getLength() > 0 ) {
+              tableItem.setText( 5, Integer.toString( v.getLength() ) );
+              tableItem.setText( 6, Integer.toString( Math.max( 0, v.getPrecision() ) ) );
+            }
             return true;
           }
         };
@@ -59,6 +59,12 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
   @Injection( name = "NULLABLE", group = "OUTPUT_FIELDS" )
   private boolean nullable;
 
+  @Injection( name = "PRECISION", group = "OUTPUT_FIELDS" )
+  private int precision = -1;
+
+  @Injection( name = "SCALE", group = "OUTPUT_FIELDS" )
+  private int scale = -1;
+
   public final static int AVRO_TYPE_NONE = 0;
   public final static int AVRO_TYPE_BOOLEAN = 1;
   public final static int AVRO_TYPE_DOUBLE = 2;
@@ -67,8 +73,15 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
   public final static int AVRO_TYPE_LONG = 5;
   public final static int AVRO_TYPE_STRING = 6;
   public final static int AVRO_TYPE_ENUM = 7;
+  public final static int AVRO_TYPE_BYTES = 8;
+  public final static int AVRO_TYPE_FIXED = 9;
+  public final static int AVRO_TYPE_DECIMAL = 10;
+  public final static int AVRO_TYPE_DATE = 11;
+  public final static int AVRO_TYPE_TIMESTAMP_MILLIS = 12;
+  public final static int AVRO_TYPE_TIMESTAMP_MICROS = 13;
 
-  private static String[] avroDescriptions = {"","Boolean","Double","Float","Int","Long","String", "Enum"};
+  private static String[] avroDescriptions = {"","Boolean","Double","Float","Int","Long","String", "Enum", "Bytes",
+    "Fixed", "Decimal", "Date", "Timestamp-millis", "Timestamp-micros"};
 
   public AvroOutputField( String name, String avroName, int avroType, boolean nullable ) {
     this.name = name;
@@ -185,6 +198,36 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
     this.nullable = nullable;
   }
 
+  /**
+   * Return the number of digits of a Decimal, -1 to use the precision of the schema or the length of the stream
+   * field.
+   * @return precision
+   */
+  public int getPrecision()
+  {
+    return precision;
+  }
+
+  public void setPrecision( int precision )
+  {
+    this.precision = precision;
+  }
+
+  /**
+   * Return the number of digits after the decimal point of a Decimal, -1 to use the scale of the schema or the
+   * precision of the stream field.
+   * @return scale
+   */
+  public int getScale()
+  {
+    return scale;
+  }
+
+  public void setScale( int scale )
+  {
+    this.scale = scale;
+  }
+
   /**
    * Return the array of all Avro datatype descriptions.
    * @return avroDescriptions
@@ -201,8 +244,9 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
    */
   public static String[] getAvroTypeArraySorted()
   {
-    String[] sorted = avroDescriptions;
-    Arrays.sort( sorted, 1, avroDescriptions.length-1 );
+    // Sort a copy, the position in avroDescriptions is the Avro type.
+    String[] sorted = avroDescriptions.clone();
+    Arrays.sort( sorted, 1, sorted.length );
     return sorted;
   }
 
@@ -237,12 +281,19 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
   {
     switch( pentahoType ) {
       case ValueMetaInterface.TYPE_NUMBER :
-      case ValueMetaInterface.TYPE_BIGNUMBER :
         return AVRO_TYPE_DOUBLE;
+      case ValueMetaInterface.TYPE_BIGNUMBER :
+        return AVRO_TYPE_DECIMAL;
       case ValueMetaInterface.TYPE_INTEGER :
         return AVRO_TYPE_LONG;
       case ValueMetaInterface.TYPE_BOOLEAN :
         return AVRO_TYPE_BOOLEAN;
+      case ValueMetaInterface.TYPE_BINARY :
+        return AVRO_TYPE_BYTES;
+      case ValueMetaInterface.TYPE_DATE :
+        return AVRO_TYPE_TIMESTAMP_MILLIS;
+      case ValueMetaInterface.TYPE_TIMESTAMP :
+        return AVRO_TYPE_TIMESTAMP_MICROS;
       default:
         return AVRO_TYPE_STRING;
     }
@@ -250,7 +301,7 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
 
   public Schema.Type getAvroSchemaType() throws KettleException
   {
-    switch( avroType ) {
+    switch( getAvroType() ) {
       case AVRO_TYPE_BOOLEAN :
         return Schema.Type.BOOLEAN;
       case AVRO_TYPE_DOUBLE :
@@ -258,13 +309,21 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
       case AVRO_TYPE_FLOAT :
         return Schema.Type.FLOAT;
       case AVRO_TYPE_INT :
+      case AVRO_TYPE_DATE :
         return Schema.Type.INT;
       case AVRO_TYPE_LONG :
+      case AVRO_TYPE_TIMESTAMP_MILLIS :
+      case AVRO_TYPE_TIMESTAMP_MICROS :
         return Schema.Type.LONG;
       case AVRO_TYPE_STRING :
         return Schema.Type.STRING;
       case AVRO_TYPE_ENUM :
           return Schema.Type.ENUM;
+      case AVRO_TYPE_BYTES :
+      case AVRO_TYPE_DECIMAL :
+        return Schema.Type.BYTES;
+      case AVRO_TYPE_FIXED :
+        return Schema.Type.FIXED;
       default :
         throw new KettleException( "Unsupported Avro Type " + avroDescriptions[ avroType ] );
     }
@@ -284,10 +343,17 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
         avroTypeDesc[0] = avroDescriptions[AVRO_TYPE_FLOAT];
         break;
       case INT :
-        avroTypeDesc[0] = avroDescriptions[AVRO_TYPE_INT];
+        avroTypeDesc[0] = avroDescriptions[AvroLogicalTypes.is( schema, AvroLogicalTypes.DATE )
+          ? AVRO_TYPE_DATE : AVRO_TYPE_INT];
         break;
       case LONG :
-        avroTypeDesc[0] = avroDescriptions[AVRO_TYPE_LONG];
+        if ( AvroLogicalTypes.is( schema, AvroLogicalTypes.TIMESTAMP_MILLIS ) ) {
+          avroTypeDesc[0] = avroDescriptions[AVRO_TYPE_TIMESTAMP_MILLIS];
+        } else if ( AvroLogicalTypes.is( schema, AvroLogicalTypes.TIMESTAMP_MICROS ) ) {
+          avroTypeDesc[0] = avroDescriptions[AVRO_TYPE_TIMESTAMP_MICROS];
+        } else {
+          avroTypeDesc[0] = avroDescriptions[AVRO_TYPE_LONG];
+        }
         break;
       case STRING :
         avroTypeDesc[0] = avroDescriptions[AVRO_TYPE_STRING];
@@ -295,6 +361,13 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
       case ENUM :
           avroTypeDesc[0] = avroDescriptions[AVRO_TYPE_ENUM];
           break;
+      case BYTES :
+        avroTypeDesc[0] = avroDescriptions[AvroLogicalTypes.is( schema, AvroLogicalTypes.DECIMAL )
+          ? AVRO_TYPE_DECIMAL : AVRO_TYPE_BYTES];
+        break;
+      case FIXED :
+        avroTypeDesc[0] = avroDescriptions[AVRO_TYPE_FIXED];
+        break;
       case UNION:
         List<Schema> schemas = schema.getTypes();
         Iterator<Schema> it = schemas.iterator();
@@ -309,7 +382,7 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
             if( unionAvroType.length>0 )
             {
               avroTypes.add( unionAvroType );
-              arrayLength++;
+              arrayLength += unionAvroType.length;
             }
           }
         }
@@ -327,6 +400,11 @@ public class AvroOutputField implements Cloneable, Comparable<AvroOutputField> {
           }
         }
         break;
+      case MAP:
+        // The Avro type of a map path is the type of the values.
+        return mapAvroType( schema.getValueType(), schema.getValueType().getType() );
+      case ARRAY:
+        return mapAvroType( schema.getElementType(), schema.getElementType().getType() );
       default :
         return new String[] {};
     }
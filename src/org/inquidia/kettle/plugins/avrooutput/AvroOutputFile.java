@@ -0,0 +1,184 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.vfs.KettleVFS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One of several Avro container files written at the same time by a step copy, with its own stream, block
+ * appender and container writer.  The files share the schema and datum writer of the step.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroOutputFile {
+
+  public final String filename;
+
+  private final AvroBlockAppender appender;
+
+  private final AvroContainerWriter writer;
+
+  private long records;
+
+  private AvroOutputFile( String filename, AvroBlockAppender appender, AvroContainerWriter writer ) {
+    this.filename = filename;
+    this.appender = appender;
+    this.writer = writer;
+  }
+
+  /**
+   * Open a container file.
+   *
+   * @param step The step writing the file.
+   * @param filename The full filename.
+   * @param append Whether to add blocks to an existing container file instead of creating a new one.  The file
+   *               must have been written with the same schema and codec.
+   * @param compressionThreads The number of threads compressing blocks, 0 to compress on the step thread.
+   * @return The open file.
+   * @throws KettleException if the file can not be opened.
+   */
+  public static AvroOutputFile open( AvroOutput step, String filename, boolean append, int compressionThreads )
+    throws KettleException {
+    return open( step, filename, append, compressionThreads, step.meta.getCreateParentFolder() );
+  }
+
+  /**
+   * Open a container file.
+   *
+   * @param createParentFolder Whether to create the parent folder if it does not exist.
+   * @see #open(AvroOutput, String, boolean, int)
+   */
+  public static AvroOutputFile open( AvroOutput step, String filename, boolean append, int compressionThreads,
+                                     boolean createParentFolder ) throws KettleException {
+    AvroOutputData data = step.data;
+    AvroBlockCodec codec = step.createCodec();
+    byte[] sync = null;
+    if ( append ) {
+      sync = readSync( step, filename, data.avroSchema, codec.getName() );
+    }
+
+    OutputStream out = step.openOutputStream( filename, append, createParentFolder );
+    boolean opened = false;
+    try {
+      AvroBlockAppender appender = new AvroBlockAppender( out, true );
+      if ( sync != null ) {
+        appender.resume( sync );
+      } else {
+        appender.writeHeader( data.avroSchema, codec.getName() );
+      }
+      AvroContainerWriter writer = new AvroContainerWriter( data.datumWriter, codec, appender,
+        DataFileConstants.DEFAULT_SYNC_INTERVAL, compressionThreads, step.getStepname() + " compression" );
+      writer.setTargetBlockSize( step.getTargetBlockSize() );
+      opened = true;
+      return new AvroOutputFile( filename, appender, writer );
+    } catch ( IOException e ) {
+      throw new KettleException( "Could not open Avro file " + filename, e );
+    } finally {
+      if ( !opened ) {
+        // Also stops the write-behind thread of the stream
+        try {
+          out.close();
+        } catch ( IOException ce ) {
+          // Ignore, the open failed
+        }
+      }
+    }
+  }
+
+  private static byte[] readSync( AvroOutput step, String filename, Schema schema, String codec )
+    throws KettleException {
+    InputStream in = null;
+    try {
+      in = KettleVFS.getInputStream( filename, step );
+      AvroContainerHeader header = AvroContainerHeader.read( in );
+      if ( !codec.equals( header.getCodec() ) ) {
+        throw new KettleException( "Avro file " + filename + " is compressed with " + header.getCodec()
+          + " instead of " + codec + "." );
+      }
+      if ( !schema.equals( header.getSchema() ) ) {
+        throw new KettleException( "Avro file " + filename + " was written with a different schema." );
+      }
+      return header.getSync();
+    } catch ( IOException e ) {
+      throw new KettleException( "Could not read the header of Avro file " + filename, e );
+    } finally {
+      if ( in != null ) {
+        try {
+          in.close();
+        } catch ( IOException e ) {
+          // Ignore
+        }
+      }
+    }
+  }
+
+  public void append( Object[] r ) throws KettleException {
+    try {
+      writer.append( r );
+      records++;
+    } catch ( IOException e ) {
+      throw new KettleException( e );
+    }
+  }
+
+  /**
+   * @return The number of records appended since the file was opened.
+   */
+  public long getRecords() {
+    return records;
+  }
+
+  /**
+   * @return The number of bytes of the data blocks written since the file was opened.
+   */
+  public long getBytesWritten() {
+    return appender.getBytesWritten();
+  }
+
+  /**
+   * Write the last block and close the file.
+   *
+   * @throws KettleException if the file can not be written or closed.
+   */
+  public void close() throws KettleException {
+    try {
+      try {
+        writer.close();
+      } finally {
+        appender.close();
+      }
+    } catch ( IOException e ) {
+      throw new KettleException( "Error closing Avro file " + filename, e );
+    }
+  }
+}
@@ -54,6 +54,7 @@ import org.pentaho.metastore.api.IMetaStore;
 import org.w3c.dom.Node;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -78,6 +79,7 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
   public static final String FILENAME = "filename";
   public static final String SCHEMAFILENAME = "schemafilename";
   public static final String COMPRESSIONTYPE = "compressiontype";
+  public static final String COMPRESSION_LEVEL = "compression_level";
   public static final String SPLIT = "split";
   public static final String HASPARTNO = "haspartno";
   public static final String ADD_DATE = "add_date";
@@ -92,6 +94,8 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
   public static final String AVRONAME = "avroname";
   public static final String AVROTYPE = "avrotype";
   public static final String NULLABLE = "nullable";
+  public static final String PRECISION = "precision";
+  public static final String SCALE = "scale";
   public static final String FILE_NAME = "file_name";
   public static final String SCHEMA_FILE_NAME = "schemaFileName";
   public static final String FILE_ADD_STEPNR = "file_add_stepnr";
@@ -101,16 +105,66 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
   public static final String FIELD_NAME = "field_name";
   public static final String OUTPUT_TYPE = "output_type";
   public static final String OUTPUT_FIELD_NAME = "output_field_name";
+  public static final String SERIALIZER_TYPE = "serializer_type";
+  public static final String REUSE_RECORDS = "reuse_records";
+  public static final String JSON_BINARY_OUTPUT = "json_binary_output";
+  public static final String SHARED_FILE_MODE = "shared_file_mode";
+  public static final String COMPRESSION_THREADS = "compression_threads";
+  public static final String WRITE_BUFFER_SIZE = "write_buffer_size";
+  public static final String WRITE_BEHIND_QUEUE = "write_behind_queue";
+  public static final String LOCAL_FILE_MODE = "local_file_mode";
+  public static final String SYNC_POLICY = "sync_policy";
+  public static final String SYNC_BLOCKS = "sync_blocks";
+  public static final String MAX_FILE_RECORDS = "max_file_records";
+  public static final String MAX_FILE_SIZE = "max_file_size";
+  public static final String MAX_FILE_DURATION = "max_file_duration";
+  public static final String PARTITION_FIELDS = "partition_fields";
+  public static final String MAX_OPEN_FILES = "max_open_files";
+  public static final String STRIPE_COUNT = "stripe_count";
+  public static final String STRIPE_FIELD = "stripe_field";
+  public static final String STRIPE_FOLDERS = "stripe_folders";
+  public static final String TARGET_BLOCK_SIZE = "target_block_size";
+  public static final String MESSAGE_FRAMING = "message_framing";
+  public static final String SCHEMA_REGISTRY_URL = "schema_registry_url";
+  public static final String SCHEMA_SUBJECT = "schema_subject";
+  public static final String SCHEMA_REGISTRY_CLASS = "schema_registry_class";
+  public static final String GROUP_FIELDS = "group_fields";
   private static Class<?> PKG = AvroOutputMeta.class; // for i18n purposes, needed by Translator2!!
 
-  //Avro 1.7.6 supports bzip2 as an additional codec; however, Pentaho is still on Avro 1.6.2.
-  public static final String[] compressionTypes = {"none","deflate","snappy"};
+  //Pentaho is still on Avro 1.6.2, which only reads none, deflate and snappy.  The other codecs are implemented by
+  //AvroBlockCodec and need a newer Avro to read.
+  public static final String[] compressionTypes = {"none","deflate","snappy","zstandard","xz","bzip2"};
 
   public static final String[] OUTPUT_TYPES = { "BinaryFile", "BinaryField", "JsonField" };
   public static final int OUTPUT_TYPE_BINARY_FILE = 0;
   public static final int OUTPUT_TYPE_FIELD = 1;
   public static final int OUTPUT_TYPE_JSON_FIELD = 2;
 
+  public static final String[] SERIALIZER_TYPES = { "Generic", "Direct", "Generated" };
+  public static final int SERIALIZER_TYPE_GENERIC = 0;
+  public static final int SERIALIZER_TYPE_DIRECT = 1;
+  public static final int SERIALIZER_TYPE_GENERATED = 2;
+
+  public static final String[] SHARED_FILE_MODES = { "None", "Ordered", "Unordered" };
+  public static final int SHARED_FILE_MODE_NONE = 0;
+  public static final int SHARED_FILE_MODE_ORDERED = 1;
+  public static final int SHARED_FILE_MODE_UNORDERED = 2;
+
+  public static final String[] LOCAL_FILE_MODES = { "Stream", "Channel", "Mapped" };
+  public static final int LOCAL_FILE_MODE_STREAM = 0;
+  public static final int LOCAL_FILE_MODE_CHANNEL = 1;
+  public static final int LOCAL_FILE_MODE_MAPPED = 2;
+
+  public static final String[] SYNC_POLICIES = { "None", "Close", "Blocks" };
+  public static final int SYNC_POLICY_NONE = 0;
+  public static final int SYNC_POLICY_CLOSE = 1;
+  public static final int SYNC_POLICY_BLOCKS = 2;
+
+  public static final String[] MESSAGE_FRAMINGS = { "None", "Registry", "SingleObject" };
+  public static final int MESSAGE_FRAMING_NONE = 0;
+  public static final int MESSAGE_FRAMING_REGISTRY = 1;
+  public static final int MESSAGE_FRAMING_SINGLE_OBJECT = 2;
+
   /** The base name of the output file */
   @Injection( name = "FILENAME" )
   private String fileName;
@@ -163,6 +217,10 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
   @Injection( name = "COMPRESSION_CODEC" )
   private String compressionType;
 
+  /** The compression level, empty for the default level of the codec */
+  @Injection( name = "COMPRESSION_LEVEL" )
+  private String compressionLevel;
+
     /* THE FIELD SPECIFICATIONS ... */
 
   /** The output fields */
@@ -184,6 +242,102 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
 
   @Injection( name = "OUTPUT_FIELD_NAME" )
   private String outputFieldName;
+
+  /** How rows are serialized: through generic Avro records or directly from the row */
+  @Injection( name = "SERIALIZER_TYPE" )
+  private String serializerType;
+
+  /** Flag: reuse one generic Avro record tree for every row instead of allocating new records */
+  @Injection( name = "REUSE_RECORDS" )
+  private boolean reuseRecords;
+
+  /** Flag: output JsonField messages as UTF-8 bytes in a Binary field instead of a String field */
+  @Injection( name = "JSON_AS_BINARY" )
+  private boolean jsonBinaryOutput;
+
+  /** Whether all step copies write to one file, and if so whether blocks are written in the order they started */
+  @Injection( name = "SHARED_FILE_MODE" )
+  private String sharedFileMode;
+
+  /** The number of threads compressing container file blocks, empty or 0 to compress on the step thread */
+  @Injection( name = "COMPRESSION_THREADS" )
+  private String compressionThreads;
+
+  /** The size in bytes of the output file buffers */
+  @Injection( name = "WRITE_BUFFER_SIZE" )
+  private String writeBufferSize;
+
+  /** The number of full buffers queued for the I/O thread, empty or 0 to write on the step thread */
+  @Injection( name = "WRITE_BEHIND_QUEUE" )
+  private String writeBehindQueue;
+
+  /** How local files are written, through VFS streams, a file channel or a memory-mapped file */
+  @Injection( name = "LOCAL_FILE_MODE" )
+  private String localFileMode;
+
+  /** When local files written through a file channel are synced to disk */
+  @Injection( name = "SYNC_POLICY" )
+  private String syncPolicy;
+
+  /** The number of data blocks written between syncs when syncing every N blocks */
+  @Injection( name = "SYNC_BLOCKS" )
+  private String syncBlocks;
+
+  /** Start a new file after this many records, empty or 0 for no limit */
+  @Injection( name = "MAX_FILE_RECORDS" )
+  private String maxFileRecords;
+
+  /** Start a new file once this many compressed bytes are written, empty or 0 for no limit */
+  @Injection( name = "MAX_FILE_SIZE" )
+  private String maxFileSize;
+
+  /** Start a new file once a file has been open this many seconds, empty or 0 for no limit */
+  @Injection( name = "MAX_FILE_DURATION" )
+  private String maxFileDuration;
+
+  /** The fields the output is partitioned by, as a comma separated list of [name=]field[:hour|:day] */
+  @Injection( name = "PARTITION_FIELDS" )
+  private String partitionFields;
+
+  /** The number of partition files kept open at the same time */
+  @Injection( name = "MAX_OPEN_FILES" )
+  private String maxOpenFiles;
+
+  /** The number of files each step copy spreads its rows over */
+  @Injection( name = "STRIPE_COUNT" )
+  private String stripeCount;
+
+  /** The field whose hash picks the stripe file, empty for round-robin */
+  @Injection( name = "STRIPE_FIELD" )
+  private String stripeField;
+
+  /** Comma separated folders the stripe files are spread over, empty for the folder of the output file */
+  @Injection( name = "STRIPE_FOLDERS" )
+  private String stripeFolders;
+
+  /** The compressed size in bytes to aim the blocks at, empty for the Avro sync interval */
+  @Injection( name = "TARGET_BLOCK_SIZE" )
+  private String targetBlockSize;
+
+  /** The schema identifier written in front of each binary message */
+  @Injection( name = "MESSAGE_FRAMING" )
+  private String messageFraming;
+
+  /** The location of the schema registry */
+  @Injection( name = "SCHEMA_REGISTRY_URL" )
+  private String schemaRegistryUrl;
+
+  /** The registry subject the schema is registered under */
+  @Injection( name = "SCHEMA_SUBJECT" )
+  private String schemaSubject;
+
+  /** The class of the schema registry client, empty for the file registry */
+  @Injection( name = "SCHEMA_REGISTRY_CLASS" )
+  private String schemaRegistryClass;
+
+  /** The comma separated fields whose consecutive rows are written as one record with arrays */
+  @Injection( name = "GROUP_FIELDS" )
+  private String groupFields;
   
   public AvroOutputMeta() {
     super(); // allocate BaseStepMeta
@@ -420,6 +574,14 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
     this.compressionType = compressionType;
   }
 
+  public String getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public void setCompressionLevel( String compressionLevel ) {
+    this.compressionLevel = compressionLevel;
+  }
+
   public String getOutputType() {
     return outputType;
   }
@@ -455,6 +617,406 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
     this.outputFieldName = outputFieldName;
   }
 
+  public String getSerializerType() {
+    return serializerType;
+  }
+
+  public void setSerializerType( String serializerType ) {
+    this.serializerType = serializerType;
+  }
+
+  public int getSerializerTypeId() {
+    if ( serializerType != null ) {
+      for ( int i = 0; i < SERIALIZER_TYPES.length; i++ ) {
+        if ( serializerType.equalsIgnoreCase( SERIALIZER_TYPES[i] ) ) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  public void setSerializerTypeById( int serializerTypeId ) {
+    if ( serializerTypeId >= 0 && serializerTypeId < SERIALIZER_TYPES.length ) {
+      this.serializerType = SERIALIZER_TYPES[serializerTypeId];
+    } else {
+      this.serializerType = null;
+    }
+  }
+
+  public boolean isReuseRecords() {
+    return reuseRecords;
+  }
+
+  public void setReuseRecords( boolean reuseRecords ) {
+    this.reuseRecords = reuseRecords;
+  }
+
+  public boolean isJsonBinaryOutput() {
+    return jsonBinaryOutput;
+  }
+
+  public void setJsonBinaryOutput( boolean jsonBinaryOutput ) {
+    this.jsonBinaryOutput = jsonBinaryOutput;
+  }
+
+  public String getSharedFileMode() {
+    return sharedFileMode;
+  }
+
+  public void setSharedFileMode( String sharedFileMode ) {
+    this.sharedFileMode = sharedFileMode;
+  }
+
+  public String getCompressionThreads() {
+    return compressionThreads;
+  }
+
+  public void setCompressionThreads( String compressionThreads ) {
+    this.compressionThreads = compressionThreads;
+  }
+
+  public String getWriteBufferSize() {
+    return writeBufferSize;
+  }
+
+  public void setWriteBufferSize( String writeBufferSize ) {
+    this.writeBufferSize = writeBufferSize;
+  }
+
+  public String getWriteBehindQueue() {
+    return writeBehindQueue;
+  }
+
+  public void setWriteBehindQueue( String writeBehindQueue ) {
+    this.writeBehindQueue = writeBehindQueue;
+  }
+
+  public String getLocalFileMode() {
+    return localFileMode;
+  }
+
+  public void setLocalFileMode( String localFileMode ) {
+    this.localFileMode = localFileMode;
+  }
+
+  public int getLocalFileModeId() {
+    if ( localFileMode != null ) {
+      for ( int i = 0; i < LOCAL_FILE_MODES.length; i++ ) {
+        if ( localFileMode.equalsIgnoreCase( LOCAL_FILE_MODES[i] ) ) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  public void setLocalFileModeById( int localFileModeId ) {
+    if ( localFileModeId >= 0 && localFileModeId < LOCAL_FILE_MODES.length ) {
+      this.localFileMode = LOCAL_FILE_MODES[localFileModeId];
+    } else {
+      this.localFileMode = null;
+    }
+  }
+
+  public String getSyncPolicy() {
+    return syncPolicy;
+  }
+
+  public void setSyncPolicy( String syncPolicy ) {
+    this.syncPolicy = syncPolicy;
+  }
+
+  public int getSyncPolicyId() {
+    if ( syncPolicy != null ) {
+      for ( int i = 0; i < SYNC_POLICIES.length; i++ ) {
+        if ( syncPolicy.equalsIgnoreCase( SYNC_POLICIES[i] ) ) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  public void setSyncPolicyById( int syncPolicyId ) {
+    if ( syncPolicyId >= 0 && syncPolicyId < SYNC_POLICIES.length ) {
+      this.syncPolicy = SYNC_POLICIES[syncPolicyId];
+    } else {
+      this.syncPolicy = null;
+    }
+  }
+
+  public String getSyncBlocks() {
+    return syncBlocks;
+  }
+
+  public void setSyncBlocks( String syncBlocks ) {
+    this.syncBlocks = syncBlocks;
+  }
+
+  public String getMaxFileRecords() {
+    return maxFileRecords;
+  }
+
+  public void setMaxFileRecords( String maxFileRecords ) {
+    this.maxFileRecords = maxFileRecords;
+  }
+
+  public String getMaxFileSize() {
+    return maxFileSize;
+  }
+
+  public void setMaxFileSize( String maxFileSize ) {
+    this.maxFileSize = maxFileSize;
+  }
+
+  public String getMaxFileDuration() {
+    return maxFileDuration;
+  }
+
+  public void setMaxFileDuration( String maxFileDuration ) {
+    this.maxFileDuration = maxFileDuration;
+  }
+
+  public String getPartitionFields() {
+    return partitionFields;
+  }
+
+  public void setPartitionFields( String partitionFields ) {
+    this.partitionFields = partitionFields;
+  }
+
+  public String getMaxOpenFiles() {
+    return maxOpenFiles;
+  }
+
+  public void setMaxOpenFiles( String maxOpenFiles ) {
+    this.maxOpenFiles = maxOpenFiles;
+  }
+
+  public String getStripeCount() {
+    return stripeCount;
+  }
+
+  public void setStripeCount( String stripeCount ) {
+    this.stripeCount = stripeCount;
+  }
+
+  public String getStripeField() {
+    return stripeField;
+  }
+
+  public void setStripeField( String stripeField ) {
+    this.stripeField = stripeField;
+  }
+
+  public String getStripeFolders() {
+    return stripeFolders;
+  }
+
+  public void setStripeFolders( String stripeFolders ) {
+    this.stripeFolders = stripeFolders;
+  }
+
+  public String getTargetBlockSize() {
+    return targetBlockSize;
+  }
+
+  public void setTargetBlockSize( String targetBlockSize ) {
+    this.targetBlockSize = targetBlockSize;
+  }
+
+  public String getMessageFraming() {
+    return messageFraming;
+  }
+
+  public void setMessageFraming( String messageFraming ) {
+    this.messageFraming = messageFraming;
+  }
+
+  public String getSchemaRegistryUrl() {
+    return schemaRegistryUrl;
+  }
+
+  public void setSchemaRegistryUrl( String schemaRegistryUrl ) {
+    this.schemaRegistryUrl = schemaRegistryUrl;
+  }
+
+  public String getSchemaSubject() {
+    return schemaSubject;
+  }
+
+  public void setSchemaSubject( String schemaSubject ) {
+    this.schemaSubject = schemaSubject;
+  }
+
+  public String getSchemaRegistryClass() {
+    return schemaRegistryClass;
+  }
+
+  public void setSchemaRegistryClass( String schemaRegistryClass ) {
+    this.schemaRegistryClass = schemaRegistryClass;
+  }
+
+  public String getGroupFields() {
+    return groupFields;
+  }
+
+  public void setGroupFields( String groupFields ) {
+    this.groupFields = groupFields;
+  }
+
+  public int getMessageFramingId() {
+    if ( messageFraming != null ) {
+      for ( int i = 0; i < MESSAGE_FRAMINGS.length; i++ ) {
+        if ( messageFraming.equalsIgnoreCase( MESSAGE_FRAMINGS[i] ) ) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  public void setMessageFramingById( int messageFramingId ) {
+    if ( messageFramingId >= 0 && messageFramingId < MESSAGE_FRAMINGS.length ) {
+      this.messageFraming = MESSAGE_FRAMINGS[messageFramingId];
+    } else {
+      this.messageFraming = null;
+    }
+  }
+
+  /**
+   * Check if the output rolls over to a new numbered file when a file reaches one of its limits.  Rolling over is
+   * not possible when the copies of the step share a file or the output is partitioned or striped, these settings
+   * are reported by getFileConflict.
+   *
+   * @param space The variable space to resolve the limits with.
+   * @return true if one of the limits is set.
+   */
+  public boolean isRollover( VariableSpace space ) {
+    if ( getSharedFileModeId() == SHARED_FILE_MODE_ORDERED || getSharedFileModeId() == SHARED_FILE_MODE_UNORDERED
+      || isPartitioned() || getStripes( space ) > 1 ) {
+      return false;
+    }
+    return hasFileLimits( space );
+  }
+
+  private boolean hasFileLimits( VariableSpace space ) {
+    return Const.toLong( space.environmentSubstitute( maxFileRecords ), 0 ) > 0
+      || Const.toLong( space.environmentSubstitute( maxFileSize ), 0 ) > 0
+      || Const.toLong( space.environmentSubstitute( maxFileDuration ), 0 ) > 0;
+  }
+
+  /**
+   * Stripe files can not be combined with partition fields, shared file mode or the max file limits, shared file
+   * mode can not be combined with partition fields, and the max file limits can not be combined with shared file mode
+   * or partition fields.
+   *
+   * @param space The variable space to resolve the settings with.
+   * @return The message describing the conflicting settings, null if there is no conflict.
+   */
+  public String getFileConflict( VariableSpace space ) {
+    if ( getOutputTypeId() != OUTPUT_TYPE_BINARY_FILE ) {
+      return null;
+    }
+    boolean sharedFile =
+      getSharedFileModeId() == SHARED_FILE_MODE_ORDERED || getSharedFileModeId() == SHARED_FILE_MODE_UNORDERED;
+    if ( Const.toInt( space.environmentSubstitute( stripeCount ), 1 ) > 1 ) {
+      if ( isPartitioned() ) {
+        return BaseMessages.getString( PKG, "AvroOutputMeta.CheckResult.StripesWithPartitionFields" );
+      }
+      if ( sharedFile ) {
+        return BaseMessages.getString( PKG, "AvroOutputMeta.CheckResult.StripesWithSharedFile" );
+      }
+      if ( hasFileLimits( space ) ) {
+        return BaseMessages.getString( PKG, "AvroOutputMeta.CheckResult.StripesWithFileLimits" );
+      }
+    }
+    if ( sharedFile && isPartitioned() ) {
+      return BaseMessages.getString( PKG, "AvroOutputMeta.CheckResult.SharedFileWithPartitionFields" );
+    }
+    if ( hasFileLimits( space ) ) {
+      if ( isPartitioned() ) {
+        return BaseMessages.getString( PKG, "AvroOutputMeta.CheckResult.FileLimitsWithPartitionFields" );
+      }
+      if ( sharedFile ) {
+        return BaseMessages.getString( PKG, "AvroOutputMeta.CheckResult.FileLimitsWithSharedFile" );
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param space The variable space to resolve the compression level with.
+   * @return A codec for the compression type and level.
+   * @throws KettleException if the codec is not supported or the level is not valid for it.
+   */
+  public AvroBlockCodec createCodec( VariableSpace space ) throws KettleException {
+    String level = space.environmentSubstitute( compressionLevel );
+    if ( Const.isEmpty( level ) ) {
+      return AvroBlockCodec.create( compressionType, AvroBlockCodec.DEFAULT_LEVEL );
+    }
+    try {
+      return AvroBlockCodec.create( compressionType, Integer.parseInt( level.trim() ) );
+    } catch ( NumberFormatException e ) {
+      throw new KettleException( "Compression level " + level + " is not a number." );
+    }
+  }
+
+  /**
+   * @param space The variable space to resolve the group key fields with.
+   * @return The names of the fields that group consecutive rows into one record, empty for one record per row.
+   */
+  public String[] getGroupFieldNames( VariableSpace space ) {
+    List<String> names = new ArrayList<String>();
+    String fields = space.environmentSubstitute( groupFields );
+    if ( !Const.isEmpty( fields ) ) {
+      for ( String name : fields.split( "," ) ) {
+        if ( !Const.isEmpty( name.trim() ) ) {
+          names.add( name.trim() );
+        }
+      }
+    }
+    return names.toArray( new String[names.size()] );
+  }
+
+  /**
+   * @return true if the output file is split into partition directories by field values.
+   */
+  public boolean isPartitioned() {
+    return getOutputTypeId() == OUTPUT_TYPE_BINARY_FILE && !Const.isEmpty( partitionFields );
+  }
+
+  /**
+   * @param space The variable space to resolve the stripe count with.
+   * @return The number of files each step copy spreads its rows over, 1 if the output is not striped.
+   */
+  public int getStripes( VariableSpace space ) {
+    if ( getOutputTypeId() != OUTPUT_TYPE_BINARY_FILE || isPartitioned() ) {
+      return 1;
+    }
+    return Math.max( 1, Const.toInt( space.environmentSubstitute( stripeCount ), 1 ) );
+  }
+
+  public int getSharedFileModeId() {
+    if ( sharedFileMode != null ) {
+      for ( int i = 0; i < SHARED_FILE_MODES.length; i++ ) {
+        if ( sharedFileMode.equalsIgnoreCase( SHARED_FILE_MODES[i] ) ) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  public void setSharedFileModeById( int sharedFileModeId ) {
+    if ( sharedFileModeId >= 0 && sharedFileModeId < SHARED_FILE_MODES.length ) {
+      this.sharedFileMode = SHARED_FILE_MODES[sharedFileModeId];
+    } else {
+      this.sharedFileMode = null;
+    }
+  }
+
   /**
    * @return Returns the outputFields.
    */
@@ -512,6 +1074,7 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
       fileName = XMLHandler.getTagValue( stepnode, FILENAME );
       schemaFileName = XMLHandler.getTagValue( stepnode, SCHEMAFILENAME );
       compressionType = XMLHandler.getTagValue( stepnode, COMPRESSIONTYPE );
+      compressionLevel = XMLHandler.getTagValue( stepnode, COMPRESSION_LEVEL );
     		  
       stepNrInFilename = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, SPLIT ) );
       partNrInFilename = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, HASPARTNO ) );
@@ -524,6 +1087,45 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
         outputType = OUTPUT_TYPES[OUTPUT_TYPE_BINARY_FILE];
       }
       outputFieldName = XMLHandler.getTagValue( stepnode, OUTPUT_FIELD_NAME );
+      serializerType = XMLHandler.getTagValue( stepnode, SERIALIZER_TYPE );
+      if ( Const.isEmpty( serializerType ) ) {
+        serializerType = SERIALIZER_TYPES[SERIALIZER_TYPE_DIRECT];
+      }
+      reuseRecords = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, REUSE_RECORDS ) );
+      jsonBinaryOutput = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, JSON_BINARY_OUTPUT ) );
+      sharedFileMode = XMLHandler.getTagValue( stepnode, SHARED_FILE_MODE );
+      if ( Const.isEmpty( sharedFileMode ) ) {
+        sharedFileMode = SHARED_FILE_MODES[SHARED_FILE_MODE_NONE];
+      }
+      compressionThreads = XMLHandler.getTagValue( stepnode, COMPRESSION_THREADS );
+      writeBufferSize = XMLHandler.getTagValue( stepnode, WRITE_BUFFER_SIZE );
+      writeBehindQueue = XMLHandler.getTagValue( stepnode, WRITE_BEHIND_QUEUE );
+      localFileMode = XMLHandler.getTagValue( stepnode, LOCAL_FILE_MODE );
+      if ( Const.isEmpty( localFileMode ) ) {
+        localFileMode = LOCAL_FILE_MODES[LOCAL_FILE_MODE_STREAM];
+      }
+      syncPolicy = XMLHandler.getTagValue( stepnode, SYNC_POLICY );
+      if ( Const.isEmpty( syncPolicy ) ) {
+        syncPolicy = SYNC_POLICIES[SYNC_POLICY_NONE];
+      }
+      syncBlocks = XMLHandler.getTagValue( stepnode, SYNC_BLOCKS );
+      maxFileRecords = XMLHandler.getTagValue( stepnode, MAX_FILE_RECORDS );
+      maxFileSize = XMLHandler.getTagValue( stepnode, MAX_FILE_SIZE );
+      maxFileDuration = XMLHandler.getTagValue( stepnode, MAX_FILE_DURATION );
+      partitionFields = XMLHandler.getTagValue( stepnode, PARTITION_FIELDS );
+      maxOpenFiles = XMLHandler.getTagValue( stepnode, MAX_OPEN_FILES );
+      stripeCount = XMLHandler.getTagValue( stepnode, STRIPE_COUNT );
+      stripeField = XMLHandler.getTagValue( stepnode, STRIPE_FIELD );
+      stripeFolders = XMLHandler.getTagValue( stepnode, STRIPE_FOLDERS );
+      targetBlockSize = XMLHandler.getTagValue( stepnode, TARGET_BLOCK_SIZE );
+      messageFraming = XMLHandler.getTagValue( stepnode, MESSAGE_FRAMING );
+      if ( Const.isEmpty( messageFraming ) ) {
+        messageFraming = MESSAGE_FRAMINGS[MESSAGE_FRAMING_NONE];
+      }
+      schemaRegistryUrl = XMLHandler.getTagValue( stepnode, SCHEMA_REGISTRY_URL );
+      schemaSubject = XMLHandler.getTagValue( stepnode, SCHEMA_SUBJECT );
+      schemaRegistryClass = XMLHandler.getTagValue( stepnode, SCHEMA_REGISTRY_CLASS );
+      groupFields = XMLHandler.getTagValue( stepnode, GROUP_FIELDS );
 
       String AddToResultFiles = XMLHandler.getTagValue( stepnode, FILE, ADD_TO_RESULT_FILENAMES );
       if ( Const.isEmpty( AddToResultFiles ) ) {
@@ -546,6 +1148,8 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
         outputFields[i].setAvroType( Const.toInt( XMLHandler.getTagValue( fnode, AVROTYPE ), 0 ) );
         outputFields[i].setNullable( XMLHandler.getTagValue( fnode, NULLABLE ) == null ? true :
           "Y".equalsIgnoreCase( XMLHandler.getTagValue( fnode, NULLABLE ) ) );
+        outputFields[i].setPrecision( Const.toInt( XMLHandler.getTagValue( fnode, PRECISION ), -1 ) );
+        outputFields[i].setScale( Const.toInt( XMLHandler.getTagValue( fnode, SCALE ), -1 ) );
       }
     } catch ( Exception e ) {
       throw new KettleXMLException( "Unable to load step info from XML", e );
@@ -568,8 +1172,33 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
     timeInFilename = false;
     addToResultFilenames = true;
     compressionType = "none";
+    compressionLevel = "";
     outputType = OUTPUT_TYPES[OUTPUT_TYPE_BINARY_FILE];
     outputFieldName = "avro_record";
+    serializerType = SERIALIZER_TYPES[SERIALIZER_TYPE_DIRECT];
+    reuseRecords = false;
+    jsonBinaryOutput = false;
+    sharedFileMode = SHARED_FILE_MODES[SHARED_FILE_MODE_NONE];
+    compressionThreads = "0";
+    writeBufferSize = "5000";
+    writeBehindQueue = "0";
+    localFileMode = LOCAL_FILE_MODES[LOCAL_FILE_MODE_STREAM];
+    syncPolicy = SYNC_POLICIES[SYNC_POLICY_NONE];
+    syncBlocks = "10";
+    maxFileRecords = "";
+    maxFileSize = "";
+    maxFileDuration = "";
+    partitionFields = "";
+    maxOpenFiles = "32";
+    stripeCount = "1";
+    stripeField = "";
+    stripeFolders = "";
+    targetBlockSize = "";
+    messageFraming = MESSAGE_FRAMINGS[MESSAGE_FRAMING_NONE];
+    schemaRegistryUrl = "";
+    schemaSubject = "";
+    schemaRegistryClass = "";
+    groupFields = "";
 
     }
 
@@ -579,6 +1208,15 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
 
   public String buildFilename( String filename, VariableSpace space, int stepnr, String partnr,
     int splitnr, boolean ziparchive, AvroOutputMeta meta ) {
+    return buildFilename( filename, space, stepnr, partnr, splitnr, ziparchive, meta, true );
+  }
+
+  /**
+   * @param rolloverNr Add the roll-over number when a file limit is set.  Files written once per step, like the
+   *                   schema file, are not rolled over.
+   */
+  public String buildFilename( String filename, VariableSpace space, int stepnr, String partnr,
+    int splitnr, boolean ziparchive, AvroOutputMeta meta, boolean rolloverNr ) {
     SimpleDateFormat daf = new SimpleDateFormat();
 
     // Replace possible environment variables...
@@ -618,6 +1256,9 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
     if ( meta.getPartNrInFilename() ) {
       retval += "_" + partnr;
     }
+    if ( rolloverNr && meta.isRollover( space ) ) {
+      retval += "_" + splitnr;
+    }
 
     if ( extension != null && extension.length() != 0 ) {
       retval += "." + extension;
@@ -637,6 +1278,7 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
     retval.append( "      " ).append( XMLHandler.addTagValue( FILENAME, fileName ) );
     retval.append( "      " ).append( XMLHandler.addTagValue( SCHEMAFILENAME, schemaFileName ) );
     retval.append( "      " ).append( XMLHandler.addTagValue( COMPRESSIONTYPE, compressionType ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( COMPRESSION_LEVEL, compressionLevel ) );
     retval.append( "      " ).append( XMLHandler.addTagValue( SPLIT, stepNrInFilename ) );
     retval.append( "      " ).append( XMLHandler.addTagValue( HASPARTNO, partNrInFilename ) );
     retval.append( "      " ).append( XMLHandler.addTagValue( ADD_DATE, dateInFilename ) );
@@ -645,6 +1287,30 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
     retval.append( "      " ).append( XMLHandler.addTagValue( DATE_TIME_FORMAT, dateTimeFormat ) );
     retval.append( "      " ).append( XMLHandler.addTagValue( OUTPUT_TYPE, outputType ) );
     retval.append( "      " ).append( XMLHandler.addTagValue( OUTPUT_FIELD_NAME, outputFieldName ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( SERIALIZER_TYPE, serializerType ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( REUSE_RECORDS, reuseRecords ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( JSON_BINARY_OUTPUT, jsonBinaryOutput ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( SHARED_FILE_MODE, sharedFileMode ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( COMPRESSION_THREADS, compressionThreads ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( WRITE_BUFFER_SIZE, writeBufferSize ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( WRITE_BEHIND_QUEUE, writeBehindQueue ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( LOCAL_FILE_MODE, localFileMode ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( SYNC_POLICY, syncPolicy ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( SYNC_BLOCKS, syncBlocks ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( MAX_FILE_RECORDS, maxFileRecords ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( MAX_FILE_SIZE, maxFileSize ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( MAX_FILE_DURATION, maxFileDuration ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( PARTITION_FIELDS, partitionFields ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( MAX_OPEN_FILES, maxOpenFiles ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( STRIPE_COUNT, stripeCount ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( STRIPE_FIELD, stripeField ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( STRIPE_FOLDERS, stripeFolders ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( TARGET_BLOCK_SIZE, targetBlockSize ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( MESSAGE_FRAMING, messageFraming ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( SCHEMA_REGISTRY_URL, schemaRegistryUrl ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( SCHEMA_SUBJECT, schemaSubject ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( SCHEMA_REGISTRY_CLASS, schemaRegistryClass ) );
+    retval.append( "      " ).append( XMLHandler.addTagValue( GROUP_FIELDS, groupFields ) );
 
     retval.append( "      " ).append( XMLHandler.addTagValue( ADD_TO_RESULT_FILENAMES, addToResultFilenames ) );
 
@@ -658,6 +1324,8 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
         retval.append( "        " ).append( XMLHandler.addTagValue( AVRONAME, field.getAvroName() ) );
         retval.append( "        " ).append( XMLHandler.addTagValue( AVROTYPE, field.getAvroType() ) );
         retval.append( "        " ).append( XMLHandler.addTagValue( NULLABLE, field.getNullable() ) );
+        retval.append( "        " ).append( XMLHandler.addTagValue( PRECISION, field.getPrecision() ) );
+        retval.append( "        " ).append( XMLHandler.addTagValue( SCALE, field.getScale() ) );
         retval.append( "      </field>" ).append( Const.CR );
       }
     }
@@ -678,6 +1346,7 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
       fileName = rep.getStepAttributeString( id_step, FILE_NAME );
       schemaFileName = rep.getStepAttributeString( id_step, SCHEMA_FILE_NAME );
       compressionType = rep.getStepAttributeString( id_step, COMPRESSIONTYPE );
+      compressionLevel = rep.getStepAttributeString( id_step, COMPRESSION_LEVEL );
       stepNrInFilename = rep.getStepAttributeBoolean( id_step, FILE_ADD_STEPNR );
       partNrInFilename = rep.getStepAttributeBoolean( id_step, FILE_ADD_PARTNR );
       dateInFilename = rep.getStepAttributeBoolean( id_step, FILE_ADD_DATE );
@@ -689,6 +1358,45 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
         outputType = OUTPUT_TYPES[OUTPUT_TYPE_BINARY_FILE];
       }
       outputFieldName = rep.getStepAttributeString( id_step, OUTPUT_FIELD_NAME );
+      serializerType = rep.getStepAttributeString( id_step, SERIALIZER_TYPE );
+      if ( Const.isEmpty( serializerType ) ) {
+        serializerType = SERIALIZER_TYPES[SERIALIZER_TYPE_DIRECT];
+      }
+      reuseRecords = rep.getStepAttributeBoolean( id_step, REUSE_RECORDS );
+      jsonBinaryOutput = rep.getStepAttributeBoolean( id_step, JSON_BINARY_OUTPUT );
+      sharedFileMode = rep.getStepAttributeString( id_step, SHARED_FILE_MODE );
+      if ( Const.isEmpty( sharedFileMode ) ) {
+        sharedFileMode = SHARED_FILE_MODES[SHARED_FILE_MODE_NONE];
+      }
+      compressionThreads = rep.getStepAttributeString( id_step, COMPRESSION_THREADS );
+      writeBufferSize = rep.getStepAttributeString( id_step, WRITE_BUFFER_SIZE );
+      writeBehindQueue = rep.getStepAttributeString( id_step, WRITE_BEHIND_QUEUE );
+      localFileMode = rep.getStepAttributeString( id_step, LOCAL_FILE_MODE );
+      if ( Const.isEmpty( localFileMode ) ) {
+        localFileMode = LOCAL_FILE_MODES[LOCAL_FILE_MODE_STREAM];
+      }
+      syncPolicy = rep.getStepAttributeString( id_step, SYNC_POLICY );
+      if ( Const.isEmpty( syncPolicy ) ) {
+        syncPolicy = SYNC_POLICIES[SYNC_POLICY_NONE];
+      }
+      syncBlocks = rep.getStepAttributeString( id_step, SYNC_BLOCKS );
+      maxFileRecords = rep.getStepAttributeString( id_step, MAX_FILE_RECORDS );
+      maxFileSize = rep.getStepAttributeString( id_step, MAX_FILE_SIZE );
+      maxFileDuration = rep.getStepAttributeString( id_step, MAX_FILE_DURATION );
+      partitionFields = rep.getStepAttributeString( id_step, PARTITION_FIELDS );
+      maxOpenFiles = rep.getStepAttributeString( id_step, MAX_OPEN_FILES );
+      stripeCount = rep.getStepAttributeString( id_step, STRIPE_COUNT );
+      stripeField = rep.getStepAttributeString( id_step, STRIPE_FIELD );
+      stripeFolders = rep.getStepAttributeString( id_step, STRIPE_FOLDERS );
+      targetBlockSize = rep.getStepAttributeString( id_step, TARGET_BLOCK_SIZE );
+      messageFraming = rep.getStepAttributeString( id_step, MESSAGE_FRAMING );
+      if ( Const.isEmpty( messageFraming ) ) {
+        messageFraming = MESSAGE_FRAMINGS[MESSAGE_FRAMING_NONE];
+      }
+      schemaRegistryUrl = rep.getStepAttributeString( id_step, SCHEMA_REGISTRY_URL );
+      schemaSubject = rep.getStepAttributeString( id_step, SCHEMA_SUBJECT );
+      schemaRegistryClass = rep.getStepAttributeString( id_step, SCHEMA_REGISTRY_CLASS );
+      groupFields = rep.getStepAttributeString( id_step, GROUP_FIELDS );
 
       String AddToResultFiles = rep.getStepAttributeString( id_step, ADD_TO_RESULT_FILENAMES );
       if ( Const.isEmpty( AddToResultFiles ) ) {
@@ -709,6 +1417,8 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
         Long avroType = rep.getStepAttributeInteger( id_step, i, AVROTYPE );
         outputFields[i].setAvroType( avroType.intValue() );
         outputFields[i].setNullable( rep.getStepAttributeBoolean( id_step, i, NULLABLE ) );
+        outputFields[i].setPrecision( (int) rep.getStepAttributeInteger( id_step, i, PRECISION ) );
+        outputFields[i].setScale( (int) rep.getStepAttributeInteger( id_step, i, SCALE ) );
       }
 
     } catch ( Exception e ) {
@@ -728,6 +1438,7 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
       rep.saveStepAttribute( id_transformation, id_step, FILE_NAME, fileName );
       rep.saveStepAttribute( id_transformation, id_step, SCHEMA_FILE_NAME, schemaFileName );
       rep.saveStepAttribute( id_transformation, id_step, COMPRESSIONTYPE, compressionType );
+      rep.saveStepAttribute( id_transformation, id_step, COMPRESSION_LEVEL, compressionLevel );
       rep.saveStepAttribute( id_transformation, id_step, FILE_ADD_STEPNR, stepNrInFilename );
       rep.saveStepAttribute( id_transformation, id_step, FILE_ADD_PARTNR, partNrInFilename );
       rep.saveStepAttribute( id_transformation, id_step, FILE_ADD_DATE, dateInFilename );
@@ -735,6 +1446,30 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
       rep.saveStepAttribute( id_transformation, id_step, SPECIFY_FORMAT, specifyingFormat );
       rep.saveStepAttribute( id_transformation, id_step, OUTPUT_TYPE, outputType );;
       rep.saveStepAttribute( id_transformation, id_step, OUTPUT_FIELD_NAME, outputFieldName );
+      rep.saveStepAttribute( id_transformation, id_step, SERIALIZER_TYPE, serializerType );
+      rep.saveStepAttribute( id_transformation, id_step, REUSE_RECORDS, reuseRecords );
+      rep.saveStepAttribute( id_transformation, id_step, JSON_BINARY_OUTPUT, jsonBinaryOutput );
+      rep.saveStepAttribute( id_transformation, id_step, SHARED_FILE_MODE, sharedFileMode );
+      rep.saveStepAttribute( id_transformation, id_step, COMPRESSION_THREADS, compressionThreads );
+      rep.saveStepAttribute( id_transformation, id_step, WRITE_BUFFER_SIZE, writeBufferSize );
+      rep.saveStepAttribute( id_transformation, id_step, WRITE_BEHIND_QUEUE, writeBehindQueue );
+      rep.saveStepAttribute( id_transformation, id_step, LOCAL_FILE_MODE, localFileMode );
+      rep.saveStepAttribute( id_transformation, id_step, SYNC_POLICY, syncPolicy );
+      rep.saveStepAttribute( id_transformation, id_step, SYNC_BLOCKS, syncBlocks );
+      rep.saveStepAttribute( id_transformation, id_step, MAX_FILE_RECORDS, maxFileRecords );
+      rep.saveStepAttribute( id_transformation, id_step, MAX_FILE_SIZE, maxFileSize );
+      rep.saveStepAttribute( id_transformation, id_step, MAX_FILE_DURATION, maxFileDuration );
+      rep.saveStepAttribute( id_transformation, id_step, PARTITION_FIELDS, partitionFields );
+      rep.saveStepAttribute( id_transformation, id_step, MAX_OPEN_FILES, maxOpenFiles );
+      rep.saveStepAttribute( id_transformation, id_step, STRIPE_COUNT, stripeCount );
+      rep.saveStepAttribute( id_transformation, id_step, STRIPE_FIELD, stripeField );
+      rep.saveStepAttribute( id_transformation, id_step, STRIPE_FOLDERS, stripeFolders );
+      rep.saveStepAttribute( id_transformation, id_step, TARGET_BLOCK_SIZE, targetBlockSize );
+      rep.saveStepAttribute( id_transformation, id_step, MESSAGE_FRAMING, messageFraming );
+      rep.saveStepAttribute( id_transformation, id_step, SCHEMA_REGISTRY_URL, schemaRegistryUrl );
+      rep.saveStepAttribute( id_transformation, id_step, SCHEMA_SUBJECT, schemaSubject );
+      rep.saveStepAttribute( id_transformation, id_step, SCHEMA_REGISTRY_CLASS, schemaRegistryClass );
+      rep.saveStepAttribute( id_transformation, id_step, GROUP_FIELDS, groupFields );
 
       rep.saveStepAttribute( id_transformation, id_step, ADD_TO_RESULT_FILENAMES, addToResultFilenames );
       rep.saveStepAttribute( id_transformation, id_step, FILE_ADD_TIME, timeInFilename );
@@ -746,6 +1481,8 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
         rep.saveStepAttribute( id_transformation, id_step, i, AVRONAME, field.getAvroName() );
         rep.saveStepAttribute( id_transformation, id_step, i, AVROTYPE, field.getAvroType() );
         rep.saveStepAttribute( id_transformation, id_step, i, NULLABLE, field.getNullable() );
+        rep.saveStepAttribute( id_transformation, id_step, i, PRECISION, field.getPrecision() );
+        rep.saveStepAttribute( id_transformation, id_step, i, SCALE, field.getScale() );
       }
     } catch ( Exception e ) {
       throw new KettleException( "Unable to save step information to the repository for id_step=" + id_step, e );
@@ -801,6 +1538,21 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
       remarks.add( cr );
     }
 
+    String fileConflict = getFileConflict( space );
+    if ( fileConflict != null ) {
+      cr = new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, fileConflict, stepMeta );
+      remarks.add( cr );
+    }
+
+    if ( getOutputTypeId() == OUTPUT_TYPE_BINARY_FILE ) {
+      try {
+        createCodec( space );
+      } catch ( KettleException e ) {
+        cr = new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, e.getSuperMessage(), stepMeta );
+        remarks.add( cr );
+      }
+    }
+
     cr =
       new CheckResult( CheckResultInterface.TYPE_RESULT_COMMENT, BaseMessages.getString(
         PKG, "TextFileOutputMeta.CheckResult.FilesNotChecked" ), stepMeta );
@@ -829,7 +1581,8 @@ public class AvroOutputMeta extends BaseStepMeta implements StepMetaInterface {
       v.setOrigin( name );
       row.addValueMeta( v );
     } else if ( outputType.equalsIgnoreCase( OUTPUT_TYPES[OUTPUT_TYPE_JSON_FIELD] ) ) {
-      ValueMetaInterface valueMetaInterface = new ValueMeta( space.environmentSubstitute( outputFieldName ), ValueMetaInterface.TYPE_STRING );
+      int jsonType = jsonBinaryOutput ? ValueMetaInterface.TYPE_BINARY : ValueMetaInterface.TYPE_STRING;
+      ValueMetaInterface valueMetaInterface = new ValueMeta( space.environmentSubstitute( outputFieldName ), jsonType );
       valueMetaInterface.setOrigin( name );
       row.addValueMeta( valueMetaInterface );
     }
@@ -0,0 +1,321 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Writes the records to Hive-style partition directories, for example dt=2016-10-17/region=eu/part.avro, built
+ * from the values of the partition fields.
+ *
+ * The partition fields are given as a comma separated list of [name=]field[:hour|:day].  The name defaults to the
+ * field name.  A field with :hour or :day is read as a date and bucketed to the UTC hour or day it falls in.
+ *
+ * Each partition has its own container file.  The open files are kept in a least recently used cache; when it is
+ * full the least recently used file is closed and, if more rows arrive for that partition, reopened in append mode.
+ * The partition of the previous row is reused without a lookup as long as the partition values do not change, so
+ * sorted input costs one comparison per partition field.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroPartitionedFileSink implements AvroSink {
+
+  /** The partition value Hive uses for null values */
+  public static final String DEFAULT_PARTITION = "__HIVE_DEFAULT_PARTITION__";
+
+  private static final int BUCKET_NONE = 0;
+  private static final int BUCKET_HOUR = 1;
+  private static final int BUCKET_DAY = 2;
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private static final long HOUR_MILLIS = 3600000L;
+  private static final long DAY_MILLIS = 86400000L;
+
+  private final AvroOutput step;
+
+  private final AvroOutputData data;
+
+  /** The open files by partition path, least recently used first */
+  private final LinkedHashMap<String, AvroOutputFile> files =
+    new LinkedHashMap<String, AvroOutputFile>( 16, 0.75f, true );
+
+  /** The files created by this step copy, which are appended to when they are opened again */
+  private final Set<String> created = new HashSet<String>();
+
+  private final StringBuilder path = new StringBuilder();
+
+  private PartitionField[] fields;
+
+  private int maxOpenFiles;
+
+  private String directory;
+
+  private String baseName;
+
+  private AvroOutputFile current;
+
+  private long reopened;
+
+  public AvroPartitionedFileSink( AvroOutput step ) {
+    this.step = step;
+    this.data = step.data;
+  }
+
+  public void open() throws KettleException {
+    if ( data.outputRowMeta == null ) {
+      return;
+    }
+    fields = parseFields( step.environmentSubstitute( step.meta.getPartitionFields() ), data.outputRowMeta );
+    maxOpenFiles = Math.max( 1, Const.toInt( step.environmentSubstitute( step.meta.getMaxOpenFiles() ), 32 ) );
+
+    String filename = step.buildFilename( step.environmentSubstitute( step.meta.getFileName() ), true );
+    int slash = Math.max( filename.lastIndexOf( '/' ), filename.lastIndexOf( '\\' ) );
+    directory = filename.substring( 0, slash + 1 );
+    baseName = filename.substring( slash + 1 );
+  }
+
+  /**
+   * Parse the partition field list.
+   *
+   * @param partitionFields The list of [name=]field[:hour|:day] entries.
+   * @param rowMeta The row metadata of the input rows.
+   * @return The partition fields in directory order.
+   * @throws KettleException if a field does not exist.
+   */
+  static PartitionField[] parseFields( String partitionFields, RowMetaInterface rowMeta ) throws KettleException {
+    List<PartitionField> result = new ArrayList<PartitionField>();
+    for ( String entry : partitionFields.split( "," ) ) {
+      entry = entry.trim();
+      if ( entry.length() == 0 ) {
+        continue;
+      }
+      int bucket = BUCKET_NONE;
+      int colon = entry.lastIndexOf( ':' );
+      if ( colon > 0 ) {
+        String suffix = entry.substring( colon + 1 ).trim();
+        if ( suffix.equalsIgnoreCase( "hour" ) ) {
+          bucket = BUCKET_HOUR;
+          entry = entry.substring( 0, colon ).trim();
+        } else if ( suffix.equalsIgnoreCase( "day" ) ) {
+          bucket = BUCKET_DAY;
+          entry = entry.substring( 0, colon ).trim();
+        }
+      }
+      String name = entry;
+      String fieldName = entry;
+      int equals = entry.indexOf( '=' );
+      if ( equals > 0 ) {
+        name = entry.substring( 0, equals ).trim();
+        fieldName = entry.substring( equals + 1 ).trim();
+      }
+      int index = rowMeta.indexOfValue( fieldName );
+      if ( index < 0 ) {
+        throw new KettleStepException( "Partition field [" + fieldName + "] couldn't be found in the input stream!" );
+      }
+      result.add( new PartitionField( name, index, rowMeta.getValueMeta( index ), bucket ) );
+    }
+    if ( result.isEmpty() ) {
+      throw new KettleException( "No partition fields are given." );
+    }
+    return result.toArray( new PartitionField[result.size()] );
+  }
+
+  public Object[] writeRecord( Object[] r ) throws KettleException {
+    boolean changed = current == null;
+    for ( PartitionField field : fields ) {
+      if ( field.update( r[field.index] ) ) {
+        changed = true;
+      }
+    }
+    if ( changed ) {
+      path.setLength( 0 );
+      for ( PartitionField field : fields ) {
+        path.append( field.segment );
+      }
+      current = getFile( path.toString() );
+    }
+    current.append( r );
+    return r;
+  }
+
+  private AvroOutputFile getFile( String partition ) throws KettleException {
+    AvroOutputFile file = files.get( partition );
+    if ( file != null ) {
+      return file;
+    }
+    if ( files.size() >= maxOpenFiles ) {
+      Iterator<Map.Entry<String, AvroOutputFile>> eldest = files.entrySet().iterator();
+      AvroOutputFile evicted = eldest.next().getValue();
+      eldest.remove();
+      evicted.close();
+    }
+
+    String filename = directory + partition + baseName;
+    boolean append = !created.add( filename );
+    if ( append ) {
+      reopened++;
+    } else if ( step.isDetailed() ) {
+      step.logDetailed( "Opening partition file [" + filename + "]" );
+    }
+    // The partition folders are made up by the step, so they are created even if Create parent folder is off.
+    file = AvroOutputFile.open( step, filename, append, 0, true );
+    if ( !append ) {
+      step.addFileToResult( filename );
+    }
+    files.put( partition, file );
+    return file;
+  }
+
+  public void flush() throws KettleException {
+  }
+
+  public void close() throws KettleException {
+    KettleException failure = null;
+    for ( AvroOutputFile file : files.values() ) {
+      try {
+        file.close();
+      } catch ( KettleException e ) {
+        if ( failure == null ) {
+          failure = e;
+        }
+      }
+    }
+    files.clear();
+    current = null;
+    if ( step.isDetailed() && !created.isEmpty() ) {
+      step.logDetailed( "Wrote " + created.size() + " partition files, reopening files " + reopened + " times." );
+      created.clear();
+    }
+    if ( failure != null ) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Escape a partition value the way Hive does, so it can be used as a directory name.
+   */
+  static String escape( String value ) {
+    StringBuilder result = null;
+    for ( int i = 0; i < value.length(); i++ ) {
+      char c = value.charAt( i );
+      if ( c < 0x20 || c == 0x7F || "\"#%'*/:=?\\[]^{}".indexOf( c ) >= 0 ) {
+        if ( result == null ) {
+          result = new StringBuilder( value.length() + 8 );
+          result.append( value, 0, i );
+        }
+        result.append( '%' ).append( HEX_DIGITS[( c >> 4 ) & 0xF] ).append( HEX_DIGITS[c & 0xF] );
+      } else if ( result != null ) {
+        result.append( c );
+      }
+    }
+    return result == null ? value : result.toString();
+  }
+
+  /**
+   * A field the output is partitioned by, with the directory segment of the current row.
+   */
+  static class PartitionField {
+    final String name;
+    final int index;
+    final ValueMetaInterface valueMeta;
+    final int bucket;
+    final SimpleDateFormat bucketFormat;
+
+    /** The directory segment, name=value/ */
+    String segment;
+
+    private Object lastValue;
+    private long lastBucket;
+
+    PartitionField( String name, int index, ValueMetaInterface valueMeta, int bucket ) {
+      this.name = name;
+      this.index = index;
+      this.valueMeta = valueMeta;
+      this.bucket = bucket;
+      if ( bucket == BUCKET_NONE ) {
+        bucketFormat = null;
+      } else {
+        bucketFormat = new SimpleDateFormat( bucket == BUCKET_HOUR ? "yyyy-MM-dd-HH" : "yyyy-MM-dd" );
+        bucketFormat.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+      }
+    }
+
+    /**
+     * Compute the segment for a value.
+     *
+     * @return true if the segment differs from the segment of the previous value.
+     */
+    boolean update( Object value ) throws KettleValueException {
+      if ( segment != null && ( value == null ? lastValue == null : value.equals( lastValue ) ) ) {
+        return false;
+      }
+      lastValue = value;
+
+      String partitionValue;
+      if ( bucket == BUCKET_NONE ) {
+        String string = valueMeta.getString( value );
+        partitionValue = string == null ? DEFAULT_PARTITION : escape( string );
+      } else {
+        Date date = valueMeta.getDate( value );
+        if ( date == null ) {
+          partitionValue = DEFAULT_PARTITION;
+        } else {
+          long unit = bucket == BUCKET_HOUR ? HOUR_MILLIS : DAY_MILLIS;
+          long bucketValue = AvroLogicalTypes.floorDiv( date.getTime(), unit );
+          if ( segment != null && bucketValue == lastBucket && !segment.endsWith( DEFAULT_PARTITION + "/" ) ) {
+            return false;
+          }
+          lastBucket = bucketValue;
+          partitionValue = bucketFormat.format( new Date( bucketValue * unit ) );
+        }
+      }
+
+      String newSegment = name + "=" + partitionValue + "/";
+      if ( newSegment.equals( segment ) ) {
+        return false;
+      }
+      segment = newSegment;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the compiled record plans for the life of the JVM, so a transformation that runs many times does not sort
+ * the output fields, look up the input fields, compile the plan and generate a writer class on every run.
+ *
+ * Plans are cached by the fingerprint of the schema, the names, types and storage types of the input fields and the
+ * field mapping.  A plan only holds positions and schemas, the row metadata is bound by each step copy, so one plan
+ * is shared by all copies and runs that match its key.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroPlanCache {
+
+  /** The number of plans kept, the least recently used plan is dropped beyond this */
+  private static final int MAX_PLANS = 128;
+
+  private static final Map<Key, CompiledPlan> plans = new LinkedHashMap<Key, CompiledPlan>( 16, 0.75f, true ) {
+    @Override
+    protected boolean removeEldestEntry( Map.Entry<Key, CompiledPlan> eldest ) {
+      return size() > MAX_PLANS;
+    }
+  };
+
+  private static long hits;
+
+  private static long misses;
+
+  /**
+   * Get the compiled plan for a schema, input row and field mapping, compiling it if it is not cached.
+   *
+   * @param schema The Avro schema being written.
+   * @param rowMeta The row metadata of the input rows.
+   * @param outputFields The output fields of the step.  The array is not modified.
+   * @return The compiled plan
+   * @throws KettleException if a field is not in the input row or the plan can not be compiled.
+   */
+  public static CompiledPlan get( Schema schema, RowMetaInterface rowMeta, AvroOutputField[] outputFields )
+    throws KettleException {
+    Key key = new Key( schema, rowMeta, outputFields );
+    synchronized ( plans ) {
+      CompiledPlan plan = plans.get( key );
+      if ( plan != null ) {
+        hits++;
+        return plan;
+      }
+    }
+
+    CompiledPlan plan = compile( schema, rowMeta, outputFields );
+    synchronized ( plans ) {
+      misses++;
+      CompiledPlan existing = plans.get( key );
+      if ( existing != null ) {
+        // Another copy compiled the same plan at the same time, share the first one.
+        return existing;
+      }
+      plans.put( key, plan );
+    }
+    return plan;
+  }
+
+  private static CompiledPlan compile( Schema schema, RowMetaInterface rowMeta, AvroOutputField[] outputFields )
+    throws KettleException {
+    AvroOutputField[] fields = new AvroOutputField[outputFields.length];
+    for ( int i = 0; i < fields.length; i++ ) {
+      // The cached plan must not change when the step metadata is edited.
+      fields[i] = (AvroOutputField) outputFields[i].clone();
+    }
+    Arrays.sort( fields );
+
+    int[] fieldnrs = new int[fields.length];
+    for ( int i = 0; i < fields.length; i++ ) {
+      if ( fields[i].validate() ) {
+        fieldnrs[i] = rowMeta.indexOfValue( fields[i].getName() );
+        if ( fieldnrs[i] < 0 ) {
+          throw new KettleStepException( "Field ["
+            + fields[i].getName() + "] couldn't be found in the input stream!" );
+        }
+      }
+    }
+    return new CompiledPlan( fields, fieldnrs, AvroRecordPlan.compile( schema, fields, fieldnrs ) );
+  }
+
+  /**
+   * @return The number of plans returned from the cache.
+   */
+  public static long getHits() {
+    synchronized ( plans ) {
+      return hits;
+    }
+  }
+
+  /**
+   * @return The number of plans that had to be compiled.
+   */
+  public static long getMisses() {
+    synchronized ( plans ) {
+      return misses;
+    }
+  }
+
+  /**
+   * Drop all cached plans.
+   */
+  public static void clear() {
+    synchronized ( plans ) {
+      plans.clear();
+    }
+  }
+
+  /**
+   * A record plan with the sorted output fields and input positions it was compiled from, and the generated writer
+   * class once it is needed.
+   */
+  public static class CompiledPlan {
+    /** The output fields sorted by Avro path */
+    public final AvroOutputField[] outputFields;
+
+    /** The index of each output field in the input row */
+    public final int[] fieldnrs;
+
+    public final AvroRecordPlan recordPlan;
+
+    private Class<?> writerClass;
+
+    private KettleException writerFailure;
+
+    private Long schemaFingerprint;
+
+    CompiledPlan( AvroOutputField[] outputFields, int[] fieldnrs, AvroRecordPlan recordPlan ) {
+      this.outputFields = outputFields;
+      this.fieldnrs = fieldnrs;
+      this.recordPlan = recordPlan;
+    }
+
+    /**
+     * @return The Parsing Canonical Form fingerprint of the schema, computed the first time it is needed.
+     */
+    public synchronized long getSchemaFingerprint() {
+      if ( schemaFingerprint == null ) {
+        schemaFingerprint = AvroSchemaFingerprint.parsingFingerprint64( recordPlan.getRoot().schema );
+      }
+      return schemaFingerprint;
+    }
+
+    /**
+     * Get the generated writer class for the plan, generating it the first time.  A failure is remembered, so a
+     * plan the generator does not support is not generated again on every run.
+     *
+     * @return The compiled writer class.
+     * @throws KettleException if the writer can not be generated or compiled.
+     */
+    public synchronized Class<?> getWriterClass() throws KettleException {
+      if ( writerClass == null && writerFailure == null ) {
+        try {
+          writerClass = AvroRowWriterCompiler.compile( recordPlan );
+        } catch ( KettleException e ) {
+          writerFailure = e;
+        }
+      }
+      if ( writerFailure != null ) {
+        throw writerFailure;
+      }
+      return writerClass;
+    }
+  }
+
+  private static class Key {
+    private final long fingerprint;
+
+    private final Schema schema;
+
+    private final String rowSignature;
+
+    private final String fieldSignature;
+
+    private final int hashCode;
+
+    Key( Schema schema, RowMetaInterface rowMeta, AvroOutputField[] outputFields ) {
+      this.fingerprint = AvroSchemaFingerprint.fingerprint64( schema );
+      this.schema = schema;
+
+      StringBuilder signature = new StringBuilder();
+      for ( int i = 0; i < rowMeta.size(); i++ ) {
+        ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+        signature.append( valueMeta.getName() ).append( '\u0000' ).append( valueMeta.getType() ).append( '\u0000' )
+          .append( valueMeta.getStorageType() ).append( '\u0001' );
+      }
+      this.rowSignature = signature.toString();
+
+      signature.setLength( 0 );
+      for ( AvroOutputField field : outputFields ) {
+        signature.append( field.getName() ).append( '\u0000' ).append( field.getAvroName() ).append( '\u0000' )
+          .append( field.getAvroType() ).append( '\u0000' ).append( field.getNullable() ).append( '\u0000' )
+          .append( field.getPrecision() ).append( '\u0000' ).append( field.getScale() ).append( '\u0001' );
+      }
+      this.fieldSignature = signature.toString();
+
+      this.hashCode = ( (int) ( fingerprint ^ ( fingerprint >>> 32 ) ) * 31 + rowSignature.hashCode() ) * 31
+        + fieldSignature.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+      if ( !( obj instanceof Key ) ) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return fingerprint == other.fingerprint && rowSignature.equals( other.rowSignature )
+        && fieldSignature.equals( other.fieldSignature ) && ( schema == other.schema || schema.equals( other.schema ) );
+    }
+  }
+}
@@ -0,0 +1,859 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * The mapping of stream fields to Avro paths compiled against a schema.
+ *
+ * The plan is a tree of nodes, one per Avro record level, holding the resolved field positions, the union branch
+ * to write and the index of the value in the input row.  It is compiled once and then walked for every row without
+ * any path parsing or schema lookups.
+ *
+ * A path segment ending in [] maps an Avro array, for example $.lines[].sku for an array of records or $.tags[] for
+ * an array of primitives.  An array gets one element for every row of a group of consecutive rows, see AvroRowGroup.
+ *
+ * A last path segment ending in {key} maps an Avro map.  $.attrs{color} writes the field as the value of the key
+ * color, leaving it out of the map when it is null.  $.attrs{@key} and $.attrs{@value} map the key and the value
+ * fields of a map with one entry for every row of a group.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroRecordPlan {
+
+  private static final String ARRAY_SUFFIX = "[]";
+
+  /** The map key of the path mapping the key field of a map built from a group of rows */
+  public static final String MAP_KEY = "@key";
+
+  /** The map key of the path mapping the value field of a map built from a group of rows */
+  public static final String MAP_VALUE = "@value";
+
+  private final RecordNode root;
+
+  private final boolean grouped;
+
+  private final boolean collections;
+
+  private AvroRecordPlan( RecordNode root, boolean grouped, boolean collections ) {
+    this.root = root;
+    this.grouped = grouped;
+    this.collections = collections;
+  }
+
+  /**
+   * Compile the plan for the output fields.
+   *
+   * @param schema The Avro schema being written.
+   * @param outputFields The output fields.
+   * @param fieldnrs The index of each output field in the input row.
+   * @return The compiled plan
+   * @throws KettleException if an Avro path can not be resolved against the schema, maps nested arrays or maps a
+   * map from a group of rows inside an array.
+   */
+  public static AvroRecordPlan compile( Schema schema, AvroOutputField[] outputFields, int[] fieldnrs )
+    throws KettleException {
+    RecordNode root = new RecordNode( null, schema );
+    boolean grouped = false;
+    boolean collections = false;
+    List<MapNode> maps = new ArrayList<MapNode>();
+
+    for ( int i = 0; i < outputFields.length; i++ ) {
+      AvroOutputField outputField = outputFields[i];
+      String avroName = outputField.getAvroName();
+      if ( avroName.startsWith( "$." ) ) {
+        avroName = avroName.substring( 2 );
+      }
+
+      RecordNode parent = root;
+      boolean inArray = false;
+      String[] path = avroName.split( "\\." );
+      for ( int p = 0; p < path.length - 1; p++ ) {
+        boolean array = path[p].endsWith( ARRAY_SUFFIX );
+        String name = array ? path[p].substring( 0, path[p].length() - ARRAY_SUFFIX.length() ) : path[p];
+        Schema.Field field = getField( parent, name, avroName );
+        Node child = parent.slots[field.pos()];
+        if ( array ) {
+          if ( inArray ) {
+            throw new KettleException( "Avro path " + outputField.getAvroName() + " maps an array inside an array."
+              + "  Nested arrays are not supported." );
+          }
+          inArray = true;
+          if ( child == null ) {
+            ArrayNode arrayNode = new ArrayNode( field, avroName );
+            arrayNode.element = new RecordNode( null, arrayNode.schema.getElementType(), name + ARRAY_SUFFIX );
+            parent.add( arrayNode );
+            child = arrayNode;
+          } else if ( !( child instanceof ArrayNode ) || !( ( (ArrayNode) child ).element instanceof RecordNode ) ) {
+            throw new KettleException( "Avro path " + outputField.getAvroName() + " uses field " + name
+              + " as an array of records but it is already mapped to a value." );
+          }
+          parent = (RecordNode) ( (ArrayNode) child ).element;
+        } else {
+          if ( child == null ) {
+            child = new RecordNode( field, field.schema(), field.name() );
+            parent.add( child );
+          } else if ( !( child instanceof RecordNode ) ) {
+            throw new KettleException( "Avro path " + outputField.getAvroName() + " uses field " + name
+              + " as a record but it is already mapped to a value." );
+          }
+          parent = (RecordNode) child;
+        }
+      }
+
+      String last = path[path.length - 1];
+      boolean array = last.endsWith( ARRAY_SUFFIX );
+      if ( array ) {
+        last = last.substring( 0, last.length() - ARRAY_SUFFIX.length() );
+      }
+      String mapKey = null;
+      int brace = last.indexOf( '{' );
+      if ( brace > 0 && last.endsWith( "}" ) ) {
+        mapKey = last.substring( brace + 1, last.length() - 1 );
+        last = last.substring( 0, brace );
+      }
+      Schema.Field field = getField( parent, last, avroName );
+      Node slot = parent.slots[field.pos()];
+      if ( mapKey != null ) {
+        MapNode mapNode;
+        if ( slot == null ) {
+          mapNode = new MapNode( field, avroName );
+          parent.add( mapNode );
+          maps.add( mapNode );
+        } else if ( slot instanceof MapNode ) {
+          mapNode = (MapNode) slot;
+        } else {
+          throw new KettleException( "Avro path " + outputField.getAvroName() + " is mapped more than once." );
+        }
+        if ( inArray && ( MAP_KEY.equals( mapKey ) || MAP_VALUE.equals( mapKey ) ) ) {
+          throw new KettleException( "Avro path " + outputField.getAvroName() + " builds a map from a group of rows"
+            + " inside an array.  Only maps with fixed keys are supported inside arrays." );
+        }
+        mapNode.put( mapKey, outputField, fieldnrs[i] );
+        collections = true;
+      } else if ( slot != null ) {
+        throw new KettleException( "Avro path " + outputField.getAvroName() + " is mapped more than once." );
+      } else if ( array ) {
+        if ( inArray ) {
+          throw new KettleException( "Avro path " + outputField.getAvroName() + " maps an array inside an array."
+            + "  Nested arrays are not supported." );
+        }
+        inArray = true;
+        ArrayNode arrayNode = new ArrayNode( field, avroName );
+        arrayNode.element = new ValueNode( arrayNode.schema.getElementType(), outputField, fieldnrs[i] );
+        parent.add( arrayNode );
+      } else {
+        parent.add( new ValueNode( field, outputField, fieldnrs[i] ) );
+      }
+      grouped |= inArray;
+      collections |= inArray;
+    }
+
+    for ( MapNode map : maps ) {
+      map.seal();
+      grouped |= map.value != null;
+    }
+    root.seal();
+    return new AvroRecordPlan( root, grouped, collections );
+  }
+
+  private static Schema.Field getField( RecordNode parent, String name, String avroName ) throws KettleException {
+    Schema.Field field = parent.schema.getField( name );
+    if ( field == null ) {
+      throw new KettleException( "Field " + name + " of Avro path " + avroName + " does not exist in record "
+        + parent.schema.getFullName() + "." );
+    }
+    return field;
+  }
+
+  /**
+   * Find the position of the branch of the given type in a union.
+   *
+   * @return the branch index or -1 if the schema is not a union or does not contain the type.
+   */
+  static int getBranch( Schema schema, Schema.Type type ) {
+    if ( schema.getType() == Schema.Type.UNION ) {
+      List<Schema> types = schema.getTypes();
+      for ( int i = 0; i < types.size(); i++ ) {
+        if ( types.get( i ).getType() == type ) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  public RecordNode getRoot() {
+    return root;
+  }
+
+  /**
+   * @return true if the plan maps an Avro array or a map built from a group of rows, so records are written per
+   * group of rows instead of per row.
+   */
+  public boolean isGrouped() {
+    return grouped;
+  }
+
+  /**
+   * @return true if the plan maps an Avro array or map.
+   */
+  public boolean hasCollections() {
+    return collections;
+  }
+
+  /**
+   * Get the value nodes in the order they are written, depth first in schema field order.  The values of array
+   * elements and maps are included.
+   *
+   * @return The value nodes
+   */
+  public List<ValueNode> getValueNodes() {
+    List<ValueNode> result = new ArrayList<ValueNode>();
+    addValueNodes( root, result );
+    return result;
+  }
+
+  private static void addValueNodes( RecordNode node, List<ValueNode> result ) {
+    for ( Node slot : node.slots ) {
+      if ( slot instanceof ArrayNode ) {
+        slot = ( (ArrayNode) slot ).element;
+      }
+      if ( slot instanceof RecordNode ) {
+        addValueNodes( (RecordNode) slot, result );
+      } else if ( slot instanceof MapNode ) {
+        MapNode map = (MapNode) slot;
+        result.addAll( Arrays.asList( map.values ) );
+        if ( map.value != null ) {
+          result.add( map.value );
+        }
+      } else if ( slot != null ) {
+        result.add( (ValueNode) slot );
+      }
+    }
+  }
+
+  /**
+   * Build the Avro record for a row.
+   *
+   * @param rowMeta The row metadata for the input row.
+   * @param r The input row.
+   * @return The Avro record.
+   * @throws KettleException
+   */
+  public GenericData.Record buildRecord( RowMetaInterface rowMeta, Object[] r ) throws KettleException {
+    return root.build( rowMeta, r, null );
+  }
+
+  /**
+   * Build the Avro record for a group of rows.  The arrays get one element per row of the group, all other values
+   * come from the first row.
+   *
+   * @param rowMeta The row metadata for the input rows.
+   * @param group The group of rows.
+   * @return The Avro record.
+   * @throws KettleException
+   */
+  public GenericData.Record buildRecord( RowMetaInterface rowMeta, AvroRowGroup group ) throws KettleException {
+    return root.build( rowMeta, group.getFirst(), group.getRows() );
+  }
+
+  /**
+   * Allocate an empty record tree, with one record per mapped record level, for use with fillRecord.
+   *
+   * @return The root record of the tree.
+   */
+  public GenericData.Record newRecordTree() {
+    return root.newRecord();
+  }
+
+  /**
+   * Overwrite every field of a record tree from newRecordTree with the values of a row.  Null values and unmapped
+   * fields are written as explicit nulls so nothing is left over from the previous row.
+   *
+   * @param record The root record of the tree.
+   * @param rowMeta The row metadata for the input row.
+   * @param r The input row.
+   * @return The filled record.
+   * @throws KettleException
+   */
+  public GenericData.Record fillRecord( GenericData.Record record, RowMetaInterface rowMeta, Object[] r )
+    throws KettleException {
+    root.fill( record, rowMeta, r, null );
+    return record;
+  }
+
+  /**
+   * Overwrite every field of a record tree from newRecordTree with the values of a group of rows.  The arrays are
+   * built new for every group.
+   *
+   * @param record The root record of the tree.
+   * @param rowMeta The row metadata for the input rows.
+   * @param group The group of rows.
+   * @return The filled record.
+   * @throws KettleException
+   */
+  public GenericData.Record fillRecord( GenericData.Record record, RowMetaInterface rowMeta, AvroRowGroup group )
+    throws KettleException {
+    root.fill( record, rowMeta, group.getFirst(), group.getRows() );
+    return record;
+  }
+
+  /**
+   * A mapped field in an Avro record.
+   */
+  public abstract static class Node {
+    /** The field in the parent record, null for the root record */
+    public final Schema.Field field;
+
+    /** The position of the field in the parent record */
+    public final int position;
+
+    /** The schema the value is written with.  The selected branch if the field is a union. */
+    public final Schema schema;
+
+    /** The union branch of the value, -1 if the field is not a union */
+    public final int unionIndex;
+
+    /** The union branch for null values, -1 if the field is not nullable */
+    public final int nullIndex;
+
+    Node( Schema.Field field, Schema fieldSchema, Schema.Type type, String avroName ) throws KettleException {
+      this.field = field;
+      this.position = field != null ? field.pos() : -1;
+      this.nullIndex = getBranch( fieldSchema, Schema.Type.NULL );
+      if ( fieldSchema.getType() == Schema.Type.UNION ) {
+        unionIndex = getBranch( fieldSchema, type );
+        if ( unionIndex < 0 ) {
+          throw new KettleException( "Avro type " + type.getName() + " is not valid for " + avroName
+            + ".  The union does not contain this type." );
+        }
+        schema = fieldSchema.getTypes().get( unionIndex );
+      } else {
+        if ( fieldSchema.getType() != type ) {
+          throw new KettleException( "Avro type " + type.getName() + " is not valid for " + avroName
+            + ".  The schema type is " + fieldSchema.getType().getName() + "." );
+        }
+        unionIndex = -1;
+        schema = fieldSchema;
+      }
+    }
+
+    /**
+     * @param rows The rows of the group for the arrays, null to give the arrays one element from r.
+     */
+    abstract Object build( RowMetaInterface rowMeta, Object[] r, List<Object[]> rows ) throws KettleException;
+  }
+
+  /**
+   * An Avro record and the fields mapped into it.
+   */
+  public static class RecordNode extends Node {
+    /** The nodes by position in the record schema, null for fields that are not mapped */
+    public final Node[] slots;
+
+    /** The union branch for null values of each field in the record schema, -1 if the field is not nullable */
+    public final int[] slotNullIndexes;
+
+    /** The mapped nodes */
+    public Node[] children;
+
+    private List<Node> childList = new ArrayList<Node>();
+
+    RecordNode( Schema.Field field, Schema fieldSchema ) throws KettleException {
+      this( field, fieldSchema, field != null ? field.name() : "the root record" );
+    }
+
+    RecordNode( Schema.Field field, Schema fieldSchema, String avroName ) throws KettleException {
+      super( field, fieldSchema, Schema.Type.RECORD, avroName );
+      List<Schema.Field> fields = schema.getFields();
+      slots = new Node[fields.size()];
+      slotNullIndexes = new int[fields.size()];
+      for ( int i = 0; i < slotNullIndexes.length; i++ ) {
+        slotNullIndexes[i] = getBranch( fields.get( i ).schema(), Schema.Type.NULL );
+      }
+    }
+
+    private void add( Node child ) {
+      slots[child.position] = child;
+      childList.add( child );
+    }
+
+    private void seal() throws KettleException {
+      for ( int i = 0; i < slots.length; i++ ) {
+        Schema.Field slotField = schema.getFields().get( i );
+        if ( slots[i] == null && slotNullIndexes[i] < 0 && slotField.schema().getType() != Schema.Type.NULL ) {
+          throw new KettleException( "Field " + slotField.name() + " of record " + schema.getFullName()
+            + " is not mapped to a stream field and is not nullable." );
+        }
+      }
+      children = childList.toArray( new Node[childList.size()] );
+      childList = null;
+      for ( Node child : children ) {
+        if ( child instanceof ArrayNode ) {
+          ( (ArrayNode) child ).seal();
+        } else if ( child instanceof RecordNode ) {
+          ( (RecordNode) child ).seal();
+        }
+      }
+    }
+
+    GenericData.Record build( RowMetaInterface rowMeta, Object[] r, List<Object[]> rows ) throws KettleException {
+      GenericData.Record result = new GenericData.Record( schema );
+      for ( Node child : children ) {
+        Object value = child.build( rowMeta, r, rows );
+        if ( value != null ) {
+          result.put( child.position, value );
+        }
+      }
+      return result;
+    }
+
+    GenericData.Record newRecord() {
+      GenericData.Record result = new GenericData.Record( schema );
+      for ( Node child : children ) {
+        if ( child instanceof RecordNode ) {
+          result.put( child.position, ( (RecordNode) child ).newRecord() );
+        }
+      }
+      return result;
+    }
+
+    void fill( GenericData.Record record, RowMetaInterface rowMeta, Object[] r, List<Object[]> rows )
+      throws KettleException {
+      for ( int i = 0; i < slots.length; i++ ) {
+        Node slot = slots[i];
+        if ( slot == null ) {
+          record.put( i, null );
+        } else if ( slot instanceof RecordNode ) {
+          ( (RecordNode) slot ).fill( (GenericData.Record) record.get( i ), rowMeta, r, rows );
+        } else {
+          record.put( i, slot.build( rowMeta, r, rows ) );
+        }
+      }
+    }
+  }
+
+  /**
+   * An Avro array with one element per row of a group.  Rows where every value mapped into the element is null do
+   * not add an element, so a group without any element writes an empty array.
+   */
+  public static class ArrayNode extends Node {
+    /** The record or value written for each element */
+    public Node element;
+
+    /** The indexes in the input row of the values mapped into the element */
+    public int[] elementInputs;
+
+    ArrayNode( Schema.Field field, String avroName ) throws KettleException {
+      super( field, field.schema(), Schema.Type.ARRAY, avroName );
+    }
+
+    private void seal() throws KettleException {
+      List<ValueNode> values = new ArrayList<ValueNode>();
+      if ( element instanceof RecordNode ) {
+        ( (RecordNode) element ).seal();
+        addValueNodes( (RecordNode) element, values );
+      } else {
+        values.add( (ValueNode) element );
+      }
+      elementInputs = new int[values.size()];
+      for ( int i = 0; i < elementInputs.length; i++ ) {
+        elementInputs[i] = values.get( i ).inputIndex;
+      }
+    }
+
+    /**
+     * @return true if the row adds an element to the array, that is any value mapped into the element is not null.
+     * @throws KettleValueException
+     */
+    public boolean hasElement( RowMetaInterface rowMeta, Object[] r ) throws KettleValueException {
+      for ( int index : elementInputs ) {
+        if ( !rowMeta.getValueMeta( index ).isNull( r[index] ) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    GenericData.Array<Object> build( RowMetaInterface rowMeta, Object[] r, List<Object[]> rows )
+      throws KettleException {
+      if ( rows == null ) {
+        rows = Collections.singletonList( r );
+      }
+      GenericData.Array<Object> result = new GenericData.Array<Object>( rows.size(), schema );
+      for ( Object[] row : rows ) {
+        if ( hasElement( rowMeta, row ) ) {
+          result.add( element.build( rowMeta, row, null ) );
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * An Avro map.  The entries either come from stream fields mapped to fixed keys, leaving out the null values, or
+   * from a key field and a value field with one entry per row of a group.  Rows where the key or the value is null
+   * do not add an entry.
+   */
+  public static class MapNode extends Node {
+    /** The fixed keys, empty if the entries come from the rows of a group */
+    public String[] keys;
+
+    /** The values of the fixed keys */
+    public ValueNode[] values;
+
+    /** The index of the key field in the input row, -1 for fixed keys */
+    public int keyIndex = -1;
+
+    /** The value of the entries from the rows of a group, null for fixed keys */
+    public ValueNode value;
+
+    private final String avroName;
+
+    private List<String> keyList = new ArrayList<String>();
+
+    private List<ValueNode> valueList = new ArrayList<ValueNode>();
+
+    MapNode( Schema.Field field, String avroName ) throws KettleException {
+      super( field, field.schema(), Schema.Type.MAP, avroName );
+      this.avroName = avroName;
+    }
+
+    private void put( String key, AvroOutputField outputField, int inputIndex ) throws KettleException {
+      if ( MAP_KEY.equals( key ) ) {
+        if ( keyIndex >= 0 || !keyList.isEmpty() ) {
+          throw new KettleException( "Avro path " + outputField.getAvroName()
+            + " maps the key of a map that already has a key field or fixed keys." );
+        }
+        if ( outputField.getAvroType() != AvroOutputField.AVRO_TYPE_STRING ) {
+          throw new KettleException( "Avro path " + outputField.getAvroName()
+            + " maps the key of a map, the Avro type must be String." );
+        }
+        keyIndex = inputIndex;
+      } else if ( MAP_VALUE.equals( key ) ) {
+        if ( value != null || !keyList.isEmpty() ) {
+          throw new KettleException( "Avro path " + outputField.getAvroName()
+            + " maps the value of a map that already has a value field or fixed keys." );
+        }
+        value = new ValueNode( schema.getValueType(), outputField, inputIndex );
+      } else {
+        if ( keyIndex >= 0 || value != null ) {
+          throw new KettleException( "Avro path " + outputField.getAvroName()
+            + " maps a fixed key of a map that is built from a key field and a value field." );
+        }
+        if ( keyList.contains( key ) ) {
+          throw new KettleException( "Avro path " + outputField.getAvroName() + " is mapped more than once." );
+        }
+        keyList.add( key );
+        valueList.add( new ValueNode( schema.getValueType(), outputField, inputIndex ) );
+      }
+    }
+
+    private void seal() throws KettleException {
+      if ( ( keyIndex >= 0 ) != ( value != null ) ) {
+        throw new KettleException( "The map of Avro path " + avroName + " needs both a " + MAP_KEY + " and a "
+          + MAP_VALUE + " field." );
+      }
+      keys = keyList.toArray( new String[keyList.size()] );
+      values = valueList.toArray( new ValueNode[valueList.size()] );
+      keyList = null;
+      valueList = null;
+    }
+
+    /**
+     * @return true if the value of fixed key k is not null.
+     * @throws KettleValueException
+     */
+    public boolean hasValue( RowMetaInterface rowMeta, Object[] r, int k ) throws KettleValueException {
+      int index = values[k].inputIndex;
+      return !rowMeta.getValueMeta( index ).isNull( r[index] );
+    }
+
+    /**
+     * @return true if the row adds an entry to a map built from a group, that is the key and the value are not null.
+     * @throws KettleValueException
+     */
+    public boolean hasEntry( RowMetaInterface rowMeta, Object[] r ) throws KettleValueException {
+      return !rowMeta.getValueMeta( keyIndex ).isNull( r[keyIndex] )
+        && !rowMeta.getValueMeta( value.inputIndex ).isNull( r[value.inputIndex] );
+    }
+
+    /**
+     * @return The key of the entry a row adds to a map built from a group.
+     * @throws KettleValueException
+     */
+    public String getKey( RowMetaInterface rowMeta, Object[] r ) throws KettleValueException {
+      return rowMeta.getValueMeta( keyIndex ).getString( r[keyIndex] );
+    }
+
+    /**
+     * Get the entries of a map built from a group.  When several rows have the same key the value of the last row
+     * wins, at the position of the first row with the key, so every serializer writes each key once.
+     *
+     * @param rows The rows of the group.
+     * @return The row of each key, in the order the keys first appear.
+     * @throws KettleValueException
+     */
+    public Map<String, Object[]> getEntries( RowMetaInterface rowMeta, List<Object[]> rows )
+      throws KettleValueException {
+      Map<String, Object[]> entries = new LinkedHashMap<String, Object[]>();
+      for ( Object[] row : rows ) {
+        if ( hasEntry( rowMeta, row ) ) {
+          entries.put( getKey( rowMeta, row ), row );
+        }
+      }
+      return entries;
+    }
+
+    Map<String, Object> build( RowMetaInterface rowMeta, Object[] r, List<Object[]> rows ) throws KettleException {
+      Map<String, Object> result = new LinkedHashMap<String, Object>();
+      if ( value == null ) {
+        for ( int k = 0; k < keys.length; k++ ) {
+          if ( hasValue( rowMeta, r, k ) ) {
+            result.put( keys[k], values[k].build( rowMeta, r, null ) );
+          }
+        }
+      } else {
+        if ( rows == null ) {
+          rows = Collections.singletonList( r );
+        }
+        for ( Map.Entry<String, Object[]> entry : getEntries( rowMeta, rows ).entrySet() ) {
+          result.put( entry.getKey(), value.build( rowMeta, entry.getValue(), null ) );
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * A stream field written to an Avro field.
+   */
+  public static class ValueNode extends Node {
+    public final AvroOutputField outputField;
+
+    public final int avroType;
+
+    /** The index of the field in the input row */
+    public final int inputIndex;
+
+    /** The size of a fixed value, -1 for other types */
+    public final int fixedSize;
+
+    /** The number of digits of a decimal, -1 if it is not checked */
+    public final int decimalPrecision;
+
+    /** The number of digits after the decimal point of a decimal, -1 if it is not known */
+    public final int decimalScale;
+
+    /** The time zone the calendar date of a Date value is taken in */
+    public final TimeZone timeZone;
+
+    ValueNode( Schema.Field field, AvroOutputField outputField, int inputIndex ) throws KettleException {
+      this( field, field.schema(), outputField, inputIndex );
+    }
+
+    /**
+     * A value written as the element of an array or the value of a map.
+     */
+    ValueNode( Schema itemSchema, AvroOutputField outputField, int inputIndex ) throws KettleException {
+      this( null, itemSchema, outputField, inputIndex );
+    }
+
+    private ValueNode( Schema.Field field, Schema fieldSchema, AvroOutputField outputField, int inputIndex )
+      throws KettleException {
+      super( field, fieldSchema, outputField.getAvroSchemaType(), outputField.getAvroName() );
+      this.outputField = outputField;
+      this.avroType = outputField.getAvroType();
+      this.inputIndex = inputIndex;
+      this.fixedSize = schema.getType() == Schema.Type.FIXED ? schema.getFixedSize() : -1;
+      // Avro 1.6.2 drops numeric schema properties.  AvroLogicalTypes.parse keeps them, other schemas fall back to
+      // the precision and scale of the field.
+      this.decimalPrecision = AvroLogicalTypes.getIntProp( schema, AvroLogicalTypes.PRECISION,
+        outputField.getPrecision() > 0 ? outputField.getPrecision() : -1 );
+      this.decimalScale = AvroLogicalTypes.getIntProp( schema, AvroLogicalTypes.SCALE,
+        outputField.getScale() >= 0 ? outputField.getScale() : -1 );
+      this.timeZone = TimeZone.getDefault();
+      if ( avroType == AvroOutputField.AVRO_TYPE_DECIMAL && decimalPrecision <= 0 ) {
+        throw new KettleException( "The precision of Decimal field " + outputField.getName() + " is not in the schema."
+          + "  Set the precision and scale of the field." );
+      }
+      if ( avroType == AvroOutputField.AVRO_TYPE_DECIMAL && decimalScale < 0 ) {
+        throw new KettleException( "The scale of Decimal field " + outputField.getName() + " is not in the schema."
+          + "  Set the precision and scale of the field." );
+      }
+    }
+
+    /**
+     * Get a decimal value at the scale of the schema.  Values with more digits after the decimal point are rounded
+     * half up.
+     *
+     * @param valueMeta The value metadata of the input field.
+     * @param value The input value.
+     * @return The decimal or null if the value is null.
+     * @throws KettleValueException if the value can not be converted to a BigNumber.
+     */
+    public BigDecimal getDecimal( ValueMetaInterface valueMeta, Object value ) throws KettleValueException {
+      return toDecimal( valueMeta.getBigNumber( value ) );
+    }
+
+    /**
+     * Bring a decimal to the scale of the schema and check its precision.
+     *
+     * @param decimal The decimal, may be null.
+     * @return The decimal at the scale of the schema.
+     */
+    public BigDecimal toDecimal( BigDecimal decimal ) {
+      if ( decimal == null ) {
+        return null;
+      }
+      if ( decimal.scale() != decimalScale ) {
+        decimal = decimal.setScale( decimalScale, RoundingMode.HALF_UP );
+      }
+      if ( decimalPrecision > 0 && decimal.precision() > decimalPrecision ) {
+        throw new AvroTypeException( "Value " + decimal.toPlainString() + " of field " + outputField.getName()
+          + " has more than the " + decimalPrecision + " digits of the decimal." );
+      }
+      return decimal;
+    }
+
+    /**
+     * Get the value of a Date or Timestamp field.  The Date of a Kettle Date or Timestamp field is returned as is,
+     * without going through a string.
+     *
+     * @param valueMeta The value metadata of the input field.
+     * @param value The input value.
+     * @return The date or null if the value is null.
+     * @throws KettleValueException if the value can not be converted to a Date.
+     */
+    public Date getDate( ValueMetaInterface valueMeta, Object value ) throws KettleValueException {
+      if ( value instanceof Date && valueMeta.isDate() && valueMeta.isStorageNormal() ) {
+        return (Date) value;
+      }
+      return valueMeta.getDate( value );
+    }
+
+    /**
+     * Convert a date to the value of the logical type: days for Date, milliseconds for Timestamp-millis and
+     * microseconds for Timestamp-micros.
+     *
+     * @param date The date, not null.
+     * @return The number of days, milliseconds or microseconds from the epoch.
+     */
+    public long toTime( Date date ) {
+      switch ( avroType ) {
+        case AvroOutputField.AVRO_TYPE_DATE:
+          return AvroLogicalTypes.toDays( date, timeZone );
+        case AvroOutputField.AVRO_TYPE_TIMESTAMP_MICROS:
+          return AvroLogicalTypes.toMicros( date );
+        default:
+          return date.getTime();
+      }
+    }
+
+    /**
+     * Get the bytes of a Bytes or Fixed value.  The byte array of a Kettle Binary field is returned as is, without a
+     * copy.  The size of Fixed values is checked against the schema.
+     *
+     * @param valueMeta The value metadata of the input field.
+     * @param value The input value.
+     * @return The bytes or null if the value is null.
+     * @throws KettleValueException if the value can not be converted to bytes.
+     */
+    public byte[] getBytes( ValueMetaInterface valueMeta, Object value ) throws KettleValueException {
+      byte[] bytes;
+      if ( value instanceof byte[] && valueMeta.isBinary() && valueMeta.isStorageNormal() ) {
+        bytes = (byte[]) value;
+      } else {
+        bytes = valueMeta.getBinary( value );
+      }
+      if ( bytes != null && fixedSize >= 0 && bytes.length != fixedSize ) {
+        throw new AvroTypeException( "Value of field " + outputField.getName() + " has " + bytes.length
+          + " bytes but fixed " + schema.getFullName() + " has a size of " + fixedSize + "." );
+      }
+      return bytes;
+    }
+
+    Object build( RowMetaInterface rowMeta, Object[] r, List<Object[]> rows ) throws KettleException {
+      switch ( avroType ) {
+        case AvroOutputField.AVRO_TYPE_INT:
+          Long intValue = rowMeta.getInteger( r, inputIndex );
+          return intValue == null ? null : intValue.intValue();
+        case AvroOutputField.AVRO_TYPE_STRING:
+          return rowMeta.getString( r, inputIndex );
+        case AvroOutputField.AVRO_TYPE_LONG:
+          return rowMeta.getInteger( r, inputIndex );
+        case AvroOutputField.AVRO_TYPE_FLOAT:
+          Double floatValue = rowMeta.getNumber( r, inputIndex );
+          return floatValue == null ? null : floatValue.floatValue();
+        case AvroOutputField.AVRO_TYPE_DOUBLE:
+          return rowMeta.getNumber( r, inputIndex );
+        case AvroOutputField.AVRO_TYPE_BOOLEAN:
+          return rowMeta.getBoolean( r, inputIndex );
+        case AvroOutputField.AVRO_TYPE_ENUM:
+          String symbol = rowMeta.getString( r, inputIndex );
+          return symbol == null ? null : new GenericData.EnumSymbol( schema, symbol );
+        case AvroOutputField.AVRO_TYPE_BYTES:
+          byte[] bytes = getBytes( rowMeta.getValueMeta( inputIndex ), r[inputIndex] );
+          return bytes == null ? null : ByteBuffer.wrap( bytes );
+        case AvroOutputField.AVRO_TYPE_FIXED:
+          byte[] fixed = getBytes( rowMeta.getValueMeta( inputIndex ), r[inputIndex] );
+          return fixed == null ? null : new GenericData.Fixed( schema, fixed );
+        case AvroOutputField.AVRO_TYPE_DECIMAL:
+          BigDecimal decimal = getDecimal( rowMeta.getValueMeta( inputIndex ), r[inputIndex] );
+          return decimal == null ? null : ByteBuffer.wrap( decimal.unscaledValue().toByteArray() );
+        case AvroOutputField.AVRO_TYPE_DATE:
+          Date date = getDate( rowMeta.getValueMeta( inputIndex ), r[inputIndex] );
+          return date == null ? null : (int) toTime( date );
+        case AvroOutputField.AVRO_TYPE_TIMESTAMP_MILLIS:
+        case AvroOutputField.AVRO_TYPE_TIMESTAMP_MICROS:
+          Date timestamp = getDate( rowMeta.getValueMeta( inputIndex ), r[inputIndex] );
+          return timestamp == null ? null : toTime( timestamp );
+        default:
+          throw new KettleException( "Avro type " + outputField.getAvroTypeDesc() + " is not supported for field "
+            + outputField.getAvroName() + "." );
+      }
+    }
+  }
+}
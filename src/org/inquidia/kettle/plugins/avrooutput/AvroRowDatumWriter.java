@@ -0,0 +1,326 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.util.Utf8;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes Kettle rows straight to an Avro encoder by walking the compiled record plan.
+ *
+ * No Avro records are built.  The union branches come from the plan, so the only work per value is reading it from
+ * the row and writing it to the encoder.  The same writer is used for container files, binary messages and JSON
+ * messages.
+ *
+ * When the plan maps arrays the writer is given the row group, and the arrays get one element for each row of the
+ * group.  Maps built from a key and a value field get one entry for each row.  The item counts are written up
+ * front, so the group is counted before its items are written.
+ *
+ * Fields with binary string storage, from the lazy conversion of the file inputs, are read from their bytes where
+ * Kettle would not change them, so strings are written as their UTF-8 bytes without building a String.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroRowDatumWriter implements DatumWriter<Object[]> {
+
+  private final AvroRecordPlan plan;
+
+  private final RowMetaInterface rowMeta;
+
+  private final AvroRowGroup group;
+
+  private final AvroBinaryStringReader binaryStrings;
+
+  private final byte[] decimalBuffer = new byte[8];
+
+  public AvroRowDatumWriter( AvroRecordPlan plan, RowMetaInterface rowMeta ) {
+    this( plan, rowMeta, null );
+  }
+
+  /**
+   * @param group The group of rows the arrays are written from, null to write the arrays from the row alone.
+   */
+  public AvroRowDatumWriter( AvroRecordPlan plan, RowMetaInterface rowMeta, AvroRowGroup group ) {
+    this.plan = plan;
+    this.rowMeta = rowMeta;
+    this.group = group;
+    this.binaryStrings = new AvroBinaryStringReader( rowMeta );
+  }
+
+  /**
+   * The schema is fixed by the record plan.
+   */
+  public void setSchema( Schema schema ) {
+  }
+
+  public void write( Object[] r, Encoder out ) throws IOException {
+    try {
+      writeRecord( plan.getRoot(), r, out );
+    } catch ( KettleValueException e ) {
+      throw new IOException( e.getMessage(), e );
+    }
+  }
+
+  private void writeRecord( AvroRecordPlan.RecordNode node, Object[] r, Encoder out )
+    throws IOException, KettleValueException {
+    AvroRecordPlan.Node[] slots = node.slots;
+    for ( int i = 0; i < slots.length; i++ ) {
+      AvroRecordPlan.Node slot = slots[i];
+      if ( slot == null ) {
+        if ( node.slotNullIndexes[i] >= 0 ) {
+          out.writeIndex( node.slotNullIndexes[i] );
+        }
+        out.writeNull();
+      } else if ( slot instanceof AvroRecordPlan.ValueNode ) {
+        writeValue( (AvroRecordPlan.ValueNode) slot, r, out );
+      } else if ( slot instanceof AvroRecordPlan.ArrayNode ) {
+        writeIndex( slot, out );
+        writeArray( (AvroRecordPlan.ArrayNode) slot, r, out );
+      } else if ( slot instanceof AvroRecordPlan.MapNode ) {
+        writeIndex( slot, out );
+        writeMap( (AvroRecordPlan.MapNode) slot, r, out );
+      } else {
+        if ( slot.unionIndex >= 0 ) {
+          out.writeIndex( slot.unionIndex );
+        }
+        writeRecord( (AvroRecordPlan.RecordNode) slot, r, out );
+      }
+    }
+  }
+
+  private void writeArray( AvroRecordPlan.ArrayNode node, Object[] r, Encoder out )
+    throws IOException, KettleValueException {
+    List<Object[]> rows = group != null ? group.getRows() : Collections.singletonList( r );
+    int count = 0;
+    for ( Object[] row : rows ) {
+      if ( node.hasElement( rowMeta, row ) ) {
+        count++;
+      }
+    }
+
+    out.writeArrayStart();
+    out.setItemCount( count );
+    for ( Object[] row : rows ) {
+      if ( node.hasElement( rowMeta, row ) ) {
+        out.startItem();
+        if ( node.element instanceof AvroRecordPlan.ValueNode ) {
+          writeValue( (AvroRecordPlan.ValueNode) node.element, row, out );
+        } else {
+          writeIndex( node.element, out );
+          writeRecord( (AvroRecordPlan.RecordNode) node.element, row, out );
+        }
+      }
+    }
+    out.writeArrayEnd();
+  }
+
+  private void writeMap( AvroRecordPlan.MapNode node, Object[] r, Encoder out )
+    throws IOException, KettleValueException {
+    out.writeMapStart();
+    if ( node.value == null ) {
+      int count = 0;
+      for ( int k = 0; k < node.keys.length; k++ ) {
+        if ( node.hasValue( rowMeta, r, k ) ) {
+          count++;
+        }
+      }
+      out.setItemCount( count );
+      for ( int k = 0; k < node.keys.length; k++ ) {
+        if ( node.hasValue( rowMeta, r, k ) ) {
+          out.startItem();
+          out.writeString( node.keys[k] );
+          writeValue( node.values[k], r, out );
+        }
+      }
+    } else {
+      List<Object[]> rows = group != null ? group.getRows() : Collections.singletonList( r );
+      Map<String, Object[]> entries = node.getEntries( rowMeta, rows );
+      out.setItemCount( entries.size() );
+      for ( Map.Entry<String, Object[]> entry : entries.entrySet() ) {
+        out.startItem();
+        out.writeString( entry.getKey() );
+        writeValue( node.value, entry.getValue(), out );
+      }
+    }
+    out.writeMapEnd();
+  }
+
+  private void writeValue( AvroRecordPlan.ValueNode node, Object[] r, Encoder out )
+    throws IOException, KettleValueException {
+    ValueMetaInterface valueMeta = rowMeta.getValueMeta( node.inputIndex );
+    Object value = r[node.inputIndex];
+
+    switch ( node.avroType ) {
+      case AvroOutputField.AVRO_TYPE_INT:
+        Long intValue = binaryStrings.getInteger( node.inputIndex, valueMeta, value );
+        if ( intValue == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          out.writeInt( intValue.intValue() );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_LONG:
+        Long longValue = binaryStrings.getInteger( node.inputIndex, valueMeta, value );
+        if ( longValue == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          out.writeLong( longValue.longValue() );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_FLOAT:
+        Double floatValue = binaryStrings.getNumber( node.inputIndex, valueMeta, value );
+        if ( floatValue == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          out.writeFloat( floatValue.floatValue() );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_DOUBLE:
+        Double doubleValue = binaryStrings.getNumber( node.inputIndex, valueMeta, value );
+        if ( doubleValue == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          out.writeDouble( doubleValue.doubleValue() );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_BOOLEAN:
+        Boolean booleanValue = valueMeta.getBoolean( value );
+        if ( booleanValue == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          out.writeBoolean( booleanValue.booleanValue() );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_STRING:
+        if ( binaryStrings.isString( node.inputIndex ) ) {
+          byte[] utf8 = binaryStrings.getUtf8( valueMeta, value );
+          if ( utf8 != null ) {
+            writeIndex( node, out );
+            out.writeString( new Utf8( utf8 ) );
+            break;
+          }
+        }
+        String stringValue = valueMeta.getString( value );
+        if ( stringValue == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          out.writeString( stringValue );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_ENUM:
+        String symbol = valueMeta.getString( value );
+        if ( symbol == null ) {
+          writeNull( node, out );
+        } else {
+          if ( !node.schema.hasEnumSymbol( symbol ) ) {
+            throw new AvroTypeException( "Value " + symbol + " of field " + node.outputField.getName()
+              + " is not a symbol of enum " + node.schema.getFullName() + "." );
+          }
+          writeIndex( node, out );
+          out.writeEnum( node.schema.getEnumOrdinal( symbol ) );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_BYTES:
+        byte[] bytes = node.getBytes( valueMeta, value );
+        if ( bytes == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          out.writeBytes( bytes, 0, bytes.length );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_FIXED:
+        byte[] fixed = node.getBytes( valueMeta, value );
+        if ( fixed == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          out.writeFixed( fixed, 0, fixed.length );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_DECIMAL:
+        BigDecimal decimal = node.getDecimal( valueMeta, value );
+        if ( decimal == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          AvroLogicalTypes.writeDecimal( decimal, decimalBuffer, out );
+        }
+        break;
+      case AvroOutputField.AVRO_TYPE_DATE:
+      case AvroOutputField.AVRO_TYPE_TIMESTAMP_MILLIS:
+      case AvroOutputField.AVRO_TYPE_TIMESTAMP_MICROS:
+        Date date = node.getDate( valueMeta, value );
+        if ( date == null ) {
+          writeNull( node, out );
+        } else {
+          writeIndex( node, out );
+          if ( node.avroType == AvroOutputField.AVRO_TYPE_DATE ) {
+            out.writeInt( (int) node.toTime( date ) );
+          } else {
+            out.writeLong( node.toTime( date ) );
+          }
+        }
+        break;
+      default:
+        throw new AvroTypeException( "Avro type " + node.outputField.getAvroTypeDesc()
+          + " is not supported for field " + node.outputField.getAvroName() + "." );
+    }
+  }
+
+  private static void writeIndex( AvroRecordPlan.Node node, Encoder out ) throws IOException {
+    if ( node.unionIndex >= 0 ) {
+      out.writeIndex( node.unionIndex );
+    }
+  }
+
+  private static void writeNull( AvroRecordPlan.Node node, Encoder out ) throws IOException {
+    if ( node.nullIndex < 0 ) {
+      throw new AvroTypeException( "Field " + ( node.field != null ? node.field.name() : "array element" )
+        + " is not nullable but the value is null." );
+    }
+    out.writeIndex( node.nullIndex );
+    out.writeNull();
+  }
+}
@@ -0,0 +1,106 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The consecutive rows written as one Avro record when the record plan maps arrays.
+ *
+ * Rows belong to the same group as long as the values of the group key fields do not change, so the input must be
+ * sorted or grouped on the key fields.  Without key fields every row is its own group.  Only the rows of the current
+ * group are held in memory.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroRowGroup {
+
+  private final int[] keyIndexes;
+
+  private final ValueMetaInterface[] keyMetas;
+
+  private final List<Object[]> rows = new ArrayList<Object[]>();
+
+  /**
+   * @param rowMeta The row metadata for the input rows.
+   * @param keyIndexes The indexes of the group key fields in the input row.
+   */
+  public AvroRowGroup( RowMetaInterface rowMeta, int[] keyIndexes ) {
+    this.keyIndexes = keyIndexes;
+    this.keyMetas = new ValueMetaInterface[keyIndexes.length];
+    for ( int i = 0; i < keyIndexes.length; i++ ) {
+      keyMetas[i] = rowMeta.getValueMeta( keyIndexes[i] );
+    }
+  }
+
+  /**
+   * @return true if the row has the same key values as the rows of the group, or the group is empty.
+   * @throws KettleValueException if the key values can not be compared.
+   */
+  public boolean belongs( Object[] r ) throws KettleValueException {
+    if ( rows.isEmpty() ) {
+      return true;
+    }
+    if ( keyIndexes.length == 0 ) {
+      return false;
+    }
+    Object[] first = rows.get( 0 );
+    for ( int i = 0; i < keyIndexes.length; i++ ) {
+      if ( keyMetas[i].compare( first[keyIndexes[i]], r[keyIndexes[i]] ) != 0 ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void add( Object[] r ) {
+    rows.add( r );
+  }
+
+  public boolean isEmpty() {
+    return rows.isEmpty();
+  }
+
+  /**
+   * @return The first row of the group, which holds the values written outside the arrays.
+   */
+  public Object[] getFirst() {
+    return rows.get( 0 );
+  }
+
+  public List<Object[]> getRows() {
+    return rows;
+  }
+
+  public void clear() {
+    rows.clear();
+  }
+}
@@ -0,0 +1,248 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.codehaus.janino.ClassBodyEvaluator;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.util.List;
+
+/**
+ * Generates and compiles a row writer class for a record plan.
+ *
+ * The generated writeRow method contains one block of code per value in schema order with the row indexes, union
+ * branches and null handling written as literals, so writing a row is a single pass of straight-line calls on the
+ * encoder.  The source is compiled in memory with Janino, which ships with Kettle for the User Defined Java Class
+ * step.  The generated source only uses Java 1.4 syntax so older Janino versions can compile it.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroRowWriterCompiler {
+
+  private static final String CLASS_NAME = "org.inquidia.kettle.plugins.avrooutput.GeneratedAvroRowWriter";
+
+  private static final String[] DEFAULT_IMPORTS = new String[] {
+    "java.io.IOException",
+    "org.apache.avro.io.Encoder",
+    "org.pentaho.di.core.exception.KettleValueException",
+  };
+
+  private AvroRowWriterCompiler() {
+  }
+
+  /**
+   * Generate the source of the writeRow method for the plan.
+   *
+   * @param plan The record plan.
+   * @return The class body of the generated writer.
+   * @throws KettleException if the plan contains a type the generator does not support.
+   */
+  public static String generateSource( AvroRecordPlan plan ) throws KettleException {
+    List<AvroRecordPlan.ValueNode> valueNodes = plan.getValueNodes();
+    StringBuilder source = new StringBuilder();
+    source.append( "protected void writeRow( Object[] r, Encoder out ) throws IOException, KettleValueException {\n" );
+    generateRecord( plan.getRoot(), valueNodes, source );
+    source.append( "}\n" );
+    return source.toString();
+  }
+
+  private static void generateRecord( AvroRecordPlan.RecordNode node, List<AvroRecordPlan.ValueNode> valueNodes,
+                                      StringBuilder source ) throws KettleException {
+    AvroRecordPlan.Node[] slots = node.slots;
+    for ( int i = 0; i < slots.length; i++ ) {
+      AvroRecordPlan.Node slot = slots[i];
+      if ( slot == null ) {
+        if ( node.slotNullIndexes[i] >= 0 ) {
+          source.append( "  out.writeIndex( " ).append( node.slotNullIndexes[i] ).append( " );\n" );
+        }
+        source.append( "  out.writeNull();\n" );
+      } else if ( slot instanceof AvroRecordPlan.ValueNode ) {
+        AvroRecordPlan.ValueNode valueNode = (AvroRecordPlan.ValueNode) slot;
+        generateValue( valueNode, valueNodes.indexOf( valueNode ), source );
+      } else if ( slot instanceof AvroRecordPlan.ArrayNode || slot instanceof AvroRecordPlan.MapNode ) {
+        throw new KettleException( "Avro " + slot.schema.getType().getName() + " " + slot.field.name()
+          + " is not supported by the generated writer." );
+      } else {
+        if ( slot.unionIndex >= 0 ) {
+          source.append( "  out.writeIndex( " ).append( slot.unionIndex ).append( " );\n" );
+        }
+        generateRecord( (AvroRecordPlan.RecordNode) slot, valueNodes, source );
+      }
+    }
+  }
+
+  private static void generateValue( AvroRecordPlan.ValueNode node, int k, StringBuilder source )
+    throws KettleException {
+    String v = "v" + k;
+    String getter;
+    String javaType;
+    String write;
+    // Strings and numbers are read by the base class, which reads binary string storage from the bytes.
+    boolean ownGetter = false;
+    switch ( node.avroType ) {
+      case AvroOutputField.AVRO_TYPE_INT:
+        javaType = "Long";
+        getter = "integerValue";
+        ownGetter = true;
+        write = "out.writeInt( " + v + ".intValue() );";
+        break;
+      case AvroOutputField.AVRO_TYPE_LONG:
+        javaType = "Long";
+        getter = "integerValue";
+        ownGetter = true;
+        write = "out.writeLong( " + v + ".longValue() );";
+        break;
+      case AvroOutputField.AVRO_TYPE_FLOAT:
+        javaType = "Double";
+        getter = "numberValue";
+        ownGetter = true;
+        write = "out.writeFloat( " + v + ".floatValue() );";
+        break;
+      case AvroOutputField.AVRO_TYPE_DOUBLE:
+        javaType = "Double";
+        getter = "numberValue";
+        ownGetter = true;
+        write = "out.writeDouble( " + v + ".doubleValue() );";
+        break;
+      case AvroOutputField.AVRO_TYPE_BOOLEAN:
+        javaType = "Boolean";
+        getter = "getBoolean";
+        write = "out.writeBoolean( " + v + ".booleanValue() );";
+        break;
+      case AvroOutputField.AVRO_TYPE_STRING:
+        javaType = "CharSequence";
+        getter = "stringValue";
+        ownGetter = true;
+        write = "out.writeString( " + v + " );";
+        break;
+      case AvroOutputField.AVRO_TYPE_ENUM:
+        javaType = "String";
+        getter = "getString";
+        write = "out.writeEnum( enumOrdinal( " + k + ", " + v + " ) );";
+        break;
+      case AvroOutputField.AVRO_TYPE_BYTES:
+        javaType = "byte[]";
+        getter = "getBinary";
+        write = "out.writeBytes( " + v + ", 0, " + v + ".length );";
+        break;
+      case AvroOutputField.AVRO_TYPE_FIXED:
+        javaType = "byte[]";
+        getter = "getBinary";
+        write = "out.writeFixed( fixedValue( " + k + ", " + v + " ), 0, " + v + ".length );";
+        break;
+      case AvroOutputField.AVRO_TYPE_DECIMAL:
+        javaType = "java.math.BigDecimal";
+        getter = "getBigNumber";
+        write = "writeDecimal( " + k + ", " + v + ", out );";
+        break;
+      case AvroOutputField.AVRO_TYPE_DATE:
+        javaType = "java.util.Date";
+        getter = "getDate";
+        write = "out.writeInt( (int) timeValue( " + k + ", " + v + " ) );";
+        break;
+      case AvroOutputField.AVRO_TYPE_TIMESTAMP_MILLIS:
+        javaType = "java.util.Date";
+        getter = "getDate";
+        write = "out.writeLong( " + v + ".getTime() );";
+        break;
+      case AvroOutputField.AVRO_TYPE_TIMESTAMP_MICROS:
+        javaType = "java.util.Date";
+        getter = "getDate";
+        write = "out.writeLong( timeValue( " + k + ", " + v + " ) );";
+        break;
+      default:
+        throw new KettleException( "Avro type " + node.outputField.getAvroTypeDesc()
+          + " is not supported by the generated serializer." );
+    }
+
+    source.append( "  " ).append( javaType ).append( " " ).append( v ).append( " = " );
+    if ( ownGetter ) {
+      source.append( getter ).append( "( " ).append( k ).append( ", r[" ).append( node.inputIndex ).append( "] );\n" );
+    } else {
+      source.append( "valueMetas[" ).append( k ).append( "]." ).append( getter ).append( "( r[" )
+        .append( node.inputIndex ).append( "] );\n" );
+    }
+    source.append( "  if ( " ).append( v ).append( " == null ) {\n" );
+    if ( node.nullIndex >= 0 ) {
+      source.append( "    out.writeIndex( " ).append( node.nullIndex ).append( " );\n" );
+      source.append( "    out.writeNull();\n" );
+    } else {
+      source.append( "    nullValue( " ).append( k ).append( " );\n" );
+    }
+    source.append( "  } else {\n" );
+    if ( node.unionIndex >= 0 ) {
+      source.append( "    out.writeIndex( " ).append( node.unionIndex ).append( " );\n" );
+    }
+    source.append( "    " ).append( write ).append( "\n" );
+    source.append( "  }\n" );
+  }
+
+  /**
+   * Generate and compile the writer class for the plan.
+   *
+   * @param plan The record plan.
+   * @return The compiled writer class.
+   * @throws KettleException if the writer can not be generated or compiled.
+   */
+  public static Class<?> compile( AvroRecordPlan plan ) throws KettleException {
+    String source = generateSource( plan );
+    try {
+      ClassBodyEvaluator evaluator = new ClassBodyEvaluator();
+      evaluator.setClassName( CLASS_NAME );
+      evaluator.setDefaultImports( DEFAULT_IMPORTS );
+      evaluator.setExtendedType( AvroGeneratedRowWriter.class );
+      evaluator.setParentClassLoader( AvroRowWriterCompiler.class.getClassLoader() );
+      evaluator.cook( source );
+      return evaluator.getClazz();
+    } catch ( Exception e ) {
+      throw new KettleException( "Unable to compile the generated Avro row writer.", e );
+    } catch ( LinkageError e ) {
+      throw new KettleException( "Unable to compile the generated Avro row writer.", e );
+    }
+  }
+
+  /**
+   * Create a writer from a compiled writer class.
+   *
+   * @param writerClass The class returned by compile.
+   * @param plan The plan the class was compiled for.
+   * @param rowMeta The row metadata of the input rows.
+   * @return The bound writer.
+   * @throws KettleException if the class can not be instantiated.
+   */
+  public static AvroGeneratedRowWriter newWriter( Class<?> writerClass, AvroRecordPlan plan, RowMetaInterface rowMeta )
+    throws KettleException {
+    AvroGeneratedRowWriter writer;
+    try {
+      writer = (AvroGeneratedRowWriter) writerClass.newInstance();
+    } catch ( Exception e ) {
+      throw new KettleException( "Unable to create the generated Avro row writer.", e );
+    }
+    writer.bind( plan, rowMeta );
+    return writer;
+  }
+}
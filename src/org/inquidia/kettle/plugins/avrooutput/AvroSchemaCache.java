@@ -0,0 +1,196 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads Avro schema files through Kettle VFS and keeps the parsed schemas for the life of the JVM.
+ *
+ * Schemas are cached by the URI of the file.  A cached schema is used as long as the modification time and size of
+ * the file are unchanged.  File systems that do not report a modification time are read every time and the schema is
+ * only parsed again when the SHA-1 of the content changes.  The parsed schemas are not modified by the step, so all
+ * copies and transformations share them.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroSchemaCache {
+
+  /** The number of schemas kept, the least recently used schema is dropped beyond this */
+  private static final int MAX_SCHEMAS = 64;
+
+  private static final Map<String, CachedSchema> schemas = new LinkedHashMap<String, CachedSchema>( 16, 0.75f, true ) {
+    @Override
+    protected boolean removeEldestEntry( Map.Entry<String, CachedSchema> eldest ) {
+      return size() > MAX_SCHEMAS;
+    }
+  };
+
+  private static long hits;
+
+  private static long misses;
+
+  /**
+   * Get the schema in a file, parsing it only if it is not cached or the file changed.
+   *
+   * @param filename The schema filename or VFS URL.  Variables are substituted.
+   * @param space The variable space to substitute variables with.
+   * @return The schema
+   * @throws KettleException if the file can not be read or does not hold a valid schema.
+   */
+  public static Schema getSchema( String filename, VariableSpace space ) throws KettleException {
+    String resolved = space.environmentSubstitute( filename );
+    try {
+      FileObject file = KettleVFS.getFileObject( resolved, space );
+      if ( !file.exists() ) {
+        throw new KettleException( "Avro schema file " + resolved + " does not exist." );
+      }
+      String uri = file.getName().getURI();
+      long modified = getLastModifiedTime( file );
+      long size = file.getContent().getSize();
+
+      CachedSchema entry;
+      synchronized ( schemas ) {
+        entry = schemas.get( uri );
+        if ( entry != null && modified > 0 && entry.modified == modified && entry.size == size ) {
+          hits++;
+          return entry.schema;
+        }
+      }
+
+      byte[] content = read( file );
+      byte[] digest = modified > 0 ? null : digest( content );
+      if ( entry != null && digest != null && Arrays.equals( digest, entry.digest ) ) {
+        synchronized ( schemas ) {
+          hits++;
+        }
+        return entry.schema;
+      }
+
+      Schema schema = AvroLogicalTypes.parse( new String( content, "UTF-8" ) );
+      synchronized ( schemas ) {
+        misses++;
+        schemas.put( uri, new CachedSchema( schema, modified, size, digest ) );
+      }
+      return schema;
+    } catch ( IOException e ) {
+      throw new KettleException( "Could not read Avro schema file " + resolved, e );
+    } catch ( RuntimeException e ) {
+      // Avro reports an invalid schema with an unchecked SchemaParseException.
+      throw new KettleException( "Could not parse Avro schema file " + resolved, e );
+    }
+  }
+
+  /**
+   * @return The number of schemas returned from the cache without parsing.
+   */
+  public static long getHits() {
+    synchronized ( schemas ) {
+      return hits;
+    }
+  }
+
+  /**
+   * @return The number of schemas that had to be parsed.
+   */
+  public static long getMisses() {
+    synchronized ( schemas ) {
+      return misses;
+    }
+  }
+
+  /**
+   * Drop all cached schemas.
+   */
+  public static void clear() {
+    synchronized ( schemas ) {
+      schemas.clear();
+    }
+  }
+
+  private static long getLastModifiedTime( FileObject file ) {
+    try {
+      return file.getContent().getLastModifiedTime();
+    } catch ( IOException e ) {
+      // Not every file system keeps a modification time.
+      return 0;
+    }
+  }
+
+  private static byte[] read( FileObject file ) throws IOException {
+    InputStream in = KettleVFS.getInputStream( file );
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int n;
+      while ( ( n = in.read( buf ) ) >= 0 ) {
+        out.write( buf, 0, n );
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] digest( byte[] content ) {
+    try {
+      return MessageDigest.getInstance( "SHA-1" ).digest( content );
+    } catch ( NoSuchAlgorithmException e ) {
+      // Every JVM has SHA-1.
+      throw new IllegalStateException( e );
+    }
+  }
+
+  private static class CachedSchema {
+    final Schema schema;
+
+    final long modified;
+
+    final long size;
+
+    final byte[] digest;
+
+    CachedSchema( Schema schema, long modified, long size, byte[] digest ) {
+      this.schema = schema;
+      this.modified = modified;
+      this.size = size;
+      this.digest = digest;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes 64 bit Rabin fingerprints of schemas with the CRC-64-AVRO polynomial from the Avro specification.
+ *
+ * Avro 1.6.2 has no SchemaNormalization, so the Parsing Canonical Form and the fingerprint are implemented here the
+ * same way the specification describes them.  The canonical fingerprint is the one used by single object encoding
+ * and schema registries, the fingerprint of the full JSON also changes with docs, defaults and properties.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroSchemaFingerprint {
+
+  /** The fingerprint of an empty byte array, also the CRC-64-AVRO polynomial */
+  public static final long EMPTY = 0xc15d213aa4d7a795L;
+
+  private static final long[] FP_TABLE = new long[256];
+
+  static {
+    for ( int i = 0; i < 256; i++ ) {
+      long fp = i;
+      for ( int j = 0; j < 8; j++ ) {
+        fp = ( fp >>> 1 ) ^ ( EMPTY & -( fp & 1L ) );
+      }
+      FP_TABLE[i] = fp;
+    }
+  }
+
+  private AvroSchemaFingerprint() {
+  }
+
+  /**
+   * @return The CRC-64-AVRO fingerprint of the bytes.
+   */
+  public static long fingerprint64( byte[] data ) {
+    long fp = EMPTY;
+    for ( byte b : data ) {
+      fp = ( fp >>> 8 ) ^ FP_TABLE[(int) ( fp ^ b ) & 0xff];
+    }
+    return fp;
+  }
+
+  /**
+   * @return The CRC-64-AVRO fingerprint of the full JSON of the schema, including docs, defaults and properties.
+   */
+  public static long fingerprint64( Schema schema ) {
+    return fingerprint64( toUtf8( schema.toString() ) );
+  }
+
+  /**
+   * @return The CRC-64-AVRO fingerprint of the Parsing Canonical Form of the schema.
+   */
+  public static long parsingFingerprint64( Schema schema ) {
+    return fingerprint64( toUtf8( toParsingForm( schema ) ) );
+  }
+
+  /**
+   * Get the Parsing Canonical Form of a schema: the JSON with only the attributes that affect how data is read,
+   * full names instead of namespaces and no whitespace.  Two schemas with the same canonical form read the same data.
+   *
+   * @return The canonical form
+   */
+  public static String toParsingForm( Schema schema ) {
+    return build( new HashMap<String, String>(), schema, new StringBuilder() ).toString();
+  }
+
+  private static StringBuilder build( Map<String, String> env, Schema schema, StringBuilder out ) {
+    Schema.Type type = schema.getType();
+    switch ( type ) {
+      case UNION:
+        out.append( '[' );
+        boolean first = true;
+        for ( Schema branch : schema.getTypes() ) {
+          if ( !first ) {
+            out.append( ',' );
+          }
+          build( env, branch, out );
+          first = false;
+        }
+        return out.append( ']' );
+      case ARRAY:
+        out.append( "{\"type\":\"array\",\"items\":" );
+        return build( env, schema.getElementType(), out ).append( '}' );
+      case MAP:
+        out.append( "{\"type\":\"map\",\"values\":" );
+        return build( env, schema.getValueType(), out ).append( '}' );
+      case ENUM:
+      case FIXED:
+      case RECORD:
+        String name = schema.getFullName();
+        if ( env.containsKey( name ) ) {
+          // A named type is written out once, later uses only refer to it by name.
+          return out.append( env.get( name ) );
+        }
+        String quotedName = "\"" + name + "\"";
+        env.put( name, quotedName );
+        out.append( "{\"name\":" ).append( quotedName ).append( ",\"type\":\"" ).append( type.getName() )
+          .append( '"' );
+        if ( type == Schema.Type.ENUM ) {
+          out.append( ",\"symbols\":[" );
+          boolean firstSymbol = true;
+          for ( String symbol : schema.getEnumSymbols() ) {
+            if ( !firstSymbol ) {
+              out.append( ',' );
+            }
+            out.append( '"' ).append( symbol ).append( '"' );
+            firstSymbol = false;
+          }
+          out.append( ']' );
+        } else if ( type == Schema.Type.FIXED ) {
+          out.append( ",\"size\":" ).append( schema.getFixedSize() );
+        } else {
+          out.append( ",\"fields\":[" );
+          boolean firstField = true;
+          for ( Schema.Field field : schema.getFields() ) {
+            if ( !firstField ) {
+              out.append( ',' );
+            }
+            out.append( "{\"name\":\"" ).append( field.name() ).append( "\",\"type\":" );
+            build( env, field.schema(), out ).append( '}' );
+            firstField = false;
+          }
+          out.append( ']' );
+        }
+        return out.append( '}' );
+      default:
+        // Primitive types are written as a plain string.
+        return out.append( '"' ).append( type.getName() ).append( '"' );
+    }
+  }
+
+  static byte[] toUtf8( String s ) {
+    try {
+      return s.getBytes( "UTF-8" );
+    } catch ( UnsupportedEncodingException e ) {
+      // Every JVM has UTF-8.
+      throw new IllegalStateException( e );
+    }
+  }
+}
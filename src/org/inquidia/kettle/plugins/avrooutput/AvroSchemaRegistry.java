@@ -0,0 +1,58 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.variables.VariableSpace;
+
+/**
+ * Resolves the id of a schema in a schema registry, for the schema id written in front of binary messages.
+ *
+ * Implementations need a public no argument constructor.  The step creates one client per step copy and asks it for
+ * the id once, when the first row arrives.  AvroFileSchemaRegistry is used when no client class is set.
+ *
+ * @author Inquidia Consulting
+ */
+public interface AvroSchemaRegistry {
+
+  /**
+   * Connect to the registry.
+   *
+   * @param url The location of the registry as entered in the step.  Variables are not substituted.
+   * @param space The variable space of the step copy.
+   * @throws KettleException if the registry can not be reached.
+   */
+  void init( String url, VariableSpace space ) throws KettleException;
+
+  /**
+   * @param subject The subject the schema is registered under.
+   * @param schema The schema written by the step.
+   * @return The id of the schema.
+   * @throws KettleException if the schema is not registered under the subject.
+   */
+  int getSchemaId( String subject, Schema schema ) throws KettleException;
+}
@@ -0,0 +1,121 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.trans.Trans;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An Avro container file written by all copies of a step.
+ *
+ * The first copy to acquire a file opens it, the last copy to release it closes it.  Files are shared by copies of
+ * the same transformation writing to the same filename.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroSharedFile {
+
+  private static final Map<Key, AvroSharedFile> files = new HashMap<Key, AvroSharedFile>();
+
+  private final Key key;
+
+  public final String filename;
+
+  public final AvroBlockAppender appender;
+
+  private int users;
+
+  private AvroSharedFile( Key key, String filename, AvroBlockAppender appender ) {
+    this.key = key;
+    this.filename = filename;
+    this.appender = appender;
+  }
+
+  /**
+   * Get the shared file, opening it if this is the first copy to ask for it.
+   *
+   * @param step The step copy.
+   * @param filename The filename.
+   * @param ordered Whether blocks are written in the order they are started.
+   * @return The shared file
+   * @throws KettleException if the file can not be opened.
+   */
+  public static AvroSharedFile acquire( AvroOutput step, String filename, boolean ordered ) throws KettleException {
+    Key key = new Key( step.getTrans(), filename );
+    synchronized ( files ) {
+      AvroSharedFile file = files.get( key );
+      if ( file == null ) {
+        file = new AvroSharedFile( key, filename, new AvroBlockAppender( step.openOutputStream( filename ), ordered ) );
+        files.put( key, file );
+      }
+      file.users++;
+      return file;
+    }
+  }
+
+  /**
+   * Release the shared file, closing it if this is the last copy using it.
+   *
+   * @throws IOException if the file can not be closed.
+   */
+  public void release() throws IOException {
+    synchronized ( files ) {
+      users--;
+      if ( users > 0 ) {
+        return;
+      }
+      files.remove( key );
+    }
+    appender.close();
+  }
+
+  private static class Key {
+    private final Trans trans;
+    private final String filename;
+
+    Key( Trans trans, String filename ) {
+      this.trans = trans;
+      this.filename = filename;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+      if ( !( o instanceof Key ) ) {
+        return false;
+      }
+      Key other = (Key) o;
+      return trans == other.trans && filename.equals( other.filename );
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode( trans ) * 31 + filename.hashCode();
+    }
+  }
+}
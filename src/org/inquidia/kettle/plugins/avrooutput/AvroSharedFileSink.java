@@ -0,0 +1,107 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.file.DataFileConstants;
+import org.pentaho.di.core.exception.KettleException;
+
+import java.io.IOException;
+
+/**
+ * Writes the records of one step copy to an Avro container file shared by all copies of the step.
+ *
+ * Each copy encodes and compresses its own blocks, the shared appender writes the finished blocks to the file.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroSharedFileSink implements AvroSink {
+
+  private final AvroOutput step;
+
+  private final AvroOutputData data;
+
+  public AvroSharedFileSink( AvroOutput step ) {
+    this.step = step;
+    this.data = step.data;
+  }
+
+  public void open() throws KettleException {
+    AvroBlockCodec codec = step.createCodec();
+    try {
+      data.sharedFile.appender.writeHeader( data.avroSchema, codec.getName() );
+    } catch ( IOException e ) {
+      throw new KettleException( "Could not open Avro writer", e );
+    }
+    data.containerWriter = new AvroContainerWriter( data.datumWriter, codec, data.sharedFile.appender,
+      DataFileConstants.DEFAULT_SYNC_INTERVAL, step.getCompressionThreads(), step.getStepname() + " compression" );
+    data.containerWriter.setTargetBlockSize( step.getTargetBlockSize() );
+  }
+
+  public Object[] writeRecord( Object[] r ) throws KettleException {
+    try {
+      data.containerWriter.append( r );
+    } catch ( IOException e ) {
+      throw new KettleException( e );
+    }
+    return r;
+  }
+
+  public void flush() throws KettleException {
+    if ( data.containerWriter != null ) {
+      try {
+        data.containerWriter.flush();
+      } catch ( IOException e ) {
+        throw new KettleException( e );
+      }
+    }
+  }
+
+  public void close() throws KettleException {
+    if ( data.sharedFile == null ) {
+      return;
+    }
+    AvroSharedFile sharedFile = data.sharedFile;
+    data.sharedFile = null;
+    IOException failure = null;
+    try {
+      if ( data.containerWriter != null ) {
+        data.containerWriter.close();
+      }
+    } catch ( IOException e ) {
+      failure = e;
+    }
+    data.containerWriter = null;
+    try {
+      sharedFile.release();
+    } catch ( IOException e ) {
+      if ( failure == null ) {
+        failure = e;
+      }
+    }
+    if ( failure != null ) {
+      throw new KettleException( "Error closing Avro file " + sharedFile.filename, failure );
+    }
+  }
+}
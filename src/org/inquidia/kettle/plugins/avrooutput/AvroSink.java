@@ -0,0 +1,70 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * Where the Avro records written by the step go.
+ *
+ * The sink is chosen once when the step is initialized, so writing a row is a single call on the sink.  The
+ * schema, record plan and datum writer are set up in AvroOutputData before the sink is opened.
+ *
+ * @author Inquidia Consulting
+ */
+public interface AvroSink {
+
+  /**
+   * Prepare the sink for writing.  Called once when the first row arrives, or at the end of the stream when there
+   * are no rows.
+   *
+   * @throws KettleException
+   */
+  void open() throws KettleException;
+
+  /**
+   * Write a row as an Avro record.
+   *
+   * @param r The input row, sized for the output row.
+   * @return The row to pass on to the next steps.
+   * @throws KettleException
+   */
+  Object[] writeRecord( Object[] r ) throws KettleException;
+
+  /**
+   * Write out anything the sink has buffered.
+   *
+   * @throws KettleException
+   */
+  void flush() throws KettleException;
+
+  /**
+   * Flush and release the resources of the sink.  Called at the end of the stream and when the step is disposed,
+   * so it must be safe to call more than once.
+   *
+   * @throws KettleException
+   */
+  void close() throws KettleException;
+}
@@ -0,0 +1,163 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Spreads the records of one step copy over several container files, so the files come out the same size and can
+ * be read in parallel without running more copies of the step.
+ *
+ * Rows are assigned round-robin, or by the hash of a key field so equal keys end up in the same file.  File i is
+ * named after the output file with _i added, and can be placed in one of several folders, for example one per disk.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroStripedFileSink implements AvroSink {
+
+  private final AvroOutput step;
+
+  private final AvroOutputData data;
+
+  private AvroOutputFile[] files;
+
+  private int keyIndex = -1;
+
+  private ValueMetaInterface keyMeta;
+
+  private int next;
+
+  public AvroStripedFileSink( AvroOutput step ) {
+    this.step = step;
+    this.data = step.data;
+  }
+
+  public void open() throws KettleException {
+    int stripes = step.meta.getStripes( step );
+
+    String stripeField = step.environmentSubstitute( step.meta.getStripeField() );
+    if ( !Const.isEmpty( stripeField ) && data.outputRowMeta != null ) {
+      keyIndex = data.outputRowMeta.indexOfValue( stripeField );
+      if ( keyIndex < 0 ) {
+        throw new KettleStepException( "Stripe field [" + stripeField + "] couldn't be found in the input stream!" );
+      }
+      keyMeta = data.outputRowMeta.getValueMeta( keyIndex );
+    }
+
+    String filename = step.buildFilename( step.environmentSubstitute( step.meta.getFileName() ), true );
+    int slash = Math.max( filename.lastIndexOf( '/' ), filename.lastIndexOf( '\\' ) );
+    String directory = filename.substring( 0, slash + 1 );
+    String baseName = filename.substring( slash + 1 );
+    String extension = "";
+    int dot = baseName.lastIndexOf( '.' );
+    if ( dot > 0 ) {
+      extension = baseName.substring( dot );
+      baseName = baseName.substring( 0, dot );
+    }
+
+    String[] folders = null;
+    String stripeFolders = step.environmentSubstitute( step.meta.getStripeFolders() );
+    if ( !Const.isEmpty( stripeFolders ) ) {
+      folders = stripeFolders.split( "," );
+      for ( int i = 0; i < folders.length; i++ ) {
+        folders[i] = folders[i].trim();
+        if ( !folders[i].endsWith( "/" ) && !folders[i].endsWith( "\\" ) ) {
+          folders[i] += "/";
+        }
+      }
+    }
+
+    files = new AvroOutputFile[stripes];
+    for ( int i = 0; i < stripes; i++ ) {
+      String folder = folders == null ? directory : folders[i % folders.length];
+      String stripeFilename = folder + baseName + "_" + i + extension;
+      if ( step.isDetailed() ) {
+        step.logDetailed( "Opening stripe file [" + stripeFilename + "]" );
+      }
+      files[i] = AvroOutputFile.open( step, stripeFilename, false, 0 );
+      step.addFileToResult( stripeFilename );
+    }
+  }
+
+  public Object[] writeRecord( Object[] r ) throws KettleException {
+    int stripe;
+    if ( keyIndex < 0 ) {
+      stripe = next;
+      if ( ++next == files.length ) {
+        next = 0;
+      }
+    } else {
+      stripe = ( mix( keyMeta.hashCode( r[keyIndex] ) ) & Integer.MAX_VALUE ) % files.length;
+    }
+    files[stripe].append( r );
+    return r;
+  }
+
+  /**
+   * Spread the bits of a hash code, so keys with similar hash codes do not all land on the same stripe.
+   */
+  private static int mix( int h ) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  public void flush() throws KettleException {
+  }
+
+  public void close() throws KettleException {
+    if ( files == null ) {
+      return;
+    }
+    KettleException failure = null;
+    for ( int i = 0; i < files.length; i++ ) {
+      if ( files[i] == null ) {
+        continue;
+      }
+      if ( step.isDetailed() ) {
+        step.logDetailed( "Closing stripe file [" + files[i].filename + "] with " + files[i].getRecords()
+          + " records." );
+      }
+      try {
+        files[i].close();
+      } catch ( KettleException e ) {
+        if ( failure == null ) {
+          failure = e;
+        }
+      }
+    }
+    files = null;
+    if ( failure != null ) {
+      throw failure;
+    }
+  }
+}
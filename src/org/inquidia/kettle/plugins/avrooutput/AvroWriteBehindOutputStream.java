@@ -0,0 +1,283 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A buffered output stream that writes its buffers to the target stream on a dedicated I/O thread.
+ *
+ * The stream owns a fixed pool of buffers.  Full buffers are queued for the I/O thread and the writer carries on
+ * filling the next free buffer, so it only waits when every buffer is queued behind a slow target.  A failure on
+ * the I/O thread is kept and thrown by the next call on the stream.  The number and length of the waits are logged
+ * when the stream is closed.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroWriteBehindOutputStream extends OutputStream implements AvroBlockListener {
+
+  private static final Buffer STOP = new Buffer( 0 );
+
+  private static final Buffer FAILED = new Buffer( 0 );
+
+  private final OutputStream out;
+
+  private final LogChannelInterface log;
+
+  private final AvroBlockListener listener;
+
+  private final BlockingQueue<Buffer> queue = new LinkedBlockingQueue<Buffer>();
+
+  private final BlockingQueue<Buffer> free = new LinkedBlockingQueue<Buffer>();
+
+  private final Thread thread;
+
+  private Buffer current;
+
+  private volatile IOException failure;
+
+  private boolean closed;
+
+  private long submitted;
+
+  private long completed;
+
+  private long bytesWritten;
+
+  private long buffersWritten;
+
+  private long ioNanos;
+
+  private long waits;
+
+  private long waitNanos;
+
+  /**
+   * @param out The target stream.  It is only used by the I/O thread and is closed with this stream.
+   * @param bufferSize The size of each buffer.
+   * @param queueDepth The number of full buffers that can be queued for the I/O thread, at least 1.
+   * @param threadName The name of the I/O thread.
+   * @param log The log the wait statistics are written to at close, or null.
+   */
+  public AvroWriteBehindOutputStream( OutputStream out, int bufferSize, int queueDepth, String threadName,
+                                      LogChannelInterface log ) {
+    this.out = out;
+    this.log = log;
+    this.listener = out instanceof AvroBlockListener ? (AvroBlockListener) out : null;
+    for ( int i = 0; i < queueDepth; i++ ) {
+      free.add( new Buffer( bufferSize ) );
+    }
+    current = new Buffer( bufferSize );
+    thread = new Thread( new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, threadName );
+    thread.setDaemon( true );
+    thread.start();
+  }
+
+  private void drain() {
+    try {
+      Buffer buffer;
+      while ( ( buffer = queue.take() ) != STOP ) {
+        if ( failure == null ) {
+          long start = System.nanoTime();
+          try {
+            if ( buffer.length > 0 ) {
+              out.write( buffer.data, 0, buffer.length );
+              bytesWritten += buffer.length;
+              buffersWritten++;
+            }
+            for ( int i = 0; listener != null && i < buffer.blocks; i++ ) {
+              listener.blockWritten();
+            }
+            if ( buffer.flush ) {
+              out.flush();
+            }
+          } catch ( IOException e ) {
+            failure = e;
+          } catch ( RuntimeException e ) {
+            failure = new IOException( e.getMessage(), e );
+          }
+          ioNanos += System.nanoTime() - start;
+        }
+        buffer.length = 0;
+        buffer.blocks = 0;
+        buffer.flush = false;
+        free.add( buffer );
+        synchronized ( this ) {
+          completed++;
+          notifyAll();
+        }
+      }
+    } catch ( InterruptedException e ) {
+      failure = new InterruptedIOException( "The Avro write-behind thread was interrupted." );
+      synchronized ( this ) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Throw the failure of the I/O thread, if there was one.
+   *
+   * @throws IOException The failure.
+   */
+  public void checkFailure() throws IOException {
+    if ( failure != null ) {
+      throw new IOException( "Writing to the Avro file failed: " + failure.getMessage(), failure );
+    }
+  }
+
+  @Override
+  public void write( int b ) throws IOException {
+    if ( current.length == current.data.length ) {
+      submit();
+    }
+    current.data[current.length++] = (byte) b;
+  }
+
+  @Override
+  public void write( byte[] b, int off, int len ) throws IOException {
+    while ( len > 0 ) {
+      if ( current.length == current.data.length ) {
+        submit();
+      }
+      int n = Math.min( len, current.data.length - current.length );
+      System.arraycopy( b, off, current.data, current.length, n );
+      current.length += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Pass the end of a block on to the target stream once the buffer holding it has been written.
+   */
+  public void blockWritten() {
+    if ( current != FAILED ) {
+      current.blocks++;
+    }
+  }
+
+  /**
+   * Queue the current buffer for the I/O thread and take the next free buffer, waiting for one if necessary.
+   */
+  private long submit() throws IOException {
+    checkFailure();
+    if ( closed || current == FAILED ) {
+      throw new IOException( "The Avro write-behind stream is closed." );
+    }
+    Buffer full = current;
+    // The queued buffer belongs to the I/O thread now, so never leave it as the current buffer.
+    current = FAILED;
+    queue.add( full );
+    long sequence;
+    synchronized ( this ) {
+      sequence = ++submitted;
+    }
+    Buffer next = free.poll();
+    if ( next == null ) {
+      long start = System.nanoTime();
+      try {
+        while ( ( next = free.poll( 100, TimeUnit.MILLISECONDS ) ) == null ) {
+          checkFailure();
+        }
+      } catch ( InterruptedException e ) {
+        throw new InterruptedIOException( "Interrupted waiting for the Avro write-behind thread." );
+      }
+      waits++;
+      waitNanos += System.nanoTime() - start;
+    }
+    current = next;
+    return sequence;
+  }
+
+  /**
+   * Write everything written so far to the target stream and flush it, waiting for the I/O thread.
+   */
+  @Override
+  public void flush() throws IOException {
+    current.flush = true;
+    long sequence = submit();
+    synchronized ( this ) {
+      try {
+        while ( completed < sequence && failure == null ) {
+          wait();
+        }
+      } catch ( InterruptedException e ) {
+        throw new InterruptedIOException( "Interrupted waiting for the Avro write-behind thread." );
+      }
+    }
+    checkFailure();
+  }
+
+  /**
+   * Flush the buffers, stop the I/O thread and close the target stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if ( closed ) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      closed = true;
+      queue.add( STOP );
+      try {
+        thread.join();
+      } catch ( InterruptedException e ) {
+        thread.interrupt();
+      }
+      out.close();
+      if ( log != null && log.isDetailed() ) {
+        log.logDetailed( "Write-behind wrote " + bytesWritten + " bytes in " + buffersWritten + " buffers in "
+          + ioNanos / 1000000L + " ms.  The step waited for a free buffer " + waits + " times for "
+          + waitNanos / 1000000L + " ms." );
+      }
+    }
+  }
+
+  private static class Buffer {
+    private final byte[] data;
+    private int length;
+    private int blocks;
+    private boolean flush;
+
+    Buffer( int size ) {
+      data = new byte[size];
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives several container writers through one ordered appender, the way the copies of a step share a file.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroBlockAppenderTest {
+
+  private static final Schema SCHEMA = Schema.createRecord( "Row", null, "test", false );
+
+  static {
+    SCHEMA.setFields( Arrays.asList( new Schema.Field( "id", Schema.create( Schema.Type.LONG ), null, null ) ) );
+  }
+
+  /** A small sync interval, so the writers finish many blocks */
+  private static final int SYNC_INTERVAL = 64;
+
+  private static final long SLOW_ROWS = 200;
+
+  private static final long FAST_ROWS = 20000;
+
+  /** The first id written by the fast writer */
+  private static final long FAST_START = 1000000;
+
+  @Test
+  public void testOrderedWithSlowWriter() throws Exception {
+    runOrdered( 0 );
+  }
+
+  @Test
+  public void testOrderedWithSlowWriterAndCompressionThreads() throws Exception {
+    runOrdered( 2 );
+  }
+
+  /**
+   * One writer gets a row every few milliseconds and sometimes waits longer than EARLY_FINISH_WAIT for a row, while
+   * the other writer finishes blocks as fast as it can.  The fast writer fills the pending blocks behind the open
+   * block of the slow writer and has to wait with its 17th block, so the slow writer is asked to finish its block
+   * early or gives up its place.
+   */
+  private void runOrdered( int compressionThreads ) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final AvroBlockAppender appender = new AvroBlockAppender( bytes, true );
+    AvroBlockCodec codec = AvroBlockCodec.create( "deflate" );
+    appender.writeHeader( SCHEMA, codec.getName() );
+
+    final AvroContainerWriter slowWriter =
+      new AvroContainerWriter( new IdWriter(), codec.copy(), appender, SYNC_INTERVAL, compressionThreads, "slow" );
+    final AvroContainerWriter fastWriter =
+      new AvroContainerWriter( new IdWriter(), codec.copy(), appender, SYNC_INTERVAL, compressionThreads, "fast" );
+    final CountDownLatch slowStarted = new CountDownLatch( 1 );
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    final AtomicInteger maxPending = new AtomicInteger();
+
+    Thread slow = new Thread( new Runnable() {
+      public void run() {
+        try {
+          for ( long id = 0; id < SLOW_ROWS; id++ ) {
+            slowWriter.append( new Object[] { id } );
+            slowStarted.countDown();
+            Thread.sleep( id % 50 == 49 ? AvroBlockAppender.EARLY_FINISH_WAIT + 100 : 2 );
+          }
+          slowWriter.close();
+        } catch ( Throwable t ) {
+          addFailure( failures, t );
+        } finally {
+          slowStarted.countDown();
+        }
+      }
+    } );
+    Thread fast = new Thread( new Runnable() {
+      public void run() {
+        try {
+          slowStarted.await();
+          for ( long id = FAST_START; id < FAST_START + FAST_ROWS; id++ ) {
+            fastWriter.append( new Object[] { id } );
+            int pending = appender.getPendingBlocks();
+            if ( pending > maxPending.get() ) {
+              maxPending.set( pending );
+            }
+          }
+          fastWriter.close();
+        } catch ( Throwable t ) {
+          addFailure( failures, t );
+        }
+      }
+    } );
+    slow.start();
+    fast.start();
+    slow.join( 60000 );
+    fast.join( 60000 );
+    assertTrue( "The writers did not finish", !slow.isAlive() && !fast.isAlive() );
+    assertTrue( failures.toString(), failures.isEmpty() );
+
+    // Fails with "blocks were never written" if a skipped or renumbered block is still held.
+    appender.close();
+
+    assertEquals( AvroBlockAppender.MAX_PENDING_BLOCKS, maxPending.get() );
+
+    // Every row is read back once, and the rows of each writer are still in the order they were written.
+    Map<Long, Integer> counts = new HashMap<Long, Integer>();
+    long lastSlow = -1;
+    long lastFast = -1;
+    DataFileStream<GenericRecord> in = new DataFileStream<GenericRecord>(
+      new ByteArrayInputStream( bytes.toByteArray() ), new GenericDatumReader<GenericRecord>() );
+    try {
+      while ( in.hasNext() ) {
+        long id = (Long) in.next().get( "id" );
+        Integer count = counts.get( id );
+        assertNull( "Row " + id + " was written twice", count );
+        counts.put( id, 1 );
+        if ( id < FAST_START ) {
+          assertTrue( "Row " + id + " of the slow writer is out of order", id > lastSlow );
+          lastSlow = id;
+        } else {
+          assertTrue( "Row " + id + " of the fast writer is out of order", id > lastFast );
+          lastFast = id;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    assertEquals( SLOW_ROWS + FAST_ROWS, counts.size() );
+    assertEquals( SLOW_ROWS - 1, lastSlow );
+    assertEquals( FAST_START + FAST_ROWS - 1, lastFast );
+  }
+
+  @Test
+  public void testUnfinishedBlockFailsClose() throws Exception {
+    AvroBlockAppender appender = new AvroBlockAppender( new ByteArrayOutputStream(), true );
+    appender.writeHeader( SCHEMA, "null" );
+    AvroContainerWriter first = new AvroContainerWriter( new IdWriter(), AvroBlockCodec.create( "null" ), appender,
+      SYNC_INTERVAL );
+    AvroContainerWriter second = new AvroContainerWriter( new IdWriter(), AvroBlockCodec.create( "null" ), appender,
+      SYNC_INTERVAL );
+    first.append( new Object[] { 1L } );
+    second.append( new Object[] { 2L } );
+    second.close();
+    assertEquals( 1, appender.getPendingBlocks() );
+    try {
+      appender.close();
+    } catch ( IOException e ) {
+      assertTrue( e.getMessage(), e.getMessage().contains( "never written" ) );
+      return;
+    }
+    fail( "Closing with a block held for an open block should fail" );
+  }
+
+  private static void addFailure( List<Throwable> failures, Throwable t ) {
+    synchronized ( failures ) {
+      failures.add( t );
+    }
+  }
+
+  /**
+   * Writes the id of a row as the only field of the record.
+   */
+  private static class IdWriter implements DatumWriter<Object[]> {
+    public void setSchema( Schema schema ) {
+    }
+
+    public void write( Object[] r, Encoder out ) throws IOException {
+      out.writeLong( (Long) r[0] );
+    }
+  }
+}
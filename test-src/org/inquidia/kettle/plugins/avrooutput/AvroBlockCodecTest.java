@@ -0,0 +1,243 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import io.airlift.compress.zstd.ZstdDecompressor;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.tukaani.xz.XZInputStream;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compresses blocks with each codec and reads them back the way an Avro reader decompresses them.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroBlockCodecTest {
+
+  /** A block of text that compresses, with random words so it is not one repeated run */
+  private static final byte[] DATA = createData();
+
+  private static byte[] createData() {
+    String[] words = { "avro", "kettle", "block", "codec", "record", "\u00e9t\u00e9", "0123456789" };
+    Random random = new Random( 42 );
+    StringBuilder s = new StringBuilder();
+    while ( s.length() < 200000 ) {
+      s.append( words[random.nextInt( words.length )] ).append( random.nextInt( 1000 ) ).append( ' ' );
+    }
+    return AvroSchemaFingerprint.toUtf8( s.toString() );
+  }
+
+  @Test
+  public void testNull() throws Exception {
+    AvroBlockCodec codec = AvroBlockCodec.create( "" );
+    assertEquals( "null", codec.getName() );
+    AvroMessageBuffer raw = raw( DATA );
+    assertSame( raw, codec.compress( raw, new AvroMessageBuffer() ) );
+    assertEquals( "null", AvroBlockCodec.create( "none" ).getName() );
+  }
+
+  @Test
+  public void testDeflate() throws Exception {
+    for ( int level : new int[] { AvroBlockCodec.DEFAULT_LEVEL, 0, 1, 9 } ) {
+      AvroBlockCodec codec = AvroBlockCodec.create( "deflate", level );
+      assertEquals( "deflate", codec.getName() );
+      byte[] compressed = compress( codec );
+      // Avro reads raw deflate data without the zlib header.
+      Inflater inflater = new Inflater( true );
+      inflater.setInput( compressed );
+      byte[] out = new byte[DATA.length];
+      int n = inflater.inflate( out );
+      assertTrue( inflater.finished() );
+      assertEquals( DATA.length, n );
+      assertArrayEquals( DATA, out );
+      inflater.end();
+    }
+  }
+
+  @Test
+  public void testSnappy() throws Exception {
+    AvroBlockCodec codec = AvroBlockCodec.create( "snappy" );
+    assertEquals( "snappy", codec.getName() );
+    byte[] compressed = compress( codec );
+    // Avro follows the snappy data with the big endian CRC32 of the uncompressed data.
+    byte[] out = new byte[Snappy.uncompressedLength( compressed, 0, compressed.length - 4 )];
+    Snappy.uncompress( compressed, 0, compressed.length - 4, out, 0 );
+    assertArrayEquals( DATA, out );
+    CRC32 crc32 = new CRC32();
+    crc32.update( DATA );
+    int crc = (int) crc32.getValue();
+    assertArrayEquals( new byte[] { (byte) ( crc >>> 24 ), (byte) ( crc >>> 16 ), (byte) ( crc >>> 8 ), (byte) crc },
+      Arrays.copyOfRange( compressed, compressed.length - 4, compressed.length ) );
+  }
+
+  @Test
+  public void testZstandard() throws Exception {
+    AvroBlockCodec codec = AvroBlockCodec.create( "zstandard" );
+    assertEquals( "zstandard", codec.getName() );
+    byte[] compressed = compress( codec );
+    byte[] out = new byte[DATA.length];
+    int n = new ZstdDecompressor().decompress( compressed, 0, compressed.length, out, 0, out.length );
+    assertEquals( DATA.length, n );
+    assertArrayEquals( DATA, out );
+  }
+
+  @Test
+  public void testXZ() throws Exception {
+    for ( int level : new int[] { AvroBlockCodec.DEFAULT_LEVEL, 0, 9 } ) {
+      AvroBlockCodec codec = AvroBlockCodec.create( "xz", level );
+      assertEquals( "xz", codec.getName() );
+      assertArrayEquals( DATA, readAll( new XZInputStream( new ByteArrayInputStream( compress( codec ) ) ) ) );
+    }
+  }
+
+  @Test
+  public void testBZip2() throws Exception {
+    for ( int level : new int[] { AvroBlockCodec.DEFAULT_LEVEL, 1, 9 } ) {
+      AvroBlockCodec codec = AvroBlockCodec.create( "bzip2", level );
+      assertEquals( "bzip2", codec.getName() );
+      assertArrayEquals( DATA,
+        readAll( new BZip2CompressorInputStream( new ByteArrayInputStream( compress( codec ) ) ) ) );
+    }
+  }
+
+  @Test
+  public void testInvalidLevels() {
+    assertInvalid( "deflate", 10 );
+    assertInvalid( "deflate", -2 );
+    assertInvalid( "xz", 10 );
+    assertInvalid( "bzip2", 0 );
+    assertInvalid( "snappy", 1 );
+    assertInvalid( "zstandard", 3 );
+    assertInvalid( "lz4", AvroBlockCodec.DEFAULT_LEVEL );
+  }
+
+  /**
+   * Avro 1.6.2 reads null, deflate and snappy container files, so those are read back by Avro itself.
+   */
+  @Test
+  public void testContainerFiles() throws Exception {
+    Schema schema = Schema.createRecord( "Row", null, "test", false );
+    schema.setFields( Arrays.asList( new Schema.Field( "s", Schema.create( Schema.Type.STRING ), null, null ) ) );
+    DatumWriter<Object[]> datumWriter = new DatumWriter<Object[]>() {
+      public void setSchema( Schema s ) {
+      }
+
+      public void write( Object[] r, Encoder out ) throws IOException {
+        out.writeString( (String) r[0] );
+      }
+    };
+    for ( String name : new String[] { "null", "deflate", "snappy" } ) {
+      AvroBlockCodec codec = AvroBlockCodec.create( name );
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      AvroBlockAppender appender = new AvroBlockAppender( bytes, true );
+      appender.writeHeader( schema, codec.getName() );
+      AvroContainerWriter writer = new AvroContainerWriter( datumWriter, codec, appender, 1024 );
+      for ( int i = 0; i < 1000; i++ ) {
+        writer.append( new Object[] { "row " + i } );
+      }
+      writer.close();
+      appender.close();
+
+      DataFileStream<GenericRecord> in = new DataFileStream<GenericRecord>(
+        new ByteArrayInputStream( bytes.toByteArray() ), new GenericDatumReader<GenericRecord>() );
+      try {
+        int i = 0;
+        while ( in.hasNext() ) {
+          assertEquals( name, "row " + i, in.next().get( "s" ).toString() );
+          i++;
+        }
+        assertEquals( name, 1000, i );
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private static void assertInvalid( String name, int level ) {
+    try {
+      AvroBlockCodec.create( name, level );
+      fail( "Level " + level + " should not be accepted by " + name );
+    } catch ( KettleException e ) {
+      // Expected
+    }
+  }
+
+  private static AvroMessageBuffer raw( byte[] data ) {
+    AvroMessageBuffer raw = new AvroMessageBuffer();
+    raw.write( data );
+    return raw;
+  }
+
+  /**
+   * Compress the data twice with the codec and once with a copy, which must all give the same bytes.
+   */
+  private static byte[] compress( AvroBlockCodec codec ) throws IOException {
+    byte[] first = toArray( codec.compress( raw( DATA ), new AvroMessageBuffer() ) );
+    assertArrayEquals( first, toArray( codec.compress( raw( DATA ), new AvroMessageBuffer() ) ) );
+    assertArrayEquals( first, toArray( codec.copy().compress( raw( DATA ), new AvroMessageBuffer() ) ) );
+    return first;
+  }
+
+  private static byte[] toArray( AvroMessageBuffer buffer ) {
+    return Arrays.copyOf( buffer.getBuffer(), buffer.size() );
+  }
+
+  private static byte[] readAll( InputStream in ) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ( ( n = in.read( buffer ) ) > 0 ) {
+        out.write( buffer, 0, n );
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*! ******************************************************************************
+*
+* Avro Output Plugin
+*
+* Author: Inquidia Consulting
+*
+* Copyright(c) 2014-2016 Inquidia Consulting (www.inquidia.com)
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package org.inquidia.kettle.plugins.avrooutput;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the CRC-64-AVRO fingerprints against the values of the Avro specification tests, and the single object
+ * encoding header written in front of BinaryField messages.
+ *
+ * @author Inquidia Consulting
+ */
+public class AvroSchemaFingerprintTest {
+
+  @Test
+  public void testEmpty() {
+    assertEquals( AvroSchemaFingerprint.EMPTY, AvroSchemaFingerprint.fingerprint64( new byte[0] ) );
+  }
+
+  @Test
+  public void testPrimitives() {
+    assertFingerprint( 7195948357588979594L, Schema.Type.NULL );
+    assertFingerprint( -6970731678124411036L, Schema.Type.BOOLEAN );
+    assertFingerprint( 8247732601305521295L, Schema.Type.INT );
+    assertFingerprint( -3434872931120570953L, Schema.Type.LONG );
+    assertFingerprint( 5583340709985441680L, Schema.Type.FLOAT );
+    assertFingerprint( -8181574048448539266L, Schema.Type.DOUBLE );
+    assertFingerprint( 5746618253357095269L, Schema.Type.BYTES );
+    assertFingerprint( -8142146995180207161L, Schema.Type.STRING );
+  }
+
+  @Test
+  public void testParsingForm() {
+    Schema record = createRecord( "A record" );
+    assertEquals( "{\"name\":\"test.Row\",\"type\":\"record\",\"fields\":["
+        + "{\"name\":\"id\",\"type\":\"long\"},"
+        + "{\"name\":\"tags\",\"type\":{\"type\":\"array\",\"items\":\"string\"}},"
+        + "{\"name\":\"kind\",\"type\":[\"null\",{\"name\":\"test.Kind\",\"type\":\"enum\",\"symbols\":[\"A\",\"B\"]}]},"
+        + "{\"name\":\"other\",\"type\":[\"null\",\"test.Kind\"]}]}",
+      AvroSchemaFingerprint.toParsingForm( record ) );
+    assertEquals( AvroSchemaFingerprint.fingerprint64( AvroSchemaFingerprint.toUtf8(
+      AvroSchemaFingerprint.toParsingForm( record ) ) ), AvroSchemaFingerprint.parsingFingerprint64( record ) );
+
+    // Docs do not change the canonical fingerprint, only the fingerprint of the full JSON.
+    Schema documented = createRecord( "Another doc" );
+    assertEquals( AvroSchemaFingerprint.parsingFingerprint64( record ),
+      AvroSchemaFingerprint.parsingFingerprint64( documented ) );
+    assertTrue( AvroSchemaFingerprint.fingerprint64( record )
+      != AvroSchemaFingerprint.fingerprint64( documented ) );
+  }
+
+  @Test
+  public void testSingleObjectFraming() throws Exception {
+    long fingerprint = 0x0102030405060708L;
+    AvroOutput step = mock( AvroOutput.class );
+    step.meta = new AvroOutputMeta();
+    step.meta.setMessageFraming( AvroOutputMeta.MESSAGE_FRAMINGS[AvroOutputMeta.MESSAGE_FRAMING_SINGLE_OBJECT] );
+    step.data = new AvroOutputData();
+    step.data.compiledPlan = mock( AvroPlanCache.CompiledPlan.class );
+    when( step.data.compiledPlan.getSchemaFingerprint() ).thenReturn( fingerprint );
+    step.data.outputRowMeta = mock( RowMetaInterface.class );
+    when( step.data.outputRowMeta.size() ).thenReturn( 2 );
+    step.data.datumWriter = new DatumWriter<Object[]>() {
+      public void setSchema( Schema schema ) {
+      }
+
+      public void write( Object[] r, Encoder out ) throws IOException {
+        out.writeLong( (Long) r[0] );
+      }
+    };
+
+    AvroBinaryFieldSink sink = new AvroBinaryFieldSink( step );
+    sink.open();
+    // Every message starts with the C3 01 marker and the little endian fingerprint, followed by the datum.
+    for ( long value : new long[] { 1L, 1234567890123L } ) {
+      byte[] message = (byte[]) sink.writeRecord( new Object[] { value } )[1];
+      assertEquals( "[-61, 1, 8, 7, 6, 5, 4, 3, 2, 1]", Arrays.toString( Arrays.copyOf( message, 10 ) ) );
+      BinaryDecoder decoder = DecoderFactory.get().binaryDecoder( message, 10, message.length - 10, null );
+      assertEquals( value, decoder.readLong() );
+      assertTrue( decoder.isEnd() );
+    }
+    sink.close();
+  }
+
+  private static void assertFingerprint( long expected, Schema.Type type ) {
+    assertEquals( type.getName(), expected, AvroSchemaFingerprint.parsingFingerprint64( Schema.create( type ) ) );
+  }
+
+  private static Schema createRecord( String doc ) {
+    Schema kind = Schema.createEnum( "Kind", "The kind", "test", Arrays.asList( "A", "B" ) );
+    Schema record = Schema.createRecord( "Row", doc, "test", false );
+    record.setFields( Arrays.asList(
+      new Schema.Field( "id", Schema.create( Schema.Type.LONG ), "The id", null ),
+      new Schema.Field( "tags", Schema.createArray( Schema.create( Schema.Type.STRING ) ), null, null ),
+      new Schema.Field( "kind", Schema.createUnion( Arrays.asList( Schema.create( Schema.Type.NULL ), kind ) ), null,
+        null ),
+      new Schema.Field( "other", Schema.createUnion( Arrays.asList( Schema.create( Schema.Type.NULL ), kind ) ),
+        null, null ) ) );
+    return record;
+  }
+}